@@ -0,0 +1,112 @@
+package com.abstrys.consolekit;
+
+/**
+ * Looks up how many cells a character takes up in a TerminalData object.
+ * Wide characters, such as CJK ideographs, Hangul syllables, full-width forms
+ * and emoji, take two cells: the character itself followed by a
+ * TerminalData.WIDE_CONTINUATION cell.  Characters outside of the Basic
+ * Multilingual Plane are stored as their UTF-16 surrogate pair, with the low
+ * surrogate in the second cell, so they also take two cells.
+ * <p>
+ * The widths of the Basic Multilingual Plane are held in a table of one bit
+ * per character, built once, so a width check costs an array lookup and a
+ * shift.
+ */
+public class CharWidth
+{
+    /**
+     * The lowest character that can take two cells.  Anything below this is
+     * always one cell wide.
+     */
+    public static final char FIRST_WIDE = '\u1100';
+
+    // ranges of wide characters, as pairs of first and last characters.
+    // This covers the East Asian Wide and Fullwidth characters of the BMP,
+    // along with the BMP symbols that are normally shown as emoji.
+    private static final char[] WIDE_RANGES =
+    {
+        '\u1100', '\u115f', '\u231a', '\u231b', '\u2329', '\u232a',
+        '\u23e9', '\u23ec', '\u23f0', '\u23f0', '\u23f3', '\u23f3',
+        '\u25fd', '\u25fe', '\u2614', '\u2615', '\u2648', '\u2653',
+        '\u267f', '\u267f', '\u2693', '\u2693', '\u26a1', '\u26a1',
+        '\u26aa', '\u26ab', '\u26bd', '\u26be', '\u26c4', '\u26c5',
+        '\u26ce', '\u26ce', '\u26d4', '\u26d4', '\u26ea', '\u26ea',
+        '\u26f2', '\u26f3', '\u26f5', '\u26f5', '\u26fa', '\u26fa',
+        '\u26fd', '\u26fd', '\u2705', '\u2705', '\u270a', '\u270b',
+        '\u2728', '\u2728', '\u274c', '\u274c', '\u274e', '\u274e',
+        '\u2753', '\u2755', '\u2757', '\u2757', '\u2795', '\u2797',
+        '\u27b0', '\u27b0', '\u27bf', '\u27bf', '\u2b1b', '\u2b1c',
+        '\u2b50', '\u2b50', '\u2b55', '\u2b55', '\u2e80', '\u303e',
+        '\u3041', '\u33ff', '\u3400', '\u4dbf', '\u4e00', '\u9fff',
+        '\ua000', '\ua4cf', '\ua960', '\ua97f', '\uac00', '\ud7a3',
+        '\uf900', '\ufaff', '\ufe10', '\ufe19', '\ufe30', '\ufe6f',
+        '\uff00', '\uff60', '\uffe0', '\uffe6'
+    };
+
+    private static final long[] WIDE_TABLE = new long[1024];
+
+    static
+    {
+        for (int i = 0; i < WIDE_RANGES.length; i += 2)
+        {
+            for (int ch = WIDE_RANGES[i]; ch <= WIDE_RANGES[i + 1]; ch++)
+            {
+                WIDE_TABLE[ch >> 6] |= 1L << ch;
+            }
+        }
+    }
+
+    /**
+     * Checks whether a character from the Basic Multilingual Plane is a wide
+     * character.
+     * @param ch the character to check.
+     * @return true if the character takes two cells.
+     */
+    public static boolean isWide(char ch)
+    {
+        return (WIDE_TABLE[ch >> 6] & (1L << ch)) != 0;
+    }
+
+    /**
+     * Gets the number of cells that a code point takes up.
+     * @param codePoint the code point to check.
+     * @return 2 for wide characters and for anything outside of the Basic
+     * Multilingual Plane, and 1 for everything else.
+     */
+    public static int of(int codePoint)
+    {
+        if (codePoint > 0xffff)
+        {
+            return 2;
+        }
+        return isWide((char)codePoint) ? 2 : 1;
+    }
+
+    /**
+     * Checks whether a character starts a two cell pair when printed: a wide
+     * character or a high surrogate.
+     */
+    static boolean isDoubleCell(char ch)
+    {
+        return ch >= FIRST_WIDE &&
+                (isWide(ch) || Character.isHighSurrogate(ch));
+    }
+
+    /**
+     * Checks whether the first len cells of a line hold any cell that belongs
+     * to a two cell pair, so that lines without any can be drawn in one call.
+     */
+    static boolean hasDoubleCells(char[] line, int len)
+    {
+        for (int i = 0; i < len; i++)
+        {
+            char ch = line[i];
+            if (ch >= FIRST_WIDE && (ch == TerminalData.WIDE_CONTINUATION ||
+                    Character.isSurrogate(ch) || isWide(ch)))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,27 @@
+package com.abstrys.consolekit;
+
+/**
+ * Provides an interface for loading and saving the chunks of a world shown in
+ * a WorldViewport.  A chunk is a square block of WorldViewport.CHUNK_SIZE by
+ * WorldViewport.CHUNK_SIZE cells, stored row by row.
+ */
+public interface ChunkLoader
+{
+    /**
+     * Called when a chunk is needed that isn't in the viewport's cache.
+     * @param cx the chunk's x position, in chunks.
+     * @param cy the chunk's y position, in chunks.
+     * @param cells the array to fill with the chunk's cells.  It is filled
+     * with spaces before this is called.
+     */
+    public void loadChunk(int cx, int cy, char[] cells);
+
+    /**
+     * Called when a chunk that has been changed with setCell is dropped from
+     * the viewport's cache, or when the viewport is flushed.
+     * @param cx the chunk's x position, in chunks.
+     * @param cy the chunk's y position, in chunks.
+     * @param cells the chunk's cells.
+     */
+    public void saveChunk(int cx, int cy, char[] cells);
+}
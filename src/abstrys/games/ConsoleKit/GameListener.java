@@ -0,0 +1,34 @@
+package com.abstrys.consolekit;
+
+/**
+ * Provides an interface for a game driven by a GameLoop.  gameCharTyped and
+ * gameUpdate are called on the game loop's thread, and gameRender on the event
+ * dispatch thread while the loop thread waits for it, so the game's state is
+ * never used by both threads at once.
+ */
+public interface GameListener
+{
+    /**
+     * Called for each character typed in the panel since the last frame, just
+     * before the frame's updates are run.
+     * @param ch the character typed.
+     */
+    public void gameCharTyped(char ch);
+
+    /**
+     * Called at a fixed rate to advance the state of the game.
+     * @param dt the length of an update step, in seconds.  This is the same
+     * for every call.
+     */
+    public void gameUpdate(double dt);
+
+    /**
+     * Called once per frame, on the event dispatch thread, to draw the game
+     * into the panel just before it is painted.
+     * @param panel the panel to draw into.
+     * @param alpha how far the current time is between the last update and
+     * the next one, from 0 to 1.  This can be used to interpolate movement
+     * between updates.
+     */
+    public void gameRender(TerminalPanel panel, double alpha);
+}
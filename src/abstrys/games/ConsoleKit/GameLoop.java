@@ -0,0 +1,382 @@
+package com.abstrys.consolekit;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.swing.SwingUtilities;
+
+/**
+ * Runs a game on a TerminalPanel.  The game state is updated at a fixed rate,
+ * independent of the frame rate, and each frame is rendered into the panel
+ * and painted before the loop sleeps until the next frame is due.  Rendering
+ * and painting both happen on the event dispatch thread, so that the game
+ * never writes to the panel's data while it is being painted; the loop waits
+ * for them to finish before it runs any more updates.  While the
+ * loop is running it takes over the panel's terminal listener and turns off
+ * input echo; typed characters are queued and handed to the game on the loop
+ * thread before each frame's updates.
+ */
+public class GameLoop implements Runnable, TerminalBatchListener
+{
+    private final TerminalPanel panel;
+    private final GameListener game;
+    private final long updateNanos;
+    private final double updateSeconds;
+    private long frameNanos;
+    private int maxUpdatesPerFrame;
+    private volatile boolean running = false;
+    private Thread thread = null;
+
+    // incremented each time the loop is started.  A loop thread, and any
+    // frame it has queued, only carries on while this matches the value it
+    // started with, so a thread left over from an earlier run can never run
+    // alongside a new one.
+    private volatile int generation = 0;
+    private TerminalListener previousListener = null;
+    private boolean previousEcho = true;
+    private final ConcurrentLinkedQueue<Character> input =
+            new ConcurrentLinkedQueue<Character>();
+
+    // timing statistics, averaged over the last second of frames.
+    private volatile double updateMillis = 0;
+    private volatile double renderMillis = 0;
+    private volatile double presentMillis = 0;
+    private volatile double frameRate = 0;
+    private volatile long droppedUpdates = 0;
+
+    /**
+     * Renders and paints one frame on the event dispatch thread, and then
+     * wakes the loop thread.
+     */
+    private class Frame implements Runnable
+    {
+        private final int generation;
+        private final double alpha;
+        private final Thread loopThread;
+        private volatile boolean done = false;
+
+        // written on the event dispatch thread before done is set.
+        private long renderNanos = 0;
+        private long presentNanos = 0;
+
+        Frame(int generation, double alpha)
+        {
+            this.generation = generation;
+            this.alpha = alpha;
+            this.loopThread = Thread.currentThread();
+        }
+
+        public void run()
+        {
+            try
+            {
+                if(isCurrent(generation))
+                {
+                    long t1 = System.nanoTime();
+                    game.gameRender(panel, alpha);
+                    long t2 = System.nanoTime();
+                    panel.paintImmediately(0, 0, panel.getWidth(),
+                            panel.getHeight());
+                    renderNanos = t2 - t1;
+                    presentNanos = System.nanoTime() - t2;
+                }
+            }
+            catch (RuntimeException ex)
+            {
+                Logger.getLogger(GameLoop.class.getName()).log(Level.SEVERE, null, ex);
+            }
+            finally
+            {
+                done = true;
+                LockSupport.unpark(loopThread);
+            }
+        }
+    }
+
+    /**
+     * Constructs a new GameLoop.
+     * @param panel the panel that the game is displayed in.
+     * @param game the game to run.
+     * @param updatesPerSecond the number of times per second to update the
+     * game state.
+     * @param framesPerSecond the target frame rate.
+     */
+    public GameLoop(TerminalPanel panel, GameListener game,
+            int updatesPerSecond, int framesPerSecond)
+    {
+        this.panel = panel;
+        this.game = game;
+        this.updateNanos = 1000000000L / updatesPerSecond;
+        this.updateSeconds = 1.0 / updatesPerSecond;
+        this.frameNanos = 1000000000L / framesPerSecond;
+        this.maxUpdatesPerFrame = 5;
+    }
+
+    /**
+     * Sets the target frame rate.
+     * @param framesPerSecond the number of frames to render each second.
+     */
+    public void setFrameRate(int framesPerSecond)
+    {
+        frameNanos = 1000000000L / framesPerSecond;
+    }
+
+    /**
+     * Sets the most updates that will be run in a single frame to catch up
+     * with the clock.  If the game falls further behind than this, the extra
+     * updates are dropped so that a slow frame doesn't cause ever more updates
+     * to be run in the following frames.
+     * @param max the maximum number of updates per frame.
+     */
+    public void setMaxUpdatesPerFrame(int max)
+    {
+        maxUpdatesPerFrame = max;
+    }
+
+    /**
+     * Starts the game loop on its own thread.  Calling this when the loop is
+     * already running has no effect.
+     */
+    public synchronized void start()
+    {
+        if(running)
+        {
+            return;
+        }
+
+        previousListener = panel.getTerminalListener();
+        previousEcho = panel.isEchoInput();
+        panel.setTerminalListener(this);
+        panel.setEchoInput(false);
+        input.clear();
+
+        generation++;
+        running = true;
+        thread = new Thread(this, "GameLoop");
+        thread.start();
+    }
+
+    /**
+     * Stops the game loop and gives the panel back its previous terminal
+     * listener and echo setting.  The loop finishes the update it is working
+     * on, and this waits for its thread to exit before returning, unless it
+     * is called by the game from the loop thread itself.
+     */
+    public void stop()
+    {
+        Thread t;
+        synchronized(this)
+        {
+            if(!running)
+            {
+                return;
+            }
+            running = false;
+            t = thread;
+            thread = null;
+        }
+
+        // the monitor isn't held while waiting, in case the game calls start
+        // or stop from the loop thread before it notices.
+        LockSupport.unpark(t);
+        if(t != Thread.currentThread())
+        {
+            boolean interrupted = false;
+            while(t.isAlive())
+            {
+                try
+                {
+                    t.join();
+                }
+                catch (InterruptedException ex)
+                {
+                    interrupted = true;
+                }
+            }
+            if(interrupted)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+        panel.setTerminalListener(previousListener);
+        panel.setEchoInput(previousEcho);
+    }
+
+    private boolean isCurrent(int gen)
+    {
+        return running && gen == generation;
+    }
+
+    /**
+     * Checks whether the game loop is running.
+     * @return true if the loop is running.
+     */
+    public boolean isRunning()
+    {
+        return running;
+    }
+
+    /**
+     * The body of the game loop.  This is run on the thread created by start,
+     * and should not be called directly.
+     */
+    public void run()
+    {
+        int gen = generation;
+        long previous = System.nanoTime();
+        long nextFrame = previous;
+        long accumulator = 0;
+
+        long statStart = previous;
+        long statUpdate = 0;
+        long statRender = 0;
+        long statPresent = 0;
+        int statFrames = 0;
+
+        while(isCurrent(gen))
+        {
+            long now = System.nanoTime();
+            accumulator += now - previous;
+            previous = now;
+
+            Character ch;
+            while((ch = input.poll()) != null)
+            {
+                game.gameCharTyped(ch);
+            }
+
+            // run as many fixed updates as the clock calls for.
+            int updates = 0;
+            while(accumulator >= updateNanos)
+            {
+                if(updates == maxUpdatesPerFrame)
+                {
+                    droppedUpdates += accumulator / updateNanos;
+                    accumulator %= updateNanos;
+                    break;
+                }
+                game.gameUpdate(updateSeconds);
+                accumulator -= updateNanos;
+                updates++;
+            }
+            long t1 = System.nanoTime();
+
+            // render and paint on the event dispatch thread.  Waiting with
+            // park rather than invokeAndWait lets stop, which may be called
+            // on the event dispatch thread, wake the loop to exit.
+            Frame frame = new Frame(gen, (double)accumulator / updateNanos);
+            SwingUtilities.invokeLater(frame);
+            while(!frame.done && isCurrent(gen))
+            {
+                LockSupport.park(this);
+            }
+            if(!frame.done)
+            {
+                break;
+            }
+            long t3 = System.nanoTime();
+
+            statUpdate += t1 - now;
+            statRender += frame.renderNanos;
+            statPresent += frame.presentNanos;
+            statFrames++;
+            if(t3 - statStart >= 1000000000L)
+            {
+                updateMillis = statUpdate / (statFrames * 1e6);
+                renderMillis = statRender / (statFrames * 1e6);
+                presentMillis = statPresent / (statFrames * 1e6);
+                frameRate = statFrames * 1e9 / (t3 - statStart);
+                statStart = t3;
+                statUpdate = 0;
+                statRender = 0;
+                statPresent = 0;
+                statFrames = 0;
+            }
+
+            // sleep until the next frame is due.  If the loop has fallen more
+            // than a frame behind, start pacing again from now instead of
+            // rushing through the missed frames.
+            nextFrame += frameNanos;
+            long wait;
+            while(isCurrent(gen) && (wait = nextFrame - System.nanoTime()) > 0)
+            {
+                LockSupport.parkNanos(wait);
+            }
+            if(System.nanoTime() - nextFrame > frameNanos)
+            {
+                nextFrame = System.nanoTime();
+            }
+        }
+    }
+
+    /**
+     * Gets the average time spent running updates in each frame.
+     * @return the update time, in milliseconds.
+     */
+    public double getUpdateTime()
+    {
+        return updateMillis;
+    }
+
+    /**
+     * Gets the average time spent in gameRender each frame.
+     * @return the render time, in milliseconds.
+     */
+    public double getRenderTime()
+    {
+        return renderMillis;
+    }
+
+    /**
+     * Gets the average time spent painting the panel each frame, after
+     * gameRender.
+     * @return the present time, in milliseconds.
+     */
+    public double getPresentTime()
+    {
+        return presentMillis;
+    }
+
+    /**
+     * Gets the number of frames run in the last second.
+     * @return the frame rate.
+     */
+    public double getFrameRate()
+    {
+        return frameRate;
+    }
+
+    /**
+     * Gets the number of updates that were dropped because the game fell too
+     * far behind the clock.
+     * @return the dropped update count.
+     */
+    public long getDroppedUpdates()
+    {
+        return droppedUpdates;
+    }
+
+    //
+    // TerminalListener methods.
+    //
+    public boolean terminalCharTyped(char ch)
+    {
+        input.add(ch);
+        return true;
+    }
+
+    public boolean terminalTextTyped(String text)
+    {
+        for(int i = 0; i < text.length(); i++)
+        {
+            input.add(text.charAt(i));
+        }
+        return true;
+    }
+
+    public void terminalLineTyped(String str)
+    {
+        // ignored; the game sees every character through gameCharTyped.
+    }
+}
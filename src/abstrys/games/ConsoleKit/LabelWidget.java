@@ -0,0 +1,51 @@
+package com.abstrys.consolekit;
+
+/**
+ * A widget that displays a single line of text.  This is also suitable for
+ * status bars.
+ */
+public class LabelWidget extends Widget
+{
+    private String text;
+
+    /**
+     * Constructs a new LabelWidget.
+     * @param text the text to display.
+     */
+    public LabelWidget(String text)
+    {
+        this.text = text;
+        setPreferredSize(text.length(), 1);
+    }
+
+    /**
+     * Sets the text displayed by the label.  The label is only damaged if the
+     * text actually changes.
+     * @param text the text to display.
+     */
+    public void setText(String text)
+    {
+        if (text.equals(this.text))
+        {
+            return;
+        }
+        this.text = text;
+        damage();
+    }
+
+    public String getText()
+    {
+        return text;
+    }
+
+    @Override
+    protected void paintContent(TerminalData td, int cx, int cy, int cw,
+            int ch)
+    {
+        td.setText(text, cx, cy, cw);
+        for (int i = cy + 1; i < cy + ch; i++)
+        {
+            td.setText("", cx, i, cw);
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package com.abstrys.consolekit;
+
+import java.util.List;
+
+/**
+ * Provides completions for the line being edited in a LineEditor.  When Tab
+ * is pressed at a TerminalPanel prompt, the completer is asked for the
+ * possible completions of the text before the cursor.
+ */
+public interface LineCompleter
+{
+    /**
+     * Finds the possible completions for the text before the cursor.
+     * @param line the line being edited.
+     * @param cursor the position of the cursor in the line.
+     * @param candidates a list to add the completions to.  Each one replaces
+     * the text from the returned position up to the cursor.
+     * @return the position in the line where the text being completed
+     * starts, or -1 if there is nothing to complete.
+     */
+    public int complete(String line, int cursor, List<String> candidates);
+}
@@ -0,0 +1,599 @@
+package com.abstrys.consolekit;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Holds a line of input while it is being typed and edited.  The text is kept
+ * in a gap buffer: the free space in the buffer sits at the cursor, so typing
+ * and deleting at the cursor don't move the rest of the line, and moving the
+ * cursor only moves the characters it passes over.
+ * <p>
+ * The editor also keeps a bounded history of entered lines, which can be
+ * searched by the text typed before the cursor, and can complete the text
+ * before the cursor with a LineCompleter.
+ * <p>
+ * Each edit records the first position in the line that changed, so that a
+ * display of the line only has to redraw from there (see getChangeStart).
+ * The cursor is always kept between code points, so surrogate pairs are
+ * moved over and deleted as one character.
+ */
+public class LineEditor
+{
+    /**
+     * The number of lines of history kept by default.
+     */
+    public static final int DEFAULT_HISTORY_SIZE = 100;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private char[] buf;
+    private int gapStart;
+    private int gapEnd;
+
+    // the first position changed since clearChanges was called, or -1.
+    private int changeStart;
+
+    // the history, as a ring of historyCount lines starting at historyFirst.
+    private final String[] history;
+    private int historyFirst;
+    private int historyCount;
+
+    // while browsing the history: how many lines back the line shown is (0
+    // for the line being typed), the text that the lines must start with, and
+    // the line that was being typed before browsing began.
+    private int historyPos;
+    private String historyPrefix;
+    private String historySaved;
+
+    private LineCompleter completer;
+    private final List<String> completions;
+
+    /**
+     * Constructs a new, empty LineEditor with the default history size.
+     */
+    public LineEditor()
+    {
+        this(DEFAULT_HISTORY_SIZE);
+    }
+
+    /**
+     * Constructs a new, empty LineEditor.
+     * @param historySize the most lines of history to keep.  When more lines
+     * are added, the oldest are dropped.
+     */
+    public LineEditor(int historySize)
+    {
+        this.buf = new char[INITIAL_CAPACITY];
+        this.gapStart = 0;
+        this.gapEnd = buf.length;
+        this.changeStart = -1;
+        this.history = new String[Math.max(historySize, 0)];
+        this.historyFirst = 0;
+        this.historyCount = 0;
+        this.historyPos = 0;
+        this.historyPrefix = null;
+        this.historySaved = null;
+        this.completer = null;
+        this.completions = new ArrayList<String>();
+    }
+
+    /**
+     * Gets the length of the line.
+     * @return the number of characters in the line.
+     */
+    public int length()
+    {
+        return buf.length - (gapEnd - gapStart);
+    }
+
+    /**
+     * Gets the position of the cursor.
+     * @return the number of characters before the cursor.
+     */
+    public int getCursor()
+    {
+        return gapStart;
+    }
+
+    /**
+     * Gets a character of the line.
+     * @param i the position of the character, from 0 to length() - 1.
+     * @return the character.
+     */
+    public char charAt(int i)
+    {
+        return (i < gapStart) ? buf[i] : buf[i + gapEnd - gapStart];
+    }
+
+    /**
+     * Gets the text of the line.
+     * @return the line.
+     */
+    public String getText()
+    {
+        return getText(0, length());
+    }
+
+    /**
+     * Gets part of the text of the line.
+     * @param start the position of the first character to get.
+     * @param end the position after the last character to get.
+     * @return the text from start to end.
+     */
+    public String getText(int start, int end)
+    {
+        StringBuilder sb = new StringBuilder(end - start);
+        if(start < gapStart)
+        {
+            sb.append(buf, start, Math.min(end, gapStart) - start);
+        }
+        if(end > gapStart)
+        {
+            int s = Math.max(start, gapStart) + gapEnd - gapStart;
+            sb.append(buf, s, end + gapEnd - gapStart - s);
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String toString()
+    {
+        return getText();
+    }
+
+    /**
+     * Gets the first position in the line that has changed since
+     * clearChanges was last called.  Moving the cursor doesn't count as a
+     * change.
+     * @return the position of the first changed character (which may be the
+     * length of the line, if characters were only removed from the end), or
+     * -1 if the text hasn't changed.
+     */
+    public int getChangeStart()
+    {
+        return changeStart;
+    }
+
+    /**
+     * Forgets the changes made so far, once they have been displayed.
+     */
+    public void clearChanges()
+    {
+        changeStart = -1;
+    }
+
+    private void changed(int pos)
+    {
+        if(changeStart < 0 || pos < changeStart)
+        {
+            changeStart = pos;
+        }
+    }
+
+    /**
+     * Moves the cursor.  The gap in the buffer moves with it.
+     * @param pos the new cursor position.  It is kept within the line, and
+     * is moved back if it would split a surrogate pair.
+     */
+    public void setCursor(int pos)
+    {
+        pos = Math.max(0, Math.min(pos, length()));
+        if(pos > 0 && pos < length() &&
+                Character.isLowSurrogate(charAt(pos)) &&
+                Character.isHighSurrogate(charAt(pos - 1)))
+        {
+            pos--;
+        }
+
+        if(pos < gapStart)
+        {
+            int n = gapStart - pos;
+            System.arraycopy(buf, pos, buf, gapEnd - n, n);
+            gapStart = pos;
+            gapEnd -= n;
+        }
+        else if(pos > gapStart)
+        {
+            int n = pos - gapStart;
+            System.arraycopy(buf, gapEnd, buf, gapStart, n);
+            gapStart += n;
+            gapEnd += n;
+        }
+    }
+
+    /**
+     * Makes sure the gap can hold n more characters.
+     */
+    private void ensureGap(int n)
+    {
+        if(gapEnd - gapStart >= n)
+        {
+            return;
+        }
+
+        int tail = buf.length - gapEnd;
+        char[] nb = new char[Math.max(buf.length * 2, length() + n)];
+        System.arraycopy(buf, 0, nb, 0, gapStart);
+        System.arraycopy(buf, gapEnd, nb, nb.length - tail, tail);
+        gapEnd = nb.length - tail;
+        buf = nb;
+    }
+
+    /**
+     * Inserts a character at the cursor, and moves the cursor past it.
+     * @param ch the character to insert.
+     */
+    public void insert(char ch)
+    {
+        endHistorySearch();
+        ensureGap(1);
+        changed(gapStart);
+        buf[gapStart++] = ch;
+    }
+
+    /**
+     * Inserts text at the cursor, and moves the cursor past it.
+     * @param s the text to insert.
+     */
+    public void insert(CharSequence s)
+    {
+        endHistorySearch();
+        insertText(s);
+    }
+
+    private void insertText(CharSequence s)
+    {
+        int n = s.length();
+        if(n == 0)
+        {
+            return;
+        }
+        ensureGap(n);
+        changed(gapStart);
+        for(int i = 0; i < n; i++)
+        {
+            buf[gapStart + i] = s.charAt(i);
+        }
+        gapStart += n;
+    }
+
+    /**
+     * Replaces part of the line, and leaves the cursor after the new text.
+     * Only the part of the new text that differs from the old text is counted
+     * as a change.
+     */
+    private void replace(int start, int end, String s)
+    {
+        int same = 0;
+        while(same < s.length() && start + same < end &&
+                s.charAt(same) == charAt(start + same))
+        {
+            same++;
+        }
+        if(same > 0 && Character.isHighSurrogate(s.charAt(same - 1)))
+        {
+            // two pairs with the same high surrogate still differ as a whole.
+            same--;
+        }
+        setCursor(end);
+        gapStart = start + same;
+        if(start + same < end)
+        {
+            changed(gapStart);
+        }
+        insertText(s.substring(same));
+    }
+
+    /**
+     * Deletes the character before the cursor.
+     * @return true if a character was deleted, or false if the cursor is at
+     * the start of the line.
+     */
+    public boolean deleteBackward()
+    {
+        if(gapStart == 0)
+        {
+            return false;
+        }
+        endHistorySearch();
+        gapStart = previous(gapStart);
+        changed(gapStart);
+        return true;
+    }
+
+    /**
+     * Deletes the character after the cursor.
+     * @return true if a character was deleted, or false if the cursor is at
+     * the end of the line.
+     */
+    public boolean deleteForward()
+    {
+        if(gapStart == length())
+        {
+            return false;
+        }
+        endHistorySearch();
+        gapEnd += next(gapStart) - gapStart;
+        changed(gapStart);
+        return true;
+    }
+
+    /**
+     * Moves the cursor back one character.
+     * @return true if the cursor moved.
+     */
+    public boolean moveLeft()
+    {
+        if(gapStart == 0)
+        {
+            return false;
+        }
+        setCursor(previous(gapStart));
+        return true;
+    }
+
+    /**
+     * Moves the cursor forward one character.
+     * @return true if the cursor moved.
+     */
+    public boolean moveRight()
+    {
+        if(gapStart == length())
+        {
+            return false;
+        }
+        setCursor(next(gapStart));
+        return true;
+    }
+
+    /**
+     * Moves the cursor to the start of the line.
+     * @return true if the cursor moved.
+     */
+    public boolean moveHome()
+    {
+        if(gapStart == 0)
+        {
+            return false;
+        }
+        setCursor(0);
+        return true;
+    }
+
+    /**
+     * Moves the cursor to the end of the line.
+     * @return true if the cursor moved.
+     */
+    public boolean moveEnd()
+    {
+        if(gapStart == length())
+        {
+            return false;
+        }
+        setCursor(length());
+        return true;
+    }
+
+    private int previous(int pos)
+    {
+        if(pos > 1 && Character.isLowSurrogate(charAt(pos - 1)) &&
+                Character.isHighSurrogate(charAt(pos - 2)))
+        {
+            return pos - 2;
+        }
+        return pos - 1;
+    }
+
+    private int next(int pos)
+    {
+        if(pos + 1 < length() && Character.isHighSurrogate(charAt(pos)) &&
+                Character.isLowSurrogate(charAt(pos + 1)))
+        {
+            return pos + 2;
+        }
+        return pos + 1;
+    }
+
+    /**
+     * Replaces the whole line, and moves the cursor to the end.
+     * @param s the new text.
+     */
+    public void setText(String s)
+    {
+        endHistorySearch();
+        replace(0, length(), s);
+    }
+
+    /**
+     * Empties the line.
+     */
+    public void clear()
+    {
+        setText("");
+    }
+
+    //
+    // History
+    //
+
+    /**
+     * Adds a line to the end of the history.  Empty lines, and lines that
+     * are the same as the last one added, aren't added.
+     * @param line the line to add.
+     */
+    public void addHistory(String line)
+    {
+        endHistorySearch();
+        if(history.length == 0 || line.isEmpty() ||
+                (historyCount > 0 && line.equals(getHistory(0))))
+        {
+            return;
+        }
+        if(historyCount < history.length)
+        {
+            history[(historyFirst + historyCount++) % history.length] = line;
+        }
+        else
+        {
+            history[historyFirst] = line;
+            historyFirst = (historyFirst + 1) % history.length;
+        }
+    }
+
+    /**
+     * Gets the number of lines in the history.
+     * @return the number of lines.
+     */
+    public int getHistoryCount()
+    {
+        return historyCount;
+    }
+
+    /**
+     * Gets a line from the history.
+     * @param back how far back the line is: 0 for the most recent line.
+     * @return the line.
+     */
+    public String getHistory(int back)
+    {
+        return history[(historyFirst + historyCount - 1 - back) %
+                history.length];
+    }
+
+    /**
+     * Replaces the line with the previous line in the history that starts
+     * with the text that was before the cursor when browsing began.  Editing
+     * the line ends the browsing.
+     * @return true if an older matching line was found.
+     */
+    public boolean historyPrevious()
+    {
+        if(historyPrefix == null)
+        {
+            historyPrefix = getText(0, gapStart);
+            historySaved = getText();
+            historyPos = 0;
+        }
+        for(int back = historyPos; back < historyCount; back++)
+        {
+            String line = getHistory(back);
+            if(line.startsWith(historyPrefix))
+            {
+                historyPos = back + 1;
+                replace(0, length(), line);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Replaces the line with the next line in the history that starts with
+     * the text being searched for.  Moving past the most recent line brings
+     * back the line that was being typed.
+     * @return true if the line was changed.
+     */
+    public boolean historyNext()
+    {
+        if(historyPrefix == null)
+        {
+            return false;
+        }
+        for(int back = historyPos - 2; back >= 0; back--)
+        {
+            String line = getHistory(back);
+            if(line.startsWith(historyPrefix))
+            {
+                historyPos = back + 1;
+                replace(0, length(), line);
+                return true;
+            }
+        }
+        String saved = historySaved;
+        endHistorySearch();
+        replace(0, length(), saved);
+        return true;
+    }
+
+    private void endHistorySearch()
+    {
+        historyPrefix = null;
+        historySaved = null;
+        historyPos = 0;
+    }
+
+    //
+    // Completion
+    //
+
+    /**
+     * Sets the completer used by complete.
+     * @param c the completer, or null to turn completion off.
+     */
+    public void setCompleter(LineCompleter c)
+    {
+        completer = c;
+    }
+
+    /**
+     * Gets the completer used by complete.
+     * @return the completer, or null if there isn't one.
+     */
+    public LineCompleter getCompleter()
+    {
+        return completer;
+    }
+
+    /**
+     * Completes the text before the cursor.  If there is one completion, it
+     * replaces the text; if there are more, the text is extended with as much
+     * as they all have in common.  The completions found are available from
+     * getCompletions afterwards, so that they can be listed.
+     * @return true if the line was changed.
+     */
+    public boolean complete()
+    {
+        completions.clear();
+        if(completer == null)
+        {
+            return false;
+        }
+        int start = completer.complete(getText(), gapStart, completions);
+        if(start < 0 || start > gapStart || completions.isEmpty())
+        {
+            return false;
+        }
+
+        String common = completions.get(0);
+        for(int i = 1; i < completions.size(); i++)
+        {
+            String c = completions.get(i);
+            int n = 0;
+            while(n < common.length() && n < c.length() &&
+                    common.charAt(n) == c.charAt(n))
+            {
+                n++;
+            }
+            common = common.substring(0, n);
+        }
+        if(common.length() < gapStart - start ||
+                common.equals(getText(start, gapStart)))
+        {
+            return false;
+        }
+
+        endHistorySearch();
+        replace(start, gapStart, common);
+        return true;
+    }
+
+    /**
+     * Gets the completions found by the last call to complete.
+     * @return the completions.
+     */
+    public List<String> getCompletions()
+    {
+        return completions;
+    }
+}
@@ -0,0 +1,324 @@
+package com.abstrys.consolekit;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests for LineEditor: editing in the gap buffer, history search and
+ * completion.  Run them with "ant test"; any failure is reported and makes
+ * the run exit with an error.
+ */
+public class LineEditorTest
+{
+    private static int failures = 0;
+
+    private static final String PAIR = "\ud83d\ude00";
+
+    /**
+     * Completes the word before the cursor from a fixed list of words.
+     */
+    private static final LineCompleter WORDS = new LineCompleter()
+    {
+        private final String[] words = {
+            "help", "stash", "status", "start", "stop"
+        };
+
+        public int complete(String line, int cursor, List<String> candidates)
+        {
+            int start = line.lastIndexOf(' ', cursor - 1) + 1;
+            String word = line.substring(start, cursor);
+            for (String w : words)
+            {
+                if (w.startsWith(word))
+                {
+                    candidates.add(w);
+                }
+            }
+            return start;
+        }
+    };
+
+    public static void main(String[] args)
+    {
+        testEditAtEnds();
+        testEditMatchesModel();
+        testSurrogatePairs();
+        testChangeStart();
+        testHistoryLimit();
+        testHistorySearch();
+        testCompletion();
+
+        if (failures > 0)
+        {
+            System.out.println(failures + " LineEditor test(s) failed.");
+            System.exit(1);
+        }
+        System.out.println("All LineEditor tests passed.");
+    }
+
+    private static void check(boolean ok, String what)
+    {
+        if (!ok)
+        {
+            failures++;
+            System.out.println("FAILED: " + what);
+        }
+    }
+
+    private static void checkLine(LineEditor ed, String text, int cursor,
+            String what)
+    {
+        check(ed.getText().equals(text) && ed.getCursor() == cursor, what +
+                ": the line is \"" + ed.getText() + "\" with the cursor at " +
+                ed.getCursor() + ", expected \"" + text + "\" at " + cursor);
+    }
+
+    /**
+     * Typing and deleting works at both ends of the line, and stops there.
+     */
+    private static void testEditAtEnds()
+    {
+        LineEditor ed = new LineEditor();
+        check(!ed.deleteBackward() && !ed.deleteForward() && !ed.moveLeft() &&
+                !ed.moveRight() && !ed.moveHome() && !ed.moveEnd(),
+                "an edit or move on an empty line did something");
+
+        ed.insert("bcd");
+        checkLine(ed, "bcd", 3, "typed at the end");
+        check(!ed.deleteForward() && !ed.moveRight() && !ed.moveEnd(),
+                "an edit or move past the end did something");
+
+        check(ed.moveHome(), "couldn't move to the start");
+        ed.insert('a');
+        checkLine(ed, "abcd", 1, "typed at the start");
+        ed.moveHome();
+        check(!ed.deleteBackward() && !ed.moveLeft(),
+                "an edit or move before the start did something");
+        check(ed.deleteForward(), "couldn't delete at the start");
+        checkLine(ed, "bcd", 0, "deleted at the start");
+
+        check(ed.moveEnd() && ed.deleteBackward(),
+                "couldn't delete at the end");
+        checkLine(ed, "bc", 2, "deleted at the end");
+        ed.setCursor(99);
+        checkLine(ed, "bc", 2, "cursor set past the end");
+        ed.setCursor(-1);
+        checkLine(ed, "bc", 0, "cursor set before the start");
+    }
+
+    /**
+     * Random edits, many more characters than the buffer starts with, give
+     * the same line as the same edits made to a StringBuilder.
+     */
+    private static void testEditMatchesModel()
+    {
+        Random rand = new Random(7);
+        LineEditor ed = new LineEditor();
+        StringBuilder model = new StringBuilder();
+        int cursor = 0;
+        for (int step = 0; step < 5000; step++)
+        {
+            int op = rand.nextInt(6);
+            if (op == 0)
+            {
+                cursor = rand.nextInt(model.length() + 1);
+                ed.setCursor(cursor);
+            }
+            else if (op == 1 && cursor > 0)
+            {
+                model.deleteCharAt(--cursor);
+                ed.deleteBackward();
+            }
+            else if (op == 2 && cursor < model.length())
+            {
+                model.deleteCharAt(cursor);
+                ed.deleteForward();
+            }
+            else
+            {
+                String s = Integer.toString(rand.nextInt(100000));
+                model.insert(cursor, s);
+                cursor += s.length();
+                ed.insert(s);
+            }
+            if (!ed.getText().equals(model.toString()) ||
+                    ed.getCursor() != cursor || ed.length() != model.length())
+            {
+                checkLine(ed, model.toString(), cursor, "random edit " + step);
+                return;
+            }
+        }
+        check(model.length() > 1000, "the random edits only made a line " +
+                model.length() + " characters long");
+
+        int mid = model.length() / 2;
+        String part = ed.getText(mid - 10, mid + 10);
+        ed.setCursor(mid);
+        check(part.equals(model.substring(mid - 10, mid + 10)) &&
+                ed.getText(mid - 10, mid + 10).equals(part) &&
+                ed.charAt(mid) == model.charAt(mid),
+                "getText and charAt across the gap");
+    }
+
+    /**
+     * A surrogate pair is moved over and deleted as one character, and the
+     * cursor can't be put between its halves.
+     */
+    private static void testSurrogatePairs()
+    {
+        LineEditor ed = new LineEditor();
+        ed.insert("a" + PAIR + "b");
+        ed.setCursor(2);
+        check(ed.getCursor() == 1, "the cursor was put inside a pair");
+        ed.moveRight();
+        check(ed.getCursor() == 3, "moving right stopped inside a pair");
+        ed.moveLeft();
+        check(ed.getCursor() == 1, "moving left stopped inside a pair");
+
+        ed.deleteForward();
+        checkLine(ed, "ab", 1, "deleted a pair forward");
+        ed.insert(PAIR);
+        ed.deleteBackward();
+        checkLine(ed, "ab", 1, "deleted a pair backward");
+    }
+
+    /**
+     * Each edit records the first position it changed, and moving the cursor
+     * records nothing.
+     */
+    private static void testChangeStart()
+    {
+        LineEditor ed = new LineEditor();
+        ed.insert("hello world");
+        ed.clearChanges();
+        ed.setCursor(3);
+        check(ed.getChangeStart() == -1, "moving the cursor was a change");
+
+        ed.insert('X');
+        ed.moveEnd();
+        ed.deleteBackward();
+        check(ed.getChangeStart() == 3, "change starts at " +
+                ed.getChangeStart() + ", expected 3");
+
+        ed.clearChanges();
+        ed.deleteBackward();
+        check(ed.getChangeStart() == 10, "deleting at the end changes " +
+                "from " + ed.getChangeStart() + ", expected 10");
+
+        ed.clearChanges();
+        ed.setText("helXlo world!");
+        check(ed.getChangeStart() == 10, "replacing the line changes from " +
+                ed.getChangeStart() + ", expected 10");
+
+        ed.setText("x" + PAIR);
+        ed.clearChanges();
+        ed.setText("x\ud83d\ude01");
+        check(ed.getChangeStart() == 1, "a changed pair changes from " +
+                ed.getChangeStart() + ", expected 1");
+    }
+
+    /**
+     * The history keeps the most recent lines, and skips empty lines and
+     * repeats of the last line.
+     */
+    private static void testHistoryLimit()
+    {
+        LineEditor ed = new LineEditor(3);
+        ed.addHistory("one");
+        ed.addHistory("");
+        ed.addHistory("two");
+        ed.addHistory("two");
+        check(ed.getHistoryCount() == 2, "history holds " +
+                ed.getHistoryCount() + " lines, expected 2");
+
+        ed.addHistory("three");
+        ed.addHistory("four");
+        ed.addHistory("five");
+        check(ed.getHistoryCount() == 3 && ed.getHistory(0).equals("five") &&
+                ed.getHistory(2).equals("three"),
+                "a full history didn't drop its oldest lines");
+
+        LineEditor none = new LineEditor(0);
+        none.addHistory("one");
+        check(none.getHistoryCount() == 0 && !none.historyPrevious(),
+                "a history of size 0 kept a line");
+    }
+
+    /**
+     * Browsing the history only shows lines that start with the text before
+     * the cursor, and going past the newest one brings back what was typed.
+     */
+    private static void testHistorySearch()
+    {
+        LineEditor ed = new LineEditor();
+        String[] lines = { "make", "ls -l", "make test", "ls", "make clean" };
+        for (String line : lines)
+        {
+            ed.addHistory(line);
+        }
+
+        ed.insert("make foo");
+        ed.setCursor(2);
+        check(ed.historyPrevious(), "no history found for \"ma\"");
+        checkLine(ed, "make clean", 10, "newest match");
+        ed.historyPrevious();
+        checkLine(ed, "make test", 9, "second match");
+        ed.historyPrevious();
+        checkLine(ed, "make", 4, "oldest match");
+        check(!ed.historyPrevious(), "found a match older than the oldest");
+        checkLine(ed, "make", 4, "after the oldest match");
+
+        check(ed.historyNext(), "couldn't go forward in the history");
+        checkLine(ed, "make test", 9, "forward a match");
+        ed.historyNext();
+        checkLine(ed, "make clean", 10, "forward to the newest match");
+        check(ed.historyNext(), "couldn't go back to the typed line");
+        checkLine(ed, "make foo", 8, "typed line brought back");
+        check(!ed.historyNext(), "went forward while not browsing");
+
+        // an edit ends the search, so the next one uses the new text.
+        ed.setText("");
+        ed.historyPrevious();
+        ed.deleteBackward();
+        checkLine(ed, "make clea", 9, "edited a history line");
+        ed.setText("l");
+        ed.historyPrevious();
+        checkLine(ed, "ls", 2, "search after an edit");
+        ed.historyPrevious();
+        checkLine(ed, "ls -l", 5, "second search after an edit");
+    }
+
+    /**
+     * One completion replaces the word; several extend it by what they have
+     * in common, and are kept to be listed.
+     */
+    private static void testCompletion()
+    {
+        LineEditor ed = new LineEditor();
+        ed.insert("he");
+        check(!ed.complete(), "completed with no completer");
+
+        ed.setCompleter(WORDS);
+        check(ed.complete(), "couldn't complete \"he\"");
+        checkLine(ed, "help", 4, "one completion");
+
+        ed.setText("git s now");
+        ed.setCursor(5);
+        ed.clearChanges();
+        check(ed.complete(), "couldn't complete \"s\"");
+        checkLine(ed, "git st now", 6, "common part of several completions");
+        check(ed.getCompletions().size() == 4, "found " +
+                ed.getCompletions().size() + " completions, expected 4");
+        check(ed.getChangeStart() == 5, "completion changes from " +
+                ed.getChangeStart() + ", expected 5");
+
+        check(!ed.complete(), "completed with nothing more in common");
+        ed.insert('o');
+        check(ed.complete(), "couldn't complete \"sto\"");
+        checkLine(ed, "git stop now", 8, "completion before more text");
+
+        ed.setText("x");
+        check(!ed.complete() && ed.getCompletions().isEmpty(),
+                "completed a word with no completions");
+    }
+}
@@ -0,0 +1,140 @@
+package com.abstrys.consolekit;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A widget that displays a scrolling list of items, one per line, with one
+ * item selected.  Only the items that are in view are drawn, so the cost of
+ * redrawing the list doesn't depend on how many items it holds.
+ */
+public class ListWidget extends Widget
+{
+    private ArrayList<String> items;
+    private int selected;
+    private int top;
+    private int rows;
+
+    /**
+     * Constructs a new, empty ListWidget.
+     */
+    public ListWidget()
+    {
+        this.items = new ArrayList<String>();
+        this.selected = -1;
+        this.top = 0;
+        this.rows = 1;
+    }
+
+    /**
+     * Replaces all of the items in the list.  The first item is selected.
+     * @param list the new items.
+     */
+    public void setItems(List<String> list)
+    {
+        items = new ArrayList<String>(list);
+        selected = items.isEmpty() ? -1 : 0;
+        top = 0;
+        damage();
+    }
+
+    /**
+     * Adds an item to the end of the list.  The list is only damaged if the
+     * new item would be in view.
+     * @param item the item to add.
+     */
+    public void addItem(String item)
+    {
+        items.add(item);
+        if (selected < 0)
+        {
+            selected = 0;
+            damage();
+        }
+        else if (items.size() - 1 < top + rows)
+        {
+            damage();
+        }
+    }
+
+    public int getItemCount()
+    {
+        return items.size();
+    }
+
+    public String getItem(int i)
+    {
+        return items.get(i);
+    }
+
+    /**
+     * Selects an item, scrolling the list if needed to bring it into view.
+     * @param i the index of the item to select.  This is constrained to the
+     * range of items in the list.
+     */
+    public void setSelected(int i)
+    {
+        if (items.isEmpty())
+        {
+            return;
+        }
+        i = Math.max(0, Math.min(i, items.size() - 1));
+        if (i == selected)
+        {
+            return;
+        }
+        selected = i;
+        if (selected < top)
+        {
+            top = selected;
+        }
+        else if (selected >= top + rows)
+        {
+            top = selected - rows + 1;
+        }
+        damage();
+    }
+
+    /**
+     * Gets the index of the selected item.
+     * @return the selected index, or -1 if the list is empty.
+     */
+    public int getSelected()
+    {
+        return selected;
+    }
+
+    /**
+     * Moves the selection up or down the list.
+     * @param delta the number of items to move by; negative values move up.
+     */
+    public void moveSelection(int delta)
+    {
+        setSelected(selected + delta);
+    }
+
+    @Override
+    protected void paintContent(TerminalData td, int cx, int cy, int cw,
+            int ch)
+    {
+        rows = Math.max(ch, 1);
+        if (selected >= top + rows)
+        {
+            top = selected - rows + 1;
+        }
+
+        for (int r = 0; r < ch; r++)
+        {
+            int i = top + r;
+            if (i < items.size())
+            {
+                td.setText(((i == selected) ? "> " : "  ") + items.get(i), cx,
+                        cy + r, cw);
+            }
+            else
+            {
+                td.setText("", cx, cy + r, cw);
+            }
+        }
+    }
+}
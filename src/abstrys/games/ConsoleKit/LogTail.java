@@ -0,0 +1,239 @@
+package com.abstrys.consolekit;
+
+import java.util.ArrayDeque;
+import javax.swing.SwingUtilities;
+
+/**
+ * Feeds lines of log output from any number of producer threads into a
+ * TerminalPanel.  Lines are held in a bounded queue and printed on the event
+ * dispatch thread in batches, with one repaint per batch, so the display stays
+ * responsive no matter how fast lines arrive.  When the queue is full, the
+ * overload policy decides what happens to new lines:
+ * <ul>
+ * <li>BLOCK makes the producer wait for room.  This must not be used from the
+ * event dispatch thread.</li>
+ * <li>DROP_OLDEST throws away the oldest queued line.</li>
+ * <li>SAMPLE keeps only one line in every sample-rate lines, dropping the
+ * oldest queued line to make room for it.</li>
+ * <li>COLLAPSE folds a line that repeats the last queued line into a
+ * "&times;N" count on that line, and otherwise drops the oldest line.  Lines
+ * are only folded while the queue is full, so a repeated line that arrives
+ * when there is room is queued and printed as it is.</li>
+ * </ul>
+ * Lines that a batch would print only to scroll them off the top of the data
+ * before it's painted are skipped, and counted as dropped.
+ */
+public class LogTail
+{
+    /**
+     * Constants used to define what happens to new lines when the queue is
+     * full.
+     */
+    public enum OverloadPolicy
+    {
+        BLOCK, DROP_OLDEST, SAMPLE, COLLAPSE
+    };
+
+    private static class Entry
+    {
+        final String text;
+        int count = 1;
+
+        Entry(String text)
+        {
+            this.text = text;
+        }
+    }
+
+    // the most lines printed before giving the event thread a chance to
+    // paint.
+    private static final int MAX_BATCH = 4096;
+
+    private final TerminalPanel panel;
+    private final ArrayDeque<Entry> queue;
+    private final int capacity;
+    private OverloadPolicy policy;
+    private int sampleRate;
+    private int sampleCounter;
+    private long droppedCount;
+    private long collapsedCount;
+    private boolean drainScheduled;
+
+    private final Runnable drainAction = new Runnable()
+    {
+        public void run()
+        {
+            drain();
+        }
+    };
+
+    /**
+     * Constructs a new LogTail.
+     * @param panel the panel to print lines to.
+     * @param capacity the most lines that can be waiting to be printed.
+     * @param policy what to do with new lines when the queue is full.
+     */
+    public LogTail(TerminalPanel panel, int capacity, OverloadPolicy policy)
+    {
+        this.panel = panel;
+        this.queue = new ArrayDeque<Entry>(capacity);
+        this.capacity = capacity;
+        this.policy = policy;
+        this.sampleRate = 10;
+        this.sampleCounter = 0;
+        this.droppedCount = 0;
+        this.collapsedCount = 0;
+        this.drainScheduled = false;
+    }
+
+    /**
+     * Sets the overload policy.
+     * @param policy what to do with new lines when the queue is full.
+     */
+    public synchronized void setPolicy(OverloadPolicy policy)
+    {
+        this.policy = policy;
+        notifyAll();
+    }
+
+    /**
+     * Sets how many lines arrive for each line kept by the SAMPLE policy.
+     * @param rate the sample rate.
+     */
+    public synchronized void setSampleRate(int rate)
+    {
+        sampleRate = Math.max(rate, 1);
+    }
+
+    /**
+     * Adds a line to the log.  This may be called from any thread.
+     * @param line the line to add, without a trailing newline.
+     */
+    public synchronized void append(String line)
+    {
+        if (queue.size() >= capacity)
+        {
+            Entry last = queue.peekLast();
+            if (policy == OverloadPolicy.COLLAPSE && last != null &&
+                    last.text.equals(line))
+            {
+                last.count++;
+                collapsedCount++;
+                return;
+            }
+
+            if (policy == OverloadPolicy.BLOCK)
+            {
+                while (queue.size() >= capacity &&
+                        policy == OverloadPolicy.BLOCK)
+                {
+                    try
+                    {
+                        wait();
+                    }
+                    catch (InterruptedException ex)
+                    {
+                        Thread.currentThread().interrupt();
+                        droppedCount++;
+                        return;
+                    }
+                }
+            }
+            else if (policy == OverloadPolicy.SAMPLE &&
+                    ++sampleCounter % sampleRate != 0)
+            {
+                droppedCount++;
+                return;
+            }
+
+            if (queue.size() >= capacity)
+            {
+                queue.removeFirst();
+                droppedCount++;
+            }
+        }
+
+        queue.addLast(new Entry(line));
+        if (!drainScheduled)
+        {
+            drainScheduled = true;
+            SwingUtilities.invokeLater(drainAction);
+        }
+    }
+
+    /**
+     * Gets the number of lines that were thrown away because the queue was
+     * full, or skipped because they would have scrolled off the top of the
+     * data in the batch they were printed in.
+     * @return the dropped line count.
+     */
+    public synchronized long getDroppedCount()
+    {
+        return droppedCount;
+    }
+
+    /**
+     * Gets the number of lines that were folded into the count of the line
+     * before them by the COLLAPSE policy.
+     * @return the collapsed line count.
+     */
+    public synchronized long getCollapsedCount()
+    {
+        return collapsedCount;
+    }
+
+    /**
+     * Gets the number of lines waiting to be printed.
+     * @return the queued line count.
+     */
+    public synchronized int getQueuedCount()
+    {
+        return queue.size();
+    }
+
+    /**
+     * Prints a batch of queued lines.  Runs on the event dispatch thread.
+     */
+    private void drain()
+    {
+        // every line takes at least one row, so lines that would scroll off
+        // the top of the data within this batch don't need to be printed.
+        int height = panel.getData().getHeight();
+        Entry[] batch;
+        int first;
+        boolean more;
+        synchronized (this)
+        {
+            batch = new Entry[Math.min(queue.size(), MAX_BATCH)];
+            for (int i = 0; i < batch.length; i++)
+            {
+                batch[i] = queue.removeFirst();
+            }
+            first = Math.max(0, batch.length - height);
+            droppedCount += first;
+            more = !queue.isEmpty();
+            drainScheduled = more;
+            notifyAll();
+        }
+        if (more)
+        {
+            SwingUtilities.invokeLater(drainAction);
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = first; i < batch.length; i++)
+        {
+            sb.append(batch[i].text);
+            if (batch[i].count > 1)
+            {
+                sb.append(" \u00d7").append(batch[i].count);
+            }
+            sb.append('\n');
+        }
+        if (sb.length() > 0)
+        {
+            panel.print(sb.toString());
+            panel.repaint();
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package com.abstrys.consolekit;
+
+import java.util.concurrent.CountDownLatch;
+import javax.swing.SwingUtilities;
+
+/**
+ * Tests for LogTail's overload policies.  Run them with "ant test"; any
+ * failure is reported and makes the run exit with an error.  Each test holds
+ * up the event dispatch thread while it appends lines, so that nothing is
+ * drained until the queue is in the state the test wants.
+ */
+public class LogTailTest
+{
+    private static int failures = 0;
+
+    private static final Runnable NOTHING = new Runnable()
+    {
+        public void run()
+        {
+        }
+    };
+
+    public static void main(String[] args) throws Exception
+    {
+        testBlock();
+        testDropOldest();
+        testSample();
+        testCollapse();
+        testSkippedLinesAreDropped();
+
+        if (failures > 0)
+        {
+            System.out.println(failures + " LogTail test(s) failed.");
+            System.exit(1);
+        }
+        System.out.println("All LogTail tests passed.");
+    }
+
+    private static void check(boolean ok, String what)
+    {
+        if (!ok)
+        {
+            failures++;
+            System.out.println("FAILED: " + what);
+        }
+    }
+
+    /**
+     * Holds up the event dispatch thread until the latch returned is counted
+     * down.
+     */
+    private static CountDownLatch holdEventThread() throws InterruptedException
+    {
+        final CountDownLatch held = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        SwingUtilities.invokeLater(new Runnable()
+        {
+            public void run()
+            {
+                held.countDown();
+                try
+                {
+                    release.await();
+                }
+                catch (InterruptedException ex)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        held.await();
+        return release;
+    }
+
+    /**
+     * Waits until every queued line has been printed.  Each drain schedules
+     * the next one, so this waits on the event thread until the queue is
+     * empty, and once more for the drain that emptied it to finish printing.
+     */
+    private static void drainAll(LogTail tail) throws Exception
+    {
+        while (tail.getQueuedCount() > 0)
+        {
+            SwingUtilities.invokeAndWait(NOTHING);
+        }
+        SwingUtilities.invokeAndWait(NOTHING);
+    }
+
+    /**
+     * Gets the lines printed to a panel, from the top of the data to the
+     * cursor, separated by '|'.
+     */
+    private static String shown(TerminalPanel panel)
+    {
+        TerminalData td = panel.getData();
+        StringBuilder sb = new StringBuilder();
+        for (int y = 0; y < td.getCursor().y; y++)
+        {
+            if (y > 0)
+            {
+                sb.append('|');
+            }
+            sb.append(td.getLine(y), 0, td.getLineLength(y));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * A producer appending to a full queue under BLOCK must wait for the
+     * queue to drain, and then add its lines without dropping any.
+     */
+    private static void testBlock() throws Exception
+    {
+        TerminalPanel panel = new TerminalPanel(40, 10);
+        final LogTail tail = new LogTail(panel, 3, LogTail.OverloadPolicy.BLOCK);
+        CountDownLatch release = holdEventThread();
+        Thread producer = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                for (char ch = 'a'; ch <= 'e'; ch++)
+                {
+                    tail.append(String.valueOf(ch));
+                }
+            }
+        });
+        producer.start();
+
+        long giveUp = System.currentTimeMillis() + 5000;
+        while (producer.getState() != Thread.State.WAITING &&
+                System.currentTimeMillis() < giveUp)
+        {
+            Thread.sleep(10);
+        }
+        check(producer.getState() == Thread.State.WAITING,
+                "BLOCK: the producer didn't wait on a full queue");
+        check(tail.getQueuedCount() == 3, "BLOCK: " + tail.getQueuedCount() +
+                " lines queued, expected 3");
+
+        release.countDown();
+        producer.join(5000);
+        check(!producer.isAlive(),
+                "BLOCK: the producer was still waiting after the queue drained");
+        drainAll(tail);
+        check(shown(panel).equals("a|b|c|d|e"), "BLOCK: printed \"" +
+                shown(panel) + "\", expected \"a|b|c|d|e\"");
+        check(tail.getDroppedCount() == 0, "BLOCK: dropped " +
+                tail.getDroppedCount() + " lines, expected 0");
+    }
+
+    /**
+     * DROP_OLDEST keeps the newest lines, and counts the rest as dropped.
+     */
+    private static void testDropOldest() throws Exception
+    {
+        TerminalPanel panel = new TerminalPanel(40, 10);
+        LogTail tail = new LogTail(panel, 3,
+                LogTail.OverloadPolicy.DROP_OLDEST);
+        CountDownLatch release = holdEventThread();
+        for (int i = 1; i <= 6; i++)
+        {
+            tail.append(String.valueOf(i));
+        }
+        check(tail.getQueuedCount() == 3, "DROP_OLDEST: " +
+                tail.getQueuedCount() + " lines queued, expected 3");
+        release.countDown();
+        drainAll(tail);
+        check(shown(panel).equals("4|5|6"), "DROP_OLDEST: printed \"" +
+                shown(panel) + "\", expected \"4|5|6\"");
+        check(tail.getDroppedCount() == 3, "DROP_OLDEST: dropped " +
+                tail.getDroppedCount() + " lines, expected 3");
+    }
+
+    /**
+     * SAMPLE queues lines as usual while there's room, and then keeps one
+     * line in every sample-rate lines, in place of the oldest queued line.
+     */
+    private static void testSample() throws Exception
+    {
+        TerminalPanel panel = new TerminalPanel(40, 10);
+        LogTail tail = new LogTail(panel, 2, LogTail.OverloadPolicy.SAMPLE);
+        tail.setSampleRate(3);
+        CountDownLatch release = holdEventThread();
+        for (int i = 1; i <= 8; i++)
+        {
+            tail.append(String.valueOf(i));
+        }
+
+        // 1 and 2 fill the queue; 5 and 8 are the third and sixth lines
+        // to arrive when it's full, and each takes the oldest line's place.
+        release.countDown();
+        drainAll(tail);
+        check(shown(panel).equals("5|8"), "SAMPLE: printed \"" +
+                shown(panel) + "\", expected \"5|8\"");
+        check(tail.getDroppedCount() == 6, "SAMPLE: dropped " +
+                tail.getDroppedCount() + " lines, expected 6");
+    }
+
+    /**
+     * COLLAPSE only folds repeated lines while the queue is full, and drops
+     * the oldest line to make room for a line that isn't a repeat.
+     */
+    private static void testCollapse() throws Exception
+    {
+        TerminalPanel panel = new TerminalPanel(40, 10);
+        LogTail tail = new LogTail(panel, 3, LogTail.OverloadPolicy.COLLAPSE);
+        CountDownLatch release = holdEventThread();
+        String[] lines = { "x", "x", "y", "y", "y", "z" };
+        for (String line : lines)
+        {
+            tail.append(line);
+        }
+        check(tail.getCollapsedCount() == 2, "COLLAPSE: collapsed " +
+                tail.getCollapsedCount() + " lines, expected 2");
+        release.countDown();
+        drainAll(tail);
+
+        String expected = "x|y \u00d73|z";
+        check(shown(panel).equals(expected), "COLLAPSE: printed \"" +
+                shown(panel) + "\", expected \"" + expected + "\"");
+        check(tail.getDroppedCount() == 1, "COLLAPSE: dropped " +
+                tail.getDroppedCount() + " lines, expected 1");
+    }
+
+    /**
+     * Lines that a drain skips, because they would scroll off the top of the
+     * data before the batch is painted, are counted as dropped.
+     */
+    private static void testSkippedLinesAreDropped() throws Exception
+    {
+        TerminalPanel panel = new TerminalPanel(40, 10);
+        int h = panel.getData().getHeight();
+        LogTail tail = new LogTail(panel, h * 3,
+                LogTail.OverloadPolicy.DROP_OLDEST);
+        CountDownLatch release = holdEventThread();
+        for (int i = 0; i < h * 2; i++)
+        {
+            tail.append("line " + i);
+        }
+        release.countDown();
+        drainAll(tail);
+
+        TerminalData td = panel.getData();
+        String top = new String(td.getLine(0), 0, td.getLineLength(0));
+        check(top.equals("line " + h), "skipping: the top line is \"" + top +
+                "\", expected \"line " + h + "\"");
+        check(tail.getDroppedCount() == h, "skipping: dropped " +
+                tail.getDroppedCount() + " lines, expected " + h);
+    }
+}
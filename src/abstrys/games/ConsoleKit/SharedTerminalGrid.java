@@ -0,0 +1,500 @@
+package com.abstrys.consolekit;
+
+import java.awt.Point;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Shares the contents of a TerminalData object with another process through a
+ * memory-mapped file, so that game logic running in one JVM can be shown by a
+ * TerminalPanel in another without sending its output over a socket.
+ * <p>
+ * This is not a storage mode for TerminalData: neither side keeps its data in
+ * the file.  The writer copies the cells that change from its own data into
+ * the file, and the reader copies the lines that changed from the file into a
+ * TerminalData object of its own, which is what its panel draws from.  So
+ * each update is copied twice, once on each side, but only the changed lines
+ * are copied rather than the whole grid.
+ * <p>
+ * The writer is created with createWriter.  It observes the data, and each
+ * time the data's changes are flushed (see TerminalData.flushChanges) it
+ * writes the changed cells, the cursor and the line count straight into the
+ * mapped file.  The reader is created with openReader, and readInto brings a
+ * TerminalData object in the other process up to date from the file, copying
+ * only the lines written since it last looked.
+ * <p>
+ * The lines are kept in the file as a ring, each in the slot given by its line
+ * number plus the scroll count, so lines scrolling off the top don't move the
+ * rest.  Each slot holds the line's length and the sequence number of the
+ * update that last wrote it.
+ * <p>
+ * Updates are made consistent with a sequence lock: the writer makes the
+ * sequence number odd while it writes and even again when it is done, and the
+ * reader only uses what it copied if the number was even and unchanged from
+ * before it started to after it finished.  The reader never waits for the
+ * writer; if an update is under way, readInto returns and can be tried again.
+ * <p>
+ * Both processes must run on the same machine.  The file holds the data's
+ * current dimensions; if the writer's data is resized, the file grows to
+ * match and the reader's data is given the new dimensions as it is.  The
+ * file is never truncated, since a reader touching a page of its mapping that
+ * is past the end of the file would crash.
+ */
+public class SharedTerminalGrid implements TerminalDataObserver
+{
+    private static final int MAGIC = 0x41545347; // "ATSG"
+    private static final int VERSION = 1;
+
+    // header layout.
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int SEQ_OFFSET = 8;
+    private static final int RESET_SEQ_OFFSET = 16;
+    private static final int WIDTH_OFFSET = 24;
+    private static final int HEIGHT_OFFSET = 28;
+    private static final int LINE_COUNT_OFFSET = 32;
+    private static final int SCROLL_COUNT_OFFSET = 36;
+    private static final int CURSOR_X_OFFSET = 40;
+    private static final int CURSOR_Y_OFFSET = 44;
+    private static final int HEADER_SIZE = 64;
+
+    // the number of times readInto tries to get a consistent copy before
+    // giving up until the next call.
+    private static final int READ_TRIES = 64;
+
+    // the sequence number is read and written through a VarHandle, which
+    // gives the ordering that the sequence lock relies on.
+    private static final VarHandle SEQ = MethodHandles.byteBufferViewVarHandle(
+            long[].class, ByteOrder.nativeOrder());
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final boolean writer;
+    private MappedByteBuffer buf;
+    private CharBuffer cells;
+    private int width;
+    private int height;
+
+    // writer: the data being shared, and the sequence number of the last
+    // update.  Reader: the sequence number of the last update copied.
+    private TerminalData data;
+    private long seq;
+
+    // reader: the lines copied during a read, before they are known to be
+    // consistent.
+    private char[][] staged;
+    private int[] stagedLine;
+    private int[] stagedLength;
+    private int stagedCount;
+
+    private SharedTerminalGrid(File f, boolean writer) throws IOException
+    {
+        this.file = new RandomAccessFile(f, writer ? "rw" : "r");
+        this.channel = file.getChannel();
+        this.writer = writer;
+        this.buf = null;
+        this.cells = null;
+        this.width = 0;
+        this.height = 0;
+        this.data = null;
+        this.seq = 0;
+        this.staged = new char[0][];
+        this.stagedLine = new int[0];
+        this.stagedLength = new int[0];
+        this.stagedCount = 0;
+    }
+
+    /**
+     * Creates a grid file and shares a TerminalData object through it.  Any
+     * existing file is written over in place rather than truncated, since
+     * readers may still have it mapped, and a grid file left by an earlier
+     * writer has its sequence number carried on so that those readers take up
+     * the new data.  The whole data is written straight away; after that,
+     * changes are written each time they are flushed.
+     * @param f the file to create.
+     * @param td the data to share.
+     * @return the writer, which should be closed when the data is no longer
+     * shared.
+     * @throws IOException if the file can't be created or mapped.
+     */
+    public static SharedTerminalGrid createWriter(File f, TerminalData td)
+            throws IOException
+    {
+        SharedTerminalGrid g = new SharedTerminalGrid(f, true);
+        g.seq = g.lastSeq();
+        g.data = td;
+        g.writeAll(td);
+        td.addObserver(g);
+        return g;
+    }
+
+    /**
+     * Opens a grid file written by another process, to read it with readInto.
+     * @param f the file to open.
+     * @return the reader, which should be closed when it is no longer needed.
+     * @throws IOException if the file can't be opened.
+     */
+    public static SharedTerminalGrid openReader(File f) throws IOException
+    {
+        SharedTerminalGrid g = new SharedTerminalGrid(f, false);
+        g.seq = -1;
+        return g;
+    }
+
+    /**
+     * Gets the sequence number that a new writer carries on from.  Readers
+     * only copy lines stamped after the last update they saw, and only start
+     * again from scratch when the reset sequence number passes it, so the
+     * numbers have to keep rising across writers.
+     * @return the even number at or after the sequence number in the file's
+     * header, or 0 if the file isn't a grid file.
+     */
+    private long lastSeq() throws IOException
+    {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.order(ByteOrder.nativeOrder());
+        while (header.hasRemaining())
+        {
+            if (channel.read(header, header.position()) <= 0)
+            {
+                return 0;
+            }
+        }
+        if (header.getInt(MAGIC_OFFSET) != MAGIC)
+        {
+            return 0;
+        }
+
+        // an odd number is left by a writer that stopped part way through an
+        // update.
+        long last = header.getLong(SEQ_OFFSET);
+        return (last > 0) ? (last + 1) & ~1L : 0;
+    }
+
+    /**
+     * Stops sharing the data, or stops reading, and closes the file.
+     * @throws IOException if the file can't be closed.
+     */
+    public void close() throws IOException
+    {
+        if (data != null)
+        {
+            data.removeObserver(this);
+            data = null;
+        }
+        buf = null;
+        cells = null;
+        file.close();
+    }
+
+    private static long fileSize(int w, int h)
+    {
+        return HEADER_SIZE + (long)h * 12 + (long)h * w * 2;
+    }
+
+    private int stampOffset(int slot)
+    {
+        return HEADER_SIZE + slot * 8;
+    }
+
+    private int lengthOffset(int slot)
+    {
+        return HEADER_SIZE + height * 8 + slot * 4;
+    }
+
+    /**
+     * Maps the file again, if the mapping is too small for the given
+     * dimensions.  The writer grows the file to fit.
+     * @return false if the reader's file isn't big enough yet.
+     */
+    private boolean map(int w, int h) throws IOException
+    {
+        long size = fileSize(w, h);
+        if (buf == null || buf.capacity() < size)
+        {
+            if (size > Integer.MAX_VALUE)
+            {
+                throw new IOException("The grid is too large to map.");
+            }
+            if (writer)
+            {
+                if (file.length() < size)
+                {
+                    file.setLength(size);
+                }
+            }
+            else if (channel.size() < size)
+            {
+                return false;
+            }
+            buf = channel.map(writer ? FileChannel.MapMode.READ_WRITE :
+                    FileChannel.MapMode.READ_ONLY, 0, size);
+            buf.order(ByteOrder.nativeOrder());
+        }
+        if (w != width || h != height || cells == null)
+        {
+            width = w;
+            height = h;
+            buf.position(HEADER_SIZE + h * 12);
+            cells = buf.slice().order(ByteOrder.nativeOrder()).asCharBuffer();
+            buf.position(0);
+        }
+        return true;
+    }
+
+    //
+    // Writer
+    //
+
+    public void terminalDataChanged(TerminalData td, TerminalChangeBatch batch)
+    {
+        try
+        {
+            if (batch.isCleared() || td.getWidth() != width ||
+                    td.getHeight() != height)
+            {
+                writeAll(td);
+            }
+            else
+            {
+                writeChanges(td, batch);
+            }
+        }
+        catch (IOException ex)
+        {
+            // the file couldn't be grown; stop sharing rather than fail every
+            // flush.
+            td.removeObserver(this);
+            data = null;
+        }
+    }
+
+    /**
+     * Makes the sequence number odd, so that readers ignore what they read
+     * until endWrite.
+     */
+    private void beginWrite()
+    {
+        SEQ.setOpaque(buf, SEQ_OFFSET, seq + 1);
+        VarHandle.storeStoreFence();
+    }
+
+    private void endWrite(TerminalData td)
+    {
+        Point cursor = td.getCursor();
+        buf.putInt(LINE_COUNT_OFFSET, td.getLineCount());
+        buf.putInt(SCROLL_COUNT_OFFSET, td.getScrollCount());
+        buf.putInt(CURSOR_X_OFFSET, cursor.x);
+        buf.putInt(CURSOR_Y_OFFSET, cursor.y);
+        seq += 2;
+        SEQ.setRelease(buf, SEQ_OFFSET, seq);
+    }
+
+    /**
+     * Writes the whole data, and marks the file as replaced.
+     */
+    private void writeAll(TerminalData td) throws IOException
+    {
+        map(td.getWidth(), td.getHeight());
+        beginWrite();
+        buf.putInt(MAGIC_OFFSET, MAGIC);
+        buf.putInt(VERSION_OFFSET, VERSION);
+        buf.putInt(WIDTH_OFFSET, width);
+        buf.putInt(HEIGHT_OFFSET, height);
+        buf.putLong(RESET_SEQ_OFFSET, seq + 2);
+        int scroll = td.getScrollCount();
+        for (int slot = 0; slot < height; slot++)
+        {
+            // the slots may be left from other dimensions or an earlier
+            // writer, so their lengths and stamps are all written before
+            // anything relies on them.
+            buf.putInt(lengthOffset(slot), 0);
+            buf.putLong(stampOffset(slot), 0);
+        }
+        for (int y = 0; y < td.getLineCount(); y++)
+        {
+            writeLine(td, y, Math.floorMod(scroll + y, height), 0, width - 1);
+        }
+        endWrite(td);
+    }
+
+    /**
+     * Writes the ranges of cells listed in a batch.
+     */
+    private void writeChanges(TerminalData td, TerminalChangeBatch batch)
+    {
+        beginWrite();
+        int scroll = td.getScrollCount();
+        for (int i = 0; i < batch.getRangeCount(); i++)
+        {
+            int y = batch.getRangeLine(i);
+            if (y >= 0 && y < td.getLineCount())
+            {
+                writeLine(td, y, Math.floorMod(scroll + y, height),
+                        batch.getRangeStart(i), batch.getRangeEnd(i));
+            }
+        }
+        endWrite(td);
+    }
+
+    /**
+     * Writes cells x0 to x1 of a line into its slot.  Cells past the line's
+     * length are never read, so they aren't written; if the line was shorter
+     * than x0 until now, the cells in between are written too, since the slot
+     * may still hold an older line there.
+     */
+    private void writeLine(TerminalData td, int y, int slot, int x0, int x1)
+    {
+        int len = td.getLineLength(y);
+        x0 = Math.min(x0, buf.getInt(lengthOffset(slot)));
+        int end = Math.min(x1 + 1, len);
+        if (end > x0)
+        {
+            cells.position(slot * width + x0);
+            cells.put(td.getLine(y), x0, end - x0);
+        }
+        buf.putInt(lengthOffset(slot), len);
+        buf.putLong(stampOffset(slot), seq + 2);
+    }
+
+    //
+    // Reader
+    //
+
+    /**
+     * Brings a TerminalData object up to date with the grid file, by copying
+     * lines out of the file into it.  Only lines written since the last call
+     * are copied.  If the writer is in the middle
+     * of an update, nothing is changed and false is returned, so this can be
+     * called again later; it never waits for the writer.
+     * @param td the data to update.  It should be used only to show the
+     * shared data, since its contents are replaced by the writer's.
+     * @return true if the data was changed.
+     * @throws IOException if the file can't be mapped.
+     */
+    public boolean readInto(TerminalData td) throws IOException
+    {
+        for (int tries = 0; tries < READ_TRIES; tries++)
+        {
+            if (buf == null && !mapHeader())
+            {
+                return false;
+            }
+
+            long s1 = (long)SEQ.getAcquire(buf, SEQ_OFFSET);
+            if (s1 == seq)
+            {
+                return false;
+            }
+            if ((s1 & 1) != 0 || buf.getInt(MAGIC_OFFSET) != MAGIC)
+            {
+                Thread.onSpinWait();
+                continue;
+            }
+
+            int w = buf.getInt(WIDTH_OFFSET);
+            int h = buf.getInt(HEIGHT_OFFSET);
+            if (w <= 0 || h <= 0 || !map(w, h))
+            {
+                continue;
+            }
+            long resetSeq = buf.getLong(RESET_SEQ_OFFSET);
+            int lineCount = buf.getInt(LINE_COUNT_OFFSET);
+            int scroll = buf.getInt(SCROLL_COUNT_OFFSET);
+            int cursorX = buf.getInt(CURSOR_X_OFFSET);
+            int cursorY = buf.getInt(CURSOR_Y_OFFSET);
+            int appended = (scroll + lineCount) -
+                    (td.getScrollCount() + td.getLineCount());
+            boolean reset = resetSeq > seq || td.getWidth() != w ||
+                    td.getHeight() != h || appended < 0 || appended > h ||
+                    scroll < td.getScrollCount() || lineCount > h;
+
+            // copy the lines that have changed, then check that the writer
+            // didn't change anything while they were being copied.
+            stagedCount = 0;
+            for (int y = 0; y < lineCount && y < h; y++)
+            {
+                int slot = Math.floorMod(scroll + y, h);
+                if (reset || buf.getLong(stampOffset(slot)) > seq)
+                {
+                    stageLine(y, slot);
+                }
+            }
+            VarHandle.loadLoadFence();
+            long s2 = (long)SEQ.getOpaque(buf, SEQ_OFFSET);
+            if (s1 != s2)
+            {
+                Thread.onSpinWait();
+                continue;
+            }
+
+            if (reset)
+            {
+                td.reset(w, h, lineCount, scroll);
+            }
+            else
+            {
+                td.appendLines(appended);
+            }
+            for (int i = 0; i < stagedCount; i++)
+            {
+                td.copyLine(staged[i], stagedLength[i], stagedLine[i]);
+            }
+            td.restoreCursor(cursorX, cursorY);
+            seq = s1;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Maps enough of the reader's file to read its header.
+     * @return false if the writer hasn't written the header yet.
+     */
+    private boolean mapHeader() throws IOException
+    {
+        if (channel.size() < HEADER_SIZE)
+        {
+            return false;
+        }
+        buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+        buf.order(ByteOrder.nativeOrder());
+        return true;
+    }
+
+    /**
+     * Copies a line out of its slot, to be applied once the read is known to
+     * be consistent.
+     */
+    private void stageLine(int y, int slot)
+    {
+        if (stagedCount == staged.length)
+        {
+            int n = Math.max(16, stagedCount * 2);
+            staged = Arrays.copyOf(staged, n);
+            stagedLine = Arrays.copyOf(stagedLine, n);
+            stagedLength = Arrays.copyOf(stagedLength, n);
+        }
+        int i = stagedCount++;
+        if (staged[i] == null || staged[i].length < width)
+        {
+            staged[i] = new char[width];
+        }
+
+        // the length is checked, since a torn read may give any value.
+        int len = Math.max(0, Math.min(buf.getInt(lengthOffset(slot)), width));
+        cells.position(slot * width);
+        cells.get(staged[i], 0, len);
+        stagedLine[i] = y;
+        stagedLength[i] = len;
+    }
+}
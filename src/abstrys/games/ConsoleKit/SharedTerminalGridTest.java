@@ -0,0 +1,310 @@
+package com.abstrys.consolekit;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Regression tests for SharedTerminalGrid.  Run them with "ant test"; any
+ * failure is reported and makes the run exit with an error.  The
+ * cross-process test runs this class again in a second JVM, with the
+ * arguments "writer", the grid file and a frame count, to act as the writer.
+ */
+public class SharedTerminalGridTest
+{
+    private static int failures = 0;
+
+    // the size of the grid, and the number of frames, written by the second
+    // JVM in the cross-process test.
+    private static final int PROCESS_WIDTH = 256;
+    private static final int PROCESS_HEIGHT = 128;
+    private static final int PROCESS_FRAMES = 3000;
+
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length == 3 && args[0].equals("writer"))
+        {
+            writeFrames(new File(args[1]), Integer.parseInt(args[2]));
+            return;
+        }
+
+        testCrossProcess();
+        testWriterRestart();
+        testWriterRestartAtOtherSize();
+        testWriterStopsWhenFileCantGrow();
+
+        if (failures > 0)
+        {
+            System.out.println(failures + " SharedTerminalGrid test(s) failed.");
+            System.exit(1);
+        }
+        System.out.println("All SharedTerminalGrid tests passed.");
+    }
+
+    private static void check(boolean ok, String what)
+    {
+        if (!ok)
+        {
+            failures++;
+            System.out.println("FAILED: " + what);
+        }
+    }
+
+    private static void checkLine(TerminalData td, int y, String expected,
+            String what)
+    {
+        String line = (y < td.getLineCount()) ?
+                new String(td.getLine(y), 0, td.getLineLength(y)) : "";
+        check(line.equals(expected), what + ": line " + y + " is \"" + line +
+                "\", expected \"" + expected + "\"");
+    }
+
+    private static TerminalData share(SharedTerminalGrid[] writer, File f,
+            int w, int h, String text) throws IOException
+    {
+        TerminalData td = new TerminalData(w, h);
+        td.print(text);
+        writer[0] = SharedTerminalGrid.createWriter(f, td);
+        return td;
+    }
+
+    /**
+     * A reader left open while the writer is closed and a new one started on
+     * the same file must take up the new writer's data.
+     */
+    private static void testWriterRestart() throws IOException
+    {
+        File f = File.createTempFile("grid", ".tmp");
+        f.deleteOnExit();
+        SharedTerminalGrid[] writer = new SharedTerminalGrid[1];
+        TerminalData td = share(writer, f, 10, 4, "first\n");
+        SharedTerminalGrid reader = SharedTerminalGrid.openReader(f);
+        TerminalData shown = new TerminalData(1, 1);
+        check(reader.readInto(shown), "reading the first writer");
+        for (int i = 0; i < 5; i++)
+        {
+            td.print("more\n");
+            td.flushChanges();
+            reader.readInto(shown);
+        }
+        writer[0].close();
+
+        // the new writer's data carries on past the reader's, so only the
+        // sequence number can tell the reader that it was replaced.
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 8; i++)
+        {
+            sb.append("second\n");
+        }
+        share(writer, f, 10, 4, sb.append("last").toString());
+        check(reader.readInto(shown), "reading a restarted writer");
+        checkLine(shown, 0, "second", "restarted writer");
+        checkLine(shown, 3, "last", "restarted writer");
+        writer[0].close();
+        reader.close();
+    }
+
+    /**
+     * A new writer with other dimensions reuses the file without shrinking it,
+     * and slots left from the old layout aren't taken for new lines.
+     */
+    private static void testWriterRestartAtOtherSize() throws IOException
+    {
+        File f = File.createTempFile("grid", ".tmp");
+        f.deleteOnExit();
+        SharedTerminalGrid[] writer = new SharedTerminalGrid[1];
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 8; i++)
+        {
+            sb.append("xxxxxxxxxxxxxxxxxxxx\n");
+        }
+        share(writer, f, 20, 8, sb.toString());
+        SharedTerminalGrid reader = SharedTerminalGrid.openReader(f);
+        TerminalData shown = new TerminalData(1, 1);
+        reader.readInto(shown);
+        writer[0].close();
+        long size = f.length();
+
+        TerminalData td = share(writer, f, 6, 30, "a");
+        check(f.length() >= size, "the file shrank from " + size + " to " +
+                f.length());
+        check(reader.readInto(shown), "reading a writer at another size");
+        td.print("\n\n\nb");
+        td.flushChanges();
+        reader.readInto(shown);
+        check(shown.getWidth() == 6 && shown.getHeight() == 30,
+                "writer at another size: data is " + shown.getWidth() + "x" +
+                shown.getHeight());
+        checkLine(shown, 0, "a", "writer at another size");
+        checkLine(shown, 1, "", "writer at another size");
+        checkLine(shown, 2, "", "writer at another size");
+        checkLine(shown, 3, "b", "writer at another size");
+        writer[0].close();
+        reader.close();
+    }
+
+    /**
+     * When the file can't be grown to fit the data, the writer stops sharing
+     * from inside flushChanges, which must carry on without it.
+     */
+    private static void testWriterStopsWhenFileCantGrow() throws IOException
+    {
+        File f = File.createTempFile("grid", ".tmp");
+        f.deleteOnExit();
+        SharedTerminalGrid[] writer = new SharedTerminalGrid[1];
+        TerminalData td = share(writer, f, 10, 4, "shared");
+        SharedTerminalGrid reader = SharedTerminalGrid.openReader(f);
+        TerminalData shown = new TerminalData(1, 1);
+        reader.readInto(shown);
+
+        // too big to map, so writing it fails.
+        td.resize(30000, 40000, 1);
+        try
+        {
+            td.flushChanges();
+            td.print("more");
+            td.flushChanges();
+        }
+        catch (RuntimeException ex)
+        {
+            check(false, "flushChanges threw " + ex + " when the writer " +
+                    "stopped sharing");
+        }
+        check(!reader.readInto(shown), "the writer wrote after it failed");
+        checkLine(shown, 0, "shared", "after the writer failed");
+        writer[0].close();
+        reader.close();
+    }
+
+    /**
+     * Writes numbered frames to a grid file as fast as it can, for the
+     * cross-process test.  Every line of a frame holds the frame's number,
+     * and some frames also scroll, so a reader that sees lines from two
+     * different frames, or lines in the wrong place, has read an update
+     * that was still being written.
+     */
+    private static void writeFrames(File f, int frames) throws IOException
+    {
+        TerminalData td = new TerminalData(PROCESS_WIDTH, PROCESS_HEIGHT);
+        SharedTerminalGrid writer = SharedTerminalGrid.createWriter(f, td);
+        for (int frame = 1; frame <= frames; frame++)
+        {
+            if (frame % 5 == 0)
+            {
+                td.print("\n");
+            }
+            for (int y = 0; y < PROCESS_HEIGHT; y++)
+            {
+                td.setText(String.valueOf(frame), 0, y, PROCESS_WIDTH);
+            }
+            td.flushChanges();
+        }
+        writer.close();
+    }
+
+    /**
+     * Reads a grid file while a second JVM writes to it.  Every read that
+     * succeeds must show a whole frame, no older than the last one seen, and
+     * the reader must end up with the last frame written.
+     */
+    private static void testCrossProcess() throws IOException
+    {
+        File f = File.createTempFile("grid", ".tmp");
+        f.deleteOnExit();
+        String java = System.getProperty("java.home") + File.separator +
+                "bin" + File.separator + "java";
+        Process p = new ProcessBuilder(java, "-cp",
+                System.getProperty("java.class.path"),
+                SharedTerminalGridTest.class.getName(), "writer", f.getPath(),
+                String.valueOf(PROCESS_FRAMES)).inheritIO().start();
+
+        // one reader follows the writer, copying only the lines that change.
+        // A new reader is also opened for every pass; it copies every line,
+        // which keeps it reading for long enough to overlap the writer's
+        // updates even on a single processor.
+        SharedTerminalGrid reader = SharedTerminalGrid.openReader(f);
+        TerminalData shown = new TerminalData(1, 1);
+        int last = 0;
+        int lastFull = 0;
+        int reads = 0;
+        long deadline = System.currentTimeMillis() + 60000;
+        while (last >= 0 && lastFull >= 0 && last < PROCESS_FRAMES &&
+                System.currentTimeMillis() < deadline)
+        {
+            SharedTerminalGrid full = SharedTerminalGrid.openReader(f);
+            TerminalData copy = new TerminalData(1, 1);
+            if (full.readInto(copy))
+            {
+                reads++;
+                lastFull = checkFrame(copy, lastFull, "full read " + reads);
+            }
+            full.close();
+
+            if (reader.readInto(shown))
+            {
+                reads++;
+                last = checkFrame(shown, last, "read " + reads);
+            }
+        }
+        reader.close();
+
+        try
+        {
+            check(p.waitFor() == 0, "the writer process failed");
+        }
+        catch (InterruptedException ex)
+        {
+            p.destroy();
+            check(false, "interrupted waiting for the writer process");
+        }
+        if (last >= 0 && lastFull >= 0)
+        {
+            check(last == PROCESS_FRAMES, "cross-process reader ended at " +
+                    "frame " + last + " of " + PROCESS_FRAMES);
+        }
+    }
+
+    /**
+     * Checks that a read showed a whole frame, no older than the last.
+     * @return the frame shown, or -1 if the check failed.
+     */
+    private static int checkFrame(TerminalData td, int last, String what)
+    {
+        int frame = frameShown(td);
+        if (frame < last)
+        {
+            check(false, "cross-process " + what + " showed " +
+                    ((frame < 0) ? "a torn frame" : "frame " + frame +
+                    " after frame " + last));
+            return -1;
+        }
+        return frame;
+    }
+
+    /**
+     * Gets the number of the frame shown by every line of the data.
+     * @return the frame number, 0 if nothing has been written yet, or -1 if
+     * the lines don't all show the same frame.
+     */
+    private static int frameShown(TerminalData td)
+    {
+        if (td.getWidth() != PROCESS_WIDTH || td.getHeight() != PROCESS_HEIGHT)
+        {
+            return (td.getLineCount() == 0) ? 0 : -1;
+        }
+        String first = null;
+        for (int y = 0; y < PROCESS_HEIGHT; y++)
+        {
+            String line = (y < td.getLineCount()) ? new String(td.getLine(y),
+                    0, td.getLineLength(y)).trim() : "";
+            if (first == null)
+            {
+                first = line;
+            }
+            else if (!line.equals(first))
+            {
+                return -1;
+            }
+        }
+        return first.isEmpty() ? 0 : Integer.parseInt(first);
+    }
+}
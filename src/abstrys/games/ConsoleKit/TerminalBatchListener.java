@@ -0,0 +1,20 @@
+package com.abstrys.consolekit;
+
+/**
+ * A TerminalListener that can receive a run of typed characters in a single
+ * call.  When a block of text is pasted or sent with TerminalPanel.typeText,
+ * each run of characters between newlines and backspaces is passed to
+ * terminalTextTyped instead of calling terminalCharTyped once per character.
+ * Newlines and backspaces are still sent to terminalCharTyped.
+ */
+public interface TerminalBatchListener extends TerminalListener
+{
+    /**
+     * Called when a run of characters has been typed or pasted in a terminal.
+     * The run never contains newline or backspace characters.
+     * @param text the characters typed.
+     * @return true if the characters should be consumed (removed from line
+     * input)
+     */
+    public boolean terminalTextTyped(String text);
+}
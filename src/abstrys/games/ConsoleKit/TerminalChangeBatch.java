@@ -0,0 +1,240 @@
+package com.abstrys.consolekit;
+
+import java.util.Arrays;
+
+/**
+ * Describes the changes made to a TerminalData object between two calls to
+ * its flushChanges function.  Changes to each line are coalesced into a single
+ * range of columns, and the positions in the batch are given in terms of the
+ * data as it is when the batch is delivered, after any scrolling.
+ * <p>
+ * The same batch object is filled in again for each batch, and the changes are
+ * recorded in arrays that are only grown, never replaced for each change, so
+ * collecting changes doesn't create garbage.
+ */
+public class TerminalChangeBatch
+{
+    // changes are recorded per line in a ring indexed by the line's absolute
+    // position (its line number plus the data's scroll count), so that
+    // nothing has to be moved when the data scrolls.  lineAbs holds EMPTY for
+    // a slot that hasn't been changed in this batch; absolute positions can
+    // be negative once history has been reflowed above line 0.
+    private static final int EMPTY = Integer.MIN_VALUE;
+    private final int[] lineAbs;
+    private final int[] lineLeft;
+    private final int[] lineRight;
+    private int[] touched;
+    private int touchedCount;
+
+    // the ranges delivered to observers.
+    private int[] rangeLine;
+    private int[] rangeLeft;
+    private int[] rangeRight;
+    private int rangeCount;
+
+    private int scrolledLines;
+    private boolean cleared;
+    private boolean cursorMoved;
+    private int cursorX;
+    private int cursorY;
+    private int lastScrollCount;
+
+    /**
+     * Constructs a new, empty batch for data of the given height.
+     */
+    TerminalChangeBatch(int height, int scrollCount, int cx, int cy)
+    {
+        this.lineAbs = new int[height];
+        this.lineLeft = new int[height];
+        this.lineRight = new int[height];
+        Arrays.fill(lineAbs, EMPTY);
+        this.touched = new int[Math.min(height, 64)];
+        this.rangeLine = new int[touched.length];
+        this.rangeLeft = new int[touched.length];
+        this.rangeRight = new int[touched.length];
+        this.lastScrollCount = scrollCount;
+        this.cursorX = cx;
+        this.cursorY = cy;
+    }
+
+    /**
+     * Records a change to a range of columns on a line.
+     */
+    void addChange(int abs, int x0, int x1)
+    {
+        int slot = Math.floorMod(abs, lineAbs.length);
+        int prev = lineAbs[slot];
+        if (prev == abs)
+        {
+            if (x0 < lineLeft[slot])
+            {
+                lineLeft[slot] = x0;
+            }
+            if (x1 > lineRight[slot])
+            {
+                lineRight[slot] = x1;
+            }
+            return;
+        }
+        if (prev == EMPTY)
+        {
+            // first change to this slot in the batch.
+            if (touchedCount == touched.length)
+            {
+                touched = Arrays.copyOf(touched, touched.length * 2);
+            }
+            touched[touchedCount++] = slot;
+        }
+        // otherwise the slot held a line that has since scrolled away.
+        lineAbs[slot] = abs;
+        lineLeft[slot] = x0;
+        lineRight[slot] = x1;
+    }
+
+    /**
+     * Records that the whole data was cleared or replaced.
+     */
+    void setCleared()
+    {
+        cleared = true;
+    }
+
+    /**
+     * Returns true if any change has been recorded since the last batch.
+     */
+    boolean hasChanges(int scrollCount, int cx, int cy)
+    {
+        return touchedCount > 0 || cleared || scrollCount != lastScrollCount ||
+                cx != cursorX || cy != cursorY;
+    }
+
+    /**
+     * Turns the recorded changes into the ranges seen by observers.
+     */
+    void prepare(int scrollCount, int cx, int cy)
+    {
+        if (rangeLine.length < touchedCount)
+        {
+            rangeLine = new int[touched.length];
+            rangeLeft = new int[touched.length];
+            rangeRight = new int[touched.length];
+        }
+        rangeCount = 0;
+        for (int i = 0; i < touchedCount; i++)
+        {
+            int slot = touched[i];
+            int y = lineAbs[slot] - scrollCount;
+            if (y >= 0)
+            {
+                rangeLine[rangeCount] = y;
+                rangeLeft[rangeCount] = lineLeft[slot];
+                rangeRight[rangeCount] = lineRight[slot];
+                rangeCount++;
+            }
+        }
+        scrolledLines = Math.max(scrollCount - lastScrollCount, 0);
+        cursorMoved = (cx != cursorX || cy != cursorY);
+        cursorX = cx;
+        cursorY = cy;
+    }
+
+    /**
+     * Empties the batch, ready to record the next one.
+     */
+    void reset(int scrollCount)
+    {
+        for (int i = 0; i < touchedCount; i++)
+        {
+            lineAbs[touched[i]] = EMPTY;
+        }
+        touchedCount = 0;
+        rangeCount = 0;
+        scrolledLines = 0;
+        cleared = false;
+        cursorMoved = false;
+        lastScrollCount = scrollCount;
+    }
+
+    /**
+     * Gets the number of changed ranges in the batch.  There is at most one
+     * range for each line, and ranges are listed in the order that their lines
+     * were first changed.
+     * @return the range count.
+     */
+    public int getRangeCount()
+    {
+        return rangeCount;
+    }
+
+    /**
+     * Gets the line that a changed range is on.
+     * @param i the index of the range.
+     * @return the cartesian y coordinate of the range.
+     */
+    public int getRangeLine(int i)
+    {
+        return rangeLine[i];
+    }
+
+    /**
+     * Gets the first changed column of a range.
+     * @param i the index of the range.
+     * @return the cartesian x coordinate of the first changed character.
+     */
+    public int getRangeStart(int i)
+    {
+        return rangeLeft[i];
+    }
+
+    /**
+     * Gets the last changed column of a range.
+     * @param i the index of the range.
+     * @return the cartesian x coordinate of the last changed character.
+     */
+    public int getRangeEnd(int i)
+    {
+        return rangeRight[i];
+    }
+
+    /**
+     * Gets the number of lines that scrolled off the top of the data during
+     * the batch.  Lines that were unchanged before the scroll have moved up by
+     * this many lines.
+     * @return the number of lines scrolled.
+     */
+    public int getScrolledLines()
+    {
+        return scrolledLines;
+    }
+
+    /**
+     * Returns true if the whole data was cleared or replaced during the batch,
+     * or its lines moved in a way that getScrolledLines can't describe, such
+     * as down when reflowHistory adds lines above them.  Observers should then
+     * treat every line as changed.
+     * @return true if the data was cleared.
+     */
+    public boolean isCleared()
+    {
+        return cleared;
+    }
+
+    /**
+     * Returns true if the cursor moved during the batch.
+     * @return true if the cursor moved.
+     */
+    public boolean isCursorMoved()
+    {
+        return cursorMoved;
+    }
+
+    public int getCursorX()
+    {
+        return cursorX;
+    }
+
+    public int getCursorY()
+    {
+        return cursorY;
+    }
+}
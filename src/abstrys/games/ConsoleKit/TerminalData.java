@@ -1,8 +1,15 @@
 package com.abstrys.consolekit;
 
 import java.awt.Point;
+import java.io.EOFException;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 
 /**
  * A class that stores character data for the TerminalPanel class.
@@ -17,7 +24,24 @@ public class TerminalData
     {
         NONE, CHAR, WORD
     };
+
+    /**
+     * Extra places, beyond whitespace, at which WORD wrapping may break a
+     * line.  HYPHEN and PUNCTUATION allow a break after a hyphen or after
+     * punctuation such as commas and slashes; CJK allows a break before or
+     * after any CJK ideograph, kana or full-width character.
+     */
+    public enum BreakRule
+    {
+        HYPHEN, PUNCTUATION, CJK
+    };
     
+    /**
+     * The character stored in the second cell of a wide character.  Wide
+     * characters take two cells; see CharWidth.
+     */
+    public static final char WIDE_CONTINUATION = '\uffff';
+
     private int width;
     private int height;
     private ArrayList<CharBuffer> lines;
@@ -25,6 +49,63 @@ public class TerminalData
     private int cursorY;
     private int tabSize;
     private WrapBehavior wrapBehavior;
+    private boolean breakHyphen;
+    private boolean breakPunctuation;
+    private boolean breakCJK;
+    private char[] wrapCarry;
+    private int scrollCount;
+    private int dirtyTop;
+    private int dirtyBottom;
+    private ArrayList<TerminalDataObserver> observers;
+    private TerminalChangeBatch changes;
+
+    // how each line ends, kept in step with lines.  A hard break was printed
+    // as a newline; a soft break is where the line wrapped.  An open line
+    // hasn't ended yet.
+    private byte[] breaks;
+
+    // the length of each line, kept in step with lines: every cell from the
+    // length to the end of the line is blank.  A line that has never been
+    // written to, or has been blanked, is null in lines and has a length of
+    // 0; it reads as blankRow, which all such lines share and which is never
+    // written to.
+    private int[] lengths;
+    private char[] blankRow;
+
+    // lines from before the last resize that haven't been reflowed yet,
+    // oldest first.  They sit above line 0, at whatever width they were.
+    private char[][] history;
+    private byte[] historyBreaks;
+    private int historyCount;
+
+    private static final byte BREAK_OPEN = 0;
+    private static final byte BREAK_HARD = 1;
+    private static final byte BREAK_SOFT = 2;
+    // a soft break that dropped a whitespace character when it wrapped.  The
+    // break is BREAK_SPACE plus the character's index in DROPPED, so that
+    // reflow can put back the same character that was dropped.
+    private static final byte BREAK_SPACE = 3;
+
+    // every character other than '\n' that Character.isWhitespace accepts,
+    // and so that WORD wrapping can drop.
+    private static final String DROPPED = " \t\u000b\f\r\u001c\u001d\u001e" +
+            "\u001f\u1680\u2000\u2001\u2002\u2003\u2004\u2005\u2006\u2008" +
+            "\u2009\u200a\u2028\u2029\u205f\u3000";
+
+    private static final int SNAPSHOT_TAG = 0x41544453; // "ATDS"
+
+    // if the snapshot layout changes, increment the version and handle the
+    // older layout in loadSnapshot.  Version 2 added the break rules to the
+    // header, and how each line ended after the header.
+    private static final int SNAPSHOT_VERSION = 2;
+    private static final int SNAPSHOT_V1_HEADER_SIZE = 40;
+    private static final int SNAPSHOT_HEADER_SIZE = 44;
+    private static final int SNAPSHOT_CHUNK_SIZE = 65536;
+
+    // the largest dimensions that loadSnapshot accepts.  Anything bigger is
+    // taken to be a corrupt header rather than allocated.
+    private static final int SNAPSHOT_MAX_WIDTH = 1 << 16;
+    private static final int SNAPSHOT_MAX_HEIGHT = 1 << 20;
 
     /**
      * Constructs a new TerminalData object.
@@ -60,25 +141,246 @@ public class TerminalData
         this.cursorY = 0;
         this.tabSize = ts;
         this.wrapBehavior = wb;
+        this.scrollCount = 0;
+        this.dirtyTop = 0;
+        this.dirtyBottom = -1;
+        this.observers = null;
+        this.changes = null;
+        this.breaks = new byte[16];
+        this.lengths = new int[16];
+        this.blankRow = new char[w];
+        this.history = null;
+        this.historyBreaks = null;
+        this.historyCount = 0;
+    }
+
+    /**
+     * Copies the contents of another TerminalData object.  This is a fast way
+     * to take a snapshot of the data while output continues; the copy can then
+     * be saved with saveSnapshot on another thread.
+     * @param td the TerminalData object to copy.
+     */
+    public TerminalData(TerminalData td)
+    {
+        this(td.width, td.height, td.tabSize, td.wrapBehavior);
+        this.breakHyphen = td.breakHyphen;
+        this.breakPunctuation = td.breakPunctuation;
+        this.breakCJK = td.breakCJK;
+        this.cursorX = td.cursorX;
+        this.cursorY = td.cursorY;
+        this.scrollCount = td.scrollCount;
+        this.lines.ensureCapacity(td.lines.size());
+        for (CharBuffer cb : td.lines)
+        {
+            this.lines.add((cb == null) ? null :
+                    CharBuffer.wrap(cb.array().clone()));
+        }
+        this.breaks = td.breaks.clone();
+        this.lengths = td.lengths.clone();
+
+        // history lines are never written to, so they can be shared.
+        if (td.historyCount > 0)
+        {
+            this.history = Arrays.copyOf(td.history, td.historyCount);
+            this.historyBreaks = Arrays.copyOf(td.historyBreaks,
+                    td.historyCount);
+            this.historyCount = td.historyCount;
+        }
     }
 
     private void addLine()
     {
-        CharBuffer line = CharBuffer.allocate(this.width);
-        lines.add(line);
+        // the line is given storage when something is written to it.
+        lines.add(null);
+        if (breaks.length < lines.size())
+        {
+            breaks = Arrays.copyOf(breaks, breaks.length * 2);
+            lengths = Arrays.copyOf(lengths, breaks.length);
+        }
+        breaks[lines.size() - 1] = BREAK_OPEN;
+        lengths[lines.size() - 1] = 0;
+        markDirty(lines.size() - 1);
 
         // If this new line causes the array to grow larger than the height of
         // the data array, remove the top line.
         while(lines.size() > this.height)
         {
             lines.remove(0);
+            System.arraycopy(breaks, 1, breaks, 0, lines.size());
+            System.arraycopy(lengths, 1, lengths, 0, lines.size());
+            scrollCount++;
+
+            // anything waiting to be reflowed is older than the line that
+            // just went.
+            dropHistory();
             if(cursorY > 0)
             {
                 cursorY--;
             }
+
+            // the dirty range moves up along with the lines it refers to.
+            if (dirtyBottom >= dirtyTop)
+            {
+                dirtyTop = Math.max(dirtyTop - 1, 0);
+                dirtyBottom--;
+            }
+        }
+    }
+
+    /**
+     * Adds a line, or range of lines, to the set of lines that have been
+     * modified since the last call to clearDirty.
+     */
+    private void markDirtyLines(int y0, int y1)
+    {
+        if (dirtyBottom < dirtyTop)
+        {
+            dirtyTop = y0;
+            dirtyBottom = y1;
+            return;
+        }
+        if (y0 < dirtyTop)
+        {
+            dirtyTop = y0;
+        }
+        if (y1 > dirtyBottom)
+        {
+            dirtyBottom = y1;
+        }
+    }
+
+    /**
+     * Marks a block of characters as modified, both for the display and for
+     * any observers.  Column ranges are only recorded when an observer is
+     * attached.
+     */
+    private void markDirty(int x0, int x1, int y0, int y1)
+    {
+        markDirtyLines(y0, y1);
+        if (changes != null)
+        {
+            for (int y = y0; y <= y1; y++)
+            {
+                changes.addChange(y + scrollCount, x0, x1);
+            }
+        }
+    }
+
+    private void markDirty(int y0, int y1)
+    {
+        markDirty(0, width - 1, y0, y1);
+    }
+
+    private void markDirty(int y)
+    {
+        markDirty(0, width - 1, y, y);
+    }
+
+    /**
+     * Adds an observer that is told about changes to the data each time
+     * flushChanges is called.  Until an observer is added, changes are not
+     * recorded at all.
+     * @param o the observer to add.
+     */
+    public void addObserver(TerminalDataObserver o)
+    {
+        if (observers == null)
+        {
+            observers = new ArrayList<TerminalDataObserver>();
+            changes = new TerminalChangeBatch(height, scrollCount, cursorX,
+                    cursorY);
+        }
+        observers.add(o);
+    }
+
+    /**
+     * Removes an observer.  When the last observer is removed, changes stop
+     * being recorded.
+     * @param o the observer to remove.
+     */
+    public void removeObserver(TerminalDataObserver o)
+    {
+        if (observers != null && observers.remove(o) && observers.isEmpty())
+        {
+            observers = null;
+            changes = null;
+        }
+    }
+
+    /**
+     * Delivers the changes made since the last call to every observer, as a
+     * single batch.  Nothing is delivered if there are no changes.  A
+     * TerminalPanel calls this each time it paints; data that isn't displayed
+     * should call it at whatever it treats as the end of a frame.
+     */
+    public void flushChanges()
+    {
+        if (changes == null || !changes.hasChanges(scrollCount, cursorX,
+                cursorY))
+        {
+            return;
+        }
+        // observers may add or remove observers as the batch is delivered,
+        // so it goes to the ones there were when it started.  If the last one
+        // is removed, recording stops and there is no batch left to reset.
+        TerminalChangeBatch batch = changes;
+        batch.prepare(scrollCount, cursorX, cursorY);
+        TerminalDataObserver[] targets = observers.toArray(
+                new TerminalDataObserver[observers.size()]);
+        for (int i = 0; i < targets.length; i++)
+        {
+            targets[i].terminalDataChanged(this, batch);
+        }
+        if (changes == batch)
+        {
+            batch.reset(scrollCount);
         }
     }
 
+    /**
+     * Returns the first line that has been modified since the last call to
+     * clearDirty.
+     * @return the first modified line.  If no lines have been modified, this
+     * will be greater than the value returned by getDirtyBottom.
+     */
+    public int getDirtyTop()
+    {
+        return dirtyTop;
+    }
+
+    /**
+     * Returns the last line that has been modified since the last call to
+     * clearDirty.
+     * @return the last modified line.  If no lines have been modified, this
+     * will be less than the value returned by getDirtyTop.
+     */
+    public int getDirtyBottom()
+    {
+        return dirtyBottom;
+    }
+
+    /**
+     * Marks all lines as unmodified.  This is normally called by the display
+     * once it has drawn the modified lines.
+     */
+    public void clearDirty()
+    {
+        dirtyTop = 0;
+        dirtyBottom = -1;
+    }
+
+    /**
+     * Returns the number of lines that have scrolled off the top of the data
+     * since it was created, less any lines added above line 0 by
+     * reflowHistory.  Adding this to a line number gives a position that stays
+     * the same as the data scrolls.
+     * @return the scroll count
+     */
+    public int getScrollCount()
+    {
+        return scrollCount;
+    }
+
     /**
      * Adds a character array to the end of the data.
      * @param ca the character array to add.  If this is larger in size than
@@ -87,7 +389,89 @@ public class TerminalData
     private void addLine(char[] ca)
     {
         addLine();
-        lines.get(lines.size() - 1).put(ca, 0, (ca.length < width) ? ca.length : width);
+        int n = Math.min(ca.length, width);
+        System.arraycopy(ca, 0, writeLine(lines.size() - 1, 0, n), 0, n);
+    }
+
+    /**
+     * Gets the cells of a line to read.  Lines that haven't been written to
+     * share blankRow.
+     */
+    private char[] readLine(int y)
+    {
+        CharBuffer cb = lines.get(y);
+        return (cb == null) ? blankRow : cb.array();
+    }
+
+    /**
+     * Gets the cells of a line to write cells x0 to x1 - 1 of, giving the line
+     * its own storage if it doesn't have any yet, and extends the line's
+     * length to cover them.
+     */
+    private char[] writeLine(int y, int x0, int x1)
+    {
+        CharBuffer cb = lines.get(y);
+        if (cb == null)
+        {
+            cb = CharBuffer.allocate(width);
+            lines.set(y, cb);
+        }
+        if (x1 > lengths[y])
+        {
+            lengths[y] = Math.min(x1, width);
+        }
+        return cb.array();
+    }
+
+    /**
+     * Blanks cells x0 to x1 - 1 of a line.  If this blanks the end of the
+     * line, its length is trimmed back to the last cell that isn't blank, and
+     * a line left with nothing in it gives up its storage.
+     */
+    private void blankCells(int y, int x0, int x1)
+    {
+        int len = lengths[y];
+        if (x0 >= len)
+        {
+            return;
+        }
+        char[] line = lines.get(y).array();
+        if (x1 < len)
+        {
+            Arrays.fill(line, x0, x1, '\0');
+            return;
+        }
+        Arrays.fill(line, x0, len, '\0');
+        while (x0 > 0 && line[x0 - 1] == '\0')
+        {
+            x0--;
+        }
+        lengths[y] = x0;
+        if (x0 == 0)
+        {
+            lines.set(y, null);
+        }
+    }
+
+    /**
+     * Copies w cells of line sy to line dy.  Only the part of the source that
+     * isn't blank is copied; a blank line that only blank cells are copied to
+     * stays without storage.
+     */
+    private void copyCells(int sx, int sy, int dx, int dy, int w)
+    {
+        int n = Math.min(w, lengths[sy] - sx);
+        if (n > 0)
+        {
+            System.arraycopy(lines.get(sy).array(), sx,
+                    writeLine(dy, dx, dx + n), dx, n);
+        }
+        else
+        {
+            n = 0;
+        }
+        blankCells(dy, dx + n, dx + w);
+        breakPairs(dy, dx, dx + w);
     }
 
     /**
@@ -99,25 +483,66 @@ public class TerminalData
      */
     public char getChar(int x, int y)
     {
-        if (lines.size() >= y)
+        if (x >= 0 && x < width && y >= 0 && y < lines.size())
         {
-            return lines.get(y).charAt(x);
+            return readLine(y)[x];
         }
 
         return '\0';
     }
 
     /**
-     * Sets the character at the position given.
+     * Gets the code point held in the cell at the specified position.  A cell
+     * that starts a surrogate pair gives the whole code point, and the second
+     * cell of a wide character or surrogate pair gives 0.
+     * @param x the cartesian x position of the cell.
+     * @param y the cartesian y position of the cell.
+     * @return the code point in the cell, or 0 if the position is out of
+     * bounds or the cell is the second half of a pair.
+     */
+    public int getCodePoint(int x, int y)
+    {
+        if (x < 0 || x >= width || y < 0 || y >= lines.size())
+        {
+            return 0;
+        }
+        char[] line = readLine(y);
+        char ch = line[x];
+        if (isPairEnd(ch))
+        {
+            return 0;
+        }
+        if (Character.isHighSurrogate(ch) && x + 1 < width &&
+                Character.isLowSurrogate(line[x + 1]))
+        {
+            return Character.toCodePoint(ch, line[x + 1]);
+        }
+        return ch;
+    }
+
+    /**
+     * Sets the character at the position given.  A wide character takes this
+     * cell and the next, as it does when printed.  Like every method that
+     * changes cells, this keeps wide characters and surrogate pairs whole:
+     * writing over one half of a pair blanks the other half.  A surrogate or
+     * WIDE_CONTINUATION can't be set on its own; use setChars or print to
+     * write a surrogate pair.
      * @param ch the character to set.
      * @param x the cartesian x coordinate to set.
      * @param y the cartesian y coordinate to set.
      * @return true if the character could be set, or false if any of the
-     * coordinates are out of range.
+     * coordinates are out of range, a wide character doesn't fit before the
+     * end of the line, or the character can't be set on its own.
      */
     public boolean setChar(char ch, int x, int y)
     {
-        if (x < 0 || x > width || y < 0 || y > height)
+        if (x < 0 || x >= width || y < 0 || y >= height)
+        {
+            return false;
+        }
+
+        int cells = cellsOf(ch);
+        if (cells == 0 || x + cells > width)
         {
             return false;
         }
@@ -127,13 +552,45 @@ public class TerminalData
             addLine();
         }
 
-        lines.get(y).put(x, ch);
+        if (ch == '\0')
+        {
+            blankCells(y, x, x + 1);
+        }
+        else
+        {
+            char[] line = writeLine(y, x, x + cells);
+            line[x] = ch;
+            if (cells == 2)
+            {
+                line[x + 1] = WIDE_CONTINUATION;
+            }
+        }
+        markDirty(x, x + cells - 1, y, y);
+        breakPairs(y, x, x + cells);
         return true;
     }
 
+    /**
+     * Gets the number of cells that setChar and fill give a character: 2 for
+     * a wide character, 1 for anything else, or 0 for a character that can't
+     * be stored without its partner.
+     */
+    private static int cellsOf(char ch)
+    {
+        if (Character.isSurrogate(ch) || ch == WIDE_CONTINUATION)
+        {
+            return 0;
+        }
+        return CharWidth.isDoubleCell(ch) ? 2 : 1;
+    }
+
     /**
      * Fills a rectangular region with a character.  Out of range values are
-     * clipped to the bounds of the data dimensions.
+     * clipped to the bounds of the data dimensions.  A wide character fills
+     * the region with pairs of cells, leaving the last cell of each line blank
+     * if the region is an odd number of cells wide.  A surrogate or
+     * WIDE_CONTINUATION can't be stored on its own, so filling with one leaves
+     * the region unchanged.
      * @param ch the character to fill the region with
      * @param x the cartesian x coordinate of the top-left portion of the region
      * to fill.
@@ -145,7 +602,8 @@ public class TerminalData
      */
     public void fill(char ch, int x, int y, int w, int h)
     {
-        if (x >= width || y >= height)
+        int cells = cellsOf(ch);
+        if (x >= width || y >= height || cells == 0)
         {
             return;
         }
@@ -168,71 +626,903 @@ public class TerminalData
             h = height - y;
         }
 
-        char[] ca = new char[w];
-        for (int i = 0; i < w; i++)
+        if (w <= 0 || h <= 0)
+        {
+            return;
+        }
+
+        while (y + h > lines.size())
+        {
+            addLine();
+        }
+
+        for (int i = y; i < y + h; i++)
+        {
+            if (ch == '\0')
+            {
+                blankCells(i, x, x + w);
+            }
+            else if (cells == 1)
+            {
+                Arrays.fill(writeLine(i, x, x + w), x, x + w, ch);
+            }
+            else
+            {
+                int end = x + (w & ~1);
+                if (end > x)
+                {
+                    char[] line = writeLine(i, x, end);
+                    for (int c = x; c < end; c += 2)
+                    {
+                        line[c] = ch;
+                        line[c + 1] = WIDE_CONTINUATION;
+                    }
+                }
+                blankCells(i, end, x + w);
+            }
+            breakPairs(i, x, x + w);
+        }
+        markDirty(x, x + w - 1, y, y + h - 1);
+    }
+
+    /**
+     * Writes text into a field on a single line without moving the cursor.
+     * The text is laid out as print would lay it out, with wide characters
+     * and surrogate pairs taking two cells.  It is truncated to the width of
+     * the field, and the rest of the field is filled with spaces; a pair that
+     * doesn't fit at the end is left out.  Any part of the field outside of
+     * the data dimensions is clipped.
+     * @param s the text to write.
+     * @param x the cartesian x coordinate of the start of the field.
+     * @param y the cartesian y coordinate of the field.
+     * @param w the width of the field.
+     */
+    public void setText(String s, int x, int y, int w)
+    {
+        if (y < 0 || y >= height)
+        {
+            return;
+        }
+        int start = 0;
+        if (x < 0)
+        {
+            start = -x;
+            w += x;
+            x = 0;
+        }
+        if (x + w > width)
+        {
+            w = width - x;
+        }
+        if (w <= 0)
+        {
+            return;
+        }
+
+        ensureLines(y + 1);
+        char[] line = writeLine(y, x, x + w);
+
+        // c is the cell of the field that the next character goes in, and
+        // cells before start are clipped.
+        int end = start + w;
+        int c = 0;
+        int i = 0;
+        while (i < s.length() && c < end)
+        {
+            char ch = s.charAt(i++);
+            if (!CharWidth.isDoubleCell(ch))
+            {
+                if (c >= start)
+                {
+                    line[x + c - start] = ch;
+                }
+                c++;
+                continue;
+            }
+
+            if (c + 2 > end)
+            {
+                break;
+            }
+            char second = WIDE_CONTINUATION;
+            if (Character.isHighSurrogate(ch) && i < s.length() &&
+                    Character.isLowSurrogate(s.charAt(i)))
+            {
+                second = s.charAt(i++);
+            }
+            if (c >= start)
+            {
+                line[x + c - start] = ch;
+                line[x + c - start + 1] = second;
+            }
+            else if (c + 1 == start)
+            {
+                // only the second half is in the field.
+                line[x] = ' ';
+            }
+            c += 2;
+        }
+        Arrays.fill(line, x + Math.max(c - start, 0), x + w, ' ');
+        markDirty(x, x + w - 1, y, y);
+        breakPairs(y, x, x + w);
+    }
+
+    /**
+     * Copies characters from an array into a field on a single line without
+     * moving the cursor.  Any part of the field outside of the data dimensions
+     * is clipped.
+     * @param ca the array to copy characters from.
+     * @param offset the index in ca of the first character to copy.
+     * @param x the cartesian x coordinate of the start of the field.
+     * @param y the cartesian y coordinate of the field.
+     * @param w the number of characters to copy.
+     */
+    public void setChars(char[] ca, int offset, int x, int y, int w)
+    {
+        if (y < 0 || y >= height)
+        {
+            return;
+        }
+        if (x < 0)
         {
-            ca[i] = ch;
+            offset -= x;
+            w += x;
+            x = 0;
+        }
+        if (x + w > width)
+        {
+            w = width - x;
+        }
+        if (w <= 0)
+        {
+            return;
+        }
+
+        ensureLines(y + 1);
+        System.arraycopy(ca, offset, writeLine(y, x, x + w), x, w);
+        markDirty(x, x + w - 1, y, y);
+        breakPairs(y, x, x + w);
+    }
+
+    /**
+     * Copies a rectangular block of characters to another position.  The
+     * source and destination regions may overlap; the result is the same as if
+     * the source block had first been copied to a temporary buffer.  Portions
+     * of either region that fall outside of the data dimensions are clipped.
+     * @param sx the cartesian x coordinate of the top-left of the source block.
+     * @param sy the cartesian y coordinate of the top-left of the source block.
+     * @param w the width of the block to copy
+     * @param h the height of the block to copy
+     * @param dx the cartesian x coordinate to copy the block to.
+     * @param dy the cartesian y coordinate to copy the block to.
+     */
+    public void copyRect(int sx, int sy, int w, int h, int dx, int dy)
+    {
+        blit(sx, sy, w, h, dx, dy, false);
+    }
+
+    /**
+     * Moves a rectangular block of characters to another position.  This
+     * behaves exactly as copyRect, except that any part of the source block
+     * that is not overwritten by the destination block is blanked.
+     * @param sx the cartesian x coordinate of the top-left of the source block.
+     * @param sy the cartesian y coordinate of the top-left of the source block.
+     * @param w the width of the block to move
+     * @param h the height of the block to move
+     * @param dx the cartesian x coordinate to move the block to.
+     * @param dy the cartesian y coordinate to move the block to.
+     */
+    public void moveRect(int sx, int sy, int w, int h, int dx, int dy)
+    {
+        blit(sx, sy, w, h, dx, dy, true);
+    }
+
+    /**
+     * Scrolls the contents of a rectangular region up by a number of lines.
+     * Lines scrolled off the top of the region are discarded, and the lines
+     * exposed at the bottom are blanked.  Nothing outside of the region is
+     * touched.
+     * @param x the cartesian x coordinate of the top-left of the region.
+     * @param y the cartesian y coordinate of the top-left of the region.
+     * @param w the width of the region
+     * @param h the height of the region
+     * @param n the number of lines to scroll by.
+     */
+    public void scrollRegionUp(int x, int y, int w, int h, int n)
+    {
+        scrollRegion(x, y, w, h, n);
+    }
+
+    /**
+     * Scrolls the contents of a rectangular region down by a number of lines.
+     * Lines scrolled off the bottom of the region are discarded, and the lines
+     * exposed at the top are blanked.  Nothing outside of the region is
+     * touched.
+     * @param x the cartesian x coordinate of the top-left of the region.
+     * @param y the cartesian y coordinate of the top-left of the region.
+     * @param w the width of the region
+     * @param h the height of the region
+     * @param n the number of lines to scroll by.
+     */
+    public void scrollRegionDown(int x, int y, int w, int h, int n)
+    {
+        scrollRegion(x, y, w, h, -n);
+    }
+
+    /**
+     * Scrolls a region up (positive n) or down (negative n).
+     */
+    private void scrollRegion(int x, int y, int w, int h, int n)
+    {
+        // clip the region itself, so that the blit below only moves lines
+        // that actually belong to it.
+        if (x < 0)
+        {
+            w += x;
+            x = 0;
+        }
+        if (y < 0)
+        {
+            h += y;
+            y = 0;
+        }
+        if (x + w > width)
+        {
+            w = width - x;
+        }
+        if (y + h > height)
+        {
+            h = height - y;
+        }
+        if (w <= 0 || h <= 0 || n == 0)
+        {
+            return;
+        }
+
+        // the lines that stay in the region are copied, and then the band of
+        // dist lines that the scroll exposes is blanked.  Moving them instead
+        // would only blank the source lines that the copy doesn't cover,
+        // which misses the lines between the two when dist > h / 2.
+        int dist = Math.abs(n);
+        if (dist >= h)
+        {
+            blank(x, y, w, h);
+        }
+        else if (n > 0)
+        {
+            blit(x, y + dist, w, h - dist, x, y, false);
+            blank(x, y + h - dist, w, dist);
+        }
+        else
+        {
+            blit(x, y, w, h - dist, x, y + dist, false);
+            blank(x, y, w, dist);
+        }
+    }
+
+    /**
+     * Copies (or moves) a block of characters using one array copy per line.
+     * Lines are visited bottom-up when the block moves down so that
+     * overlapping source lines are read before they are overwritten;
+     * System.arraycopy already handles overlap within a single line.
+     */
+    private void blit(int sx, int sy, int w, int h, int dx, int dy,
+            boolean move)
+    {
+        // clip against the top and left edges of both regions.
+        if (sx < 0)
+        {
+            w += sx;
+            dx -= sx;
+            sx = 0;
+        }
+        if (sy < 0)
+        {
+            h += sy;
+            dy -= sy;
+            sy = 0;
+        }
+        if (dx < 0)
+        {
+            w += dx;
+            sx -= dx;
+            dx = 0;
+        }
+        if (dy < 0)
+        {
+            h += dy;
+            sy -= dy;
+            dy = 0;
+        }
+
+        // clip against the bottom and right edges of both regions.
+        w = Math.min(w, Math.min(width - sx, width - dx));
+        h = Math.min(h, Math.min(height - sy, height - dy));
+        if (w <= 0 || h <= 0)
+        {
+            return;
+        }
+
+        ensureLines(Math.max(sy, dy) + h);
+
+        if (dy > sy)
+        {
+            for (int i = h - 1; i >= 0; i--)
+            {
+                copyCells(sx, sy + i, dx, dy + i, w);
+            }
+        }
+        else
+        {
+            for (int i = 0; i < h; i++)
+            {
+                copyCells(sx, sy + i, dx, dy + i, w);
+            }
+        }
+
+        markDirty(dx, dx + w - 1, dy, dy + h - 1);
+        if (!move)
+        {
+            return;
+        }
+        markDirty(sx, sx + w - 1, sy, sy + h - 1);
+
+        // blank whatever part of the source block the destination didn't
+        // cover.
+        for (int y = sy; y < sy + h; y++)
+        {
+            if (y < dy || y >= dy + h || dx + w <= sx || dx >= sx + w)
+            {
+                blankCells(y, sx, sx + w);
+                breakPairs(y, sx, sx + w);
+            }
+            else if (dx > sx)
+            {
+                blankCells(y, sx, dx);
+                breakPairs(y, sx, dx);
+            }
+            else if (dx < sx)
+            {
+                blankCells(y, dx + w, sx + w);
+                breakPairs(y, dx + w, sx + w);
+            }
+        }
+    }
+
+    /**
+     * Blanks a region that has already been clipped to the data dimensions.
+     */
+    private void blank(int x, int y, int w, int h)
+    {
+        ensureLines(y + h);
+        for (int i = y; i < y + h; i++)
+        {
+            blankCells(i, x, x + w);
+            breakPairs(i, x, x + w);
+        }
+        markDirty(x, x + w - 1, y, y + h - 1);
+    }
+
+    /**
+     * Adds lines to the end of the data until there are at least count lines.
+     */
+    private void ensureLines(int count)
+    {
+        while (lines.size() < count)
+        {
+            addLine();
+        }
+    }
+
+    /**
+     * Adds n blank lines to the end of the data, scrolling lines off the top
+     * as print would.
+     */
+    void appendLines(int n)
+    {
+        for (int i = 0; i < n; i++)
+        {
+            addLine();
+        }
+    }
+
+    /**
+     * Sets a line in the field to the given character array.
+     * @param ca the character array to set
+     * @param y the cartesian y coordinate of the line to set.
+     * @return true if the line could be set, or false if y is out of range.
+     */
+    public boolean setLine(char[] ca, int y)
+    {
+        if (y < 0 || y >= height)
+        {
+            return false;
+        }
+
+        while (y >= lines.size())
+        {
+            addLine();
+        }
+
+        copyLine(ca, Math.min(ca.length, width), y);
+        return true;
+    }
+
+    /**
+     * Replaces an existing line with the first n characters of an array,
+     * blanking the rest of it.
+     */
+    void copyLine(char[] ca, int n, int y)
+    {
+        if (n > 0)
+        {
+            System.arraycopy(ca, 0, writeLine(y, 0, n), 0, n);
+        }
+        blankCells(y, n, width);
+        breakPairs(y, 0, width);
+        breaks[y] = BREAK_OPEN;
+        markDirty(y);
+    }
+
+    /**
+     * Gets the character array that represents the line at the position passed
+     * in.  The array is for reading only; use the other methods of this class
+     * to change the data.  Lines that have never been written to, including
+     * lines past the last line, all share one blank array.
+     * @param y the cartesian y coordinate of the line to retrieve.
+     * @return the character array at position y.  If y is out of range, null
+     * is returned.
+     */
+    public char[] getLine(int y)
+    {
+        if (y < 0 || y >= height)
+        {
+            return null;
+        }
+        if (y >= lines.size())
+        {
+            return blankRow;
+        }
+        return readLine(y);
+    }
+
+    /**
+     * Gets the length of a line.  Every cell from this position to the end of
+     * the line is blank, so only the cells before it need to be looked at;
+     * some of them may be blank too.
+     * @param y the cartesian y coordinate of the line.
+     * @return the length of the line, or 0 if y is out of range.
+     */
+    public int getLineLength(int y)
+    {
+        if (y < 0 || y >= lines.size())
+        {
+            return 0;
+        }
+        return lengths[y];
+    }
+    
+    /**
+     * Returns the width of the data field.
+     * @return the width, in characters
+     */
+    public int getWidth()
+    {
+        return width;
+    }
+
+    /**
+     * Returns the height of the data field; this is the most lines that the
+     * data will hold before lines scroll off the top.
+     * @return the height, in characters
+     */
+    public int getHeight()
+    {
+        return height;
+    }
+
+    /**
+     * Returns the number of lines currently in the data.
+     * @return the line count
+     */
+    public int getLineCount()
+    {
+        return lines.size();
+    }
+
+    /**
+     * Changes the dimensions of the data.  Each line remembers whether it
+     * ended with a newline or wrapped onto the next line, and lines that
+     * wrapped are joined back together and wrapped again at the new width.
+     * <p>
+     * Only the most recent lines, enough to fill visibleLines lines at the new
+     * width and to include the cursor, are reflowed by this call.  Older lines
+     * are kept as they are and reflowed later by reflowHistory, so resizing
+     * data with a long history doesn't have to rewrap all of it at once.
+     * Until then, they are not part of the data: line 0 is the oldest line
+     * that has been reflowed.
+     * @param w the new width, in characters.
+     * @param h the new height; this is the most lines that the data will
+     * hold.
+     * @param visibleLines the number of lines to reflow immediately, usually
+     * the number of lines that are on display.
+     */
+    public void resize(int w, int h, int visibleLines)
+    {
+        if (w <= 0 || h <= 0)
+        {
+            return;
+        }
+        if (w == width)
+        {
+            // nothing needs to be rewrapped; just drop any lines that no
+            // longer fit.
+            height = h;
+            int extra = lines.size() - h;
+            if (extra > 0)
+            {
+                lines.subList(0, extra).clear();
+                System.arraycopy(breaks, extra, breaks, 0, lines.size());
+                System.arraycopy(lengths, extra, lengths, 0, lines.size());
+                scrollCount += extra;
+                cursorY = Math.max(cursorY - extra, 0);
+                dropHistory();
+            }
+            resized();
+            return;
+        }
+
+        int oldCount = lines.size();
+        char[][] old = new char[oldCount][];
+        for (int i = 0; i < oldCount; i++)
+        {
+            old[i] = readLine(i);
+        }
+        byte[] oldBreaks = breaks;
+        int oldCursorX = cursorX;
+        int oldCursorY = cursorY;
+
+        width = w;
+        height = h;
+        wrapCarry = null;
+        blankRow = new char[w];
+
+        // reflow whole logical lines, newest first, until there are enough
+        // new lines and the cursor has been placed.
+        ArrayList<Reflow> done = new ArrayList<Reflow>();
+        int total = 0;
+        int newCursorX = 0;
+        int belowCursor = 0;
+        boolean cursorPlaced = false;
+        int end = oldCount - 1;
+        int want = Math.min(Math.max(visibleLines, 1), h);
+        while (end >= 0 && (total < want || (!cursorPlaced &&
+                oldCursorY < oldCount)))
+        {
+            int start = logicalStart(oldBreaks, end);
+
+            // a cursor just below a line that wrapped is at the end of that
+            // line's logical line.
+            boolean hasCursor = (oldCursorY >= start && oldCursorY <= end) ||
+                    (oldCursorY == end + 1 && end == oldCount - 1 &&
+                    isSoftBreak(oldBreaks[end]));
+            Reflow rf = reflow(old, oldBreaks, start, end,
+                    hasCursor ? oldCursorY : -1, oldCursorX);
+            if (hasCursor)
+            {
+                // the cursor can end up one line past the reflowed lines.
+                newCursorX = rf.cursorX;
+                belowCursor = total + rf.count - 1 - rf.cursorY;
+                cursorPlaced = true;
+            }
+            done.add(rf);
+            total += rf.count;
+            end = start - 1;
+        }
+
+        // whatever wasn't reflowed joins the history, after any history left
+        // over from an earlier resize.
+        if (end >= 0)
+        {
+            int n = historyCount + end + 1;
+            history = (history == null) ? new char[n][] :
+                    Arrays.copyOf(history, n);
+            historyBreaks = (historyBreaks == null) ? new byte[n] :
+                    Arrays.copyOf(historyBreaks, n);
+            System.arraycopy(old, 0, history, historyCount, end + 1);
+            System.arraycopy(oldBreaks, 0, historyBreaks, historyCount,
+                    end + 1);
+            historyCount = n;
+        }
+
+        // the reflowed lines were collected newest first; lines that don't
+        // fit in the new height are dropped from the top.
+        lines = new ArrayList<CharBuffer>(Math.min(total, h));
+        breaks = new byte[Math.max(Math.min(total, h), 16)];
+        lengths = new int[breaks.length];
+        int skip = Math.max(total - h, 0);
+        for (int i = done.size() - 1; i >= 0; i--)
+        {
+            Reflow rf = done.get(i);
+            for (int j = 0; j < rf.count; j++)
+            {
+                if (skip > 0)
+                {
+                    skip--;
+                    continue;
+                }
+                breaks[lines.size()] = rf.breaks[j];
+                lengths[lines.size()] = rf.lengths[j];
+                lines.add(rf.lines.get(j));
+            }
+        }
+        if (total > h)
+        {
+            scrollCount += total - h;
+            dropHistory();
+        }
+
+        if (!cursorPlaced)
+        {
+            // the cursor was below the last line.
+            cursorX = Math.min(oldCursorX, width);
+            cursorY = lines.size() + (oldCursorY - oldCount);
+        }
+        else
+        {
+            cursorX = newCursorX;
+            cursorY = lines.size() - 1 - belowCursor;
+            if (cursorY < 0)
+            {
+                // the cursor's line no longer fits.
+                cursorX = 0;
+                cursorY = 0;
+            }
+        }
+        resized();
+    }
+
+    /**
+     * Reflows some of the lines left waiting by resize, newest first, and adds
+     * them to the top of the data.  Since the new lines go above line 0, the
+     * number of every existing line goes up by the number returned, and the
+     * scroll count goes down by the same amount so that a line's number plus
+     * the scroll count still stays the same.  Observers see the batch that
+     * this is in as cleared.
+     * @param maxLines roughly the most lines to add.  Whole logical lines are
+     * always reflowed, so slightly more may be added.
+     * @return the number of lines added.
+     */
+    public int reflowHistory(int maxLines)
+    {
+        ArrayList<Reflow> done = new ArrayList<Reflow>();
+        int total = 0;
+        while (historyCount > 0 && total < maxLines)
+        {
+            int end = historyCount - 1;
+            int start = logicalStart(historyBreaks, end);
+            Reflow rf = reflow(history, historyBreaks, start, end, -1, 0);
+            done.add(rf);
+            total += rf.count;
+            Arrays.fill(history, start, historyCount, null);
+            historyCount = start;
+        }
+
+        // lines that don't fit are dropped, along with everything older.
+        int room = height - lines.size();
+        if (total >= room)
+        {
+            dropHistory();
+        }
+        int added = Math.min(total, Math.max(room, 0));
+        if (added == 0)
+        {
+            return 0;
+        }
+
+        ArrayList<CharBuffer> top = new ArrayList<CharBuffer>(added);
+        byte[] newBreaks = new byte[Math.max(added + lines.size(), 16)];
+        int[] newLengths = new int[newBreaks.length];
+        int skip = total - added;
+        for (int i = done.size() - 1; i >= 0; i--)
+        {
+            Reflow rf = done.get(i);
+            for (int j = 0; j < rf.count; j++)
+            {
+                if (skip > 0)
+                {
+                    skip--;
+                    continue;
+                }
+                newBreaks[top.size()] = rf.breaks[j];
+                newLengths[top.size()] = rf.lengths[j];
+                top.add(rf.lines.get(j));
+            }
+        }
+        System.arraycopy(breaks, 0, newBreaks, added, lines.size());
+        System.arraycopy(lengths, 0, newLengths, added, lines.size());
+        lines.addAll(0, top);
+        breaks = newBreaks;
+        lengths = newLengths;
+
+        cursorY += added;
+        scrollCount -= added;
+        if (dirtyBottom >= dirtyTop)
+        {
+            dirtyTop += added;
+            dirtyBottom += added;
+        }
+        markDirty(0, added - 1);
+
+        // every line below the new ones has moved down, which a batch can't
+        // describe as a scroll.
+        if (changes != null)
+        {
+            changes.setCleared();
+        }
+        return added;
+    }
+
+    /**
+     * Returns the number of lines, at their old width, that are still waiting
+     * to be reflowed by reflowHistory.
+     * @return the number of lines waiting.
+     */
+    public int getPendingHistory()
+    {
+        return historyCount;
+    }
+
+    private void dropHistory()
+    {
+        history = null;
+        historyBreaks = null;
+        historyCount = 0;
+    }
+
+    /**
+     * Marks everything as changed after the dimensions change.
+     */
+    private void resized()
+    {
+        dirtyTop = 0;
+        dirtyBottom = height - 1;
+        if (changes != null)
+        {
+            changes = new TerminalChangeBatch(height, scrollCount, -1, -1);
+            changes.setCleared();
+        }
+    }
+
+    private static boolean isSoftBreak(byte brk)
+    {
+        return brk >= BREAK_SOFT;
+    }
+
+    /**
+     * Gets the soft break for a line that wrapped by dropping a whitespace
+     * character.
+     */
+    private static byte spaceBreak(char dropped)
+    {
+        return (byte)(BREAK_SPACE + Math.max(DROPPED.indexOf(dropped), 0));
+    }
+
+    /**
+     * Finds the first line of the logical line that ends at the given line.
+     */
+    private static int logicalStart(byte[] brk, int end)
+    {
+        int start = end;
+        while (start > 0 && isSoftBreak(brk[start - 1]))
+        {
+            start--;
+        }
+        return start;
+    }
+
+    /**
+     * The result of rewrapping one logical line.
+     */
+    private static class Reflow
+    {
+        ArrayList<CharBuffer> lines;
+        byte[] breaks;
+        int[] lengths;
+        int count;
+        int cursorX;
+        int cursorY;
+    }
+
+    /**
+     * Joins lines start to end back into one logical line and wraps it at the
+     * current width, using print so that the result is exactly what printing
+     * the text again would give.  The newline that ended the logical line, if
+     * there was one, is printed too, since a newline can itself cause a wrap.
+     * @param cursorLine the line holding the cursor, end + 1 if the cursor is
+     * just after the last line, or -1 if the cursor isn't in this logical
+     * line.
+     */
+    private Reflow reflow(char[][] src, byte[] brk, int start, int end,
+            int cursorLine, int cursorCol)
+    {
+        StringBuilder sb = new StringBuilder();
+        int cursorAt = -1;
+        for (int i = start; i <= end; i++)
+        {
+            char[] cells = src[i];
+            int n = cells.length;
+            if (i == cursorLine)
+            {
+                // keep any blank cells before the cursor.
+                while (n > cursorCol && cells[n - 1] == '\0')
+                {
+                    n--;
+                }
+            }
+            else
+            {
+                while (n > 0 && cells[n - 1] == '\0')
+                {
+                    n--;
+                }
+            }
+            for (int x = 0; x < n; x++)
+            {
+                if (i == cursorLine && x == cursorCol)
+                {
+                    cursorAt = sb.length();
+                }
+                if (cells[x] != WIDE_CONTINUATION)
+                {
+                    sb.append(cells[x]);
+                }
+            }
+            if (i == cursorLine && cursorAt < 0)
+            {
+                cursorAt = sb.length();
+            }
+            if (brk[i] >= BREAK_SPACE)
+            {
+                sb.append(DROPPED.charAt(brk[i] - BREAK_SPACE));
+            }
         }
-
-        for (int i = y; i < y + h; i++)
+        if (cursorLine > end)
         {
-            lines.get(i).put(ca, x, w);
+            cursorAt = sb.length();
         }
-    }
 
-    /**
-     * Sets a line in the field to the given character array.
-     * @param ca the character array to set
-     * @param y the cartesian y coordinate of the line to set.
-     * @return true if the line could be set, or false if y is out of range.
-     */
-    public boolean setLine(char[] ca, int y)
-    {
-        if (y < 0 || y >= height)
-        {
-            return false;
-        }
+        TerminalData scratch = new TerminalData(width, Integer.MAX_VALUE,
+                tabSize, wrapBehavior);
+        scratch.breakHyphen = breakHyphen;
+        scratch.breakPunctuation = breakPunctuation;
+        scratch.breakCJK = breakCJK;
 
-        while (y >= lines.size())
+        if (brk[end] == BREAK_HARD)
         {
-            addLine();
+            sb.append('\n');
         }
 
-        CharBuffer cb = CharBuffer.allocate(width);
-        cb.put(ca, 0, ((ca.length < width) ? ca.length : width));
-        lines.set(y, cb);
-        return true;
-    }
-
-    /**
-     * Gets the character array that represents the line at the position passed
-     * in.
-     * @param y the cartesian y coordinate of the line to retrieve.
-     * @return the character array at position y.  If y is out of range, null
-     * is returned.
-     */
-    public char[] getLine(int y)
-    {
-        if (y >= height)
+        Reflow rf = new Reflow();
+        String text = sb.toString();
+        if (cursorAt >= 0)
         {
-            return null;
+            scratch.print(text.substring(0, cursorAt));
+            scratch.ensureLines(1);
+            rf.cursorX = scratch.cursorX;
+            rf.cursorY = scratch.cursorY;
+            scratch.print(text.substring(cursorAt));
         }
-
-        while (y >= lines.size())
+        else
         {
-            addLine();
+            scratch.print(text);
         }
-
-        return lines.get(y).array();
-    }
-    
-    /**
-     * Returns the number of lines currently in the data.
-     * @return the line count
-     */
-    public int getLineCount()
-    {
-        return lines.size();
+        scratch.ensureLines(1);
+        rf.lines = scratch.lines;
+        rf.count = scratch.lines.size();
+        rf.breaks = scratch.breaks;
+        rf.lengths = scratch.lengths;
+        return rf;
     }
 
     /**
@@ -240,9 +1530,17 @@ public class TerminalData
      */
     public void clear()
     {
-        for (CharBuffer cb : lines)
+        for (int i = 0; i < lines.size(); i++)
         {
-            cb.clear();
+            lines.set(i, null);
+        }
+        Arrays.fill(breaks, BREAK_OPEN);
+        Arrays.fill(lengths, 0);
+        dropHistory();
+        markDirty(0, lines.size() - 1);
+        if (changes != null)
+        {
+            changes.setCleared();
         }
     }
 
@@ -267,8 +1565,11 @@ public class TerminalData
 
         for (int i = y0; i <= y1; i++)
         {
-            lines.get(i).clear();
+            lines.set(i, null);
+            lengths[i] = 0;
+            breaks[i] = BREAK_OPEN;
         }
+        markDirty(y0, y1);
     }
 
     /**
@@ -281,6 +1582,84 @@ public class TerminalData
         wrapBehavior = wb;
     }
 
+    /**
+     * Gets the wrap behavior used for printing.
+     * @return the wrap behavior.
+     */
+    public WrapBehavior getWrapBehavior()
+    {
+        return wrapBehavior;
+    }
+
+    /**
+     * Sets the extra break rules used by WORD wrapping.  Lines can always be
+     * broken at whitespace.
+     * @param rules the set of extra rules to use.  An empty set gives the
+     * default whitespace-only behavior.
+     */
+    public void setBreakRules(EnumSet<BreakRule> rules)
+    {
+        breakHyphen = rules.contains(BreakRule.HYPHEN);
+        breakPunctuation = rules.contains(BreakRule.PUNCTUATION);
+        breakCJK = rules.contains(BreakRule.CJK);
+    }
+
+    /**
+     * Gets the extra break rules used by WORD wrapping.
+     * @return the set of extra rules in use.
+     */
+    public EnumSet<BreakRule> getBreakRules()
+    {
+        EnumSet<BreakRule> rules = EnumSet.noneOf(BreakRule.class);
+        if (breakHyphen)
+        {
+            rules.add(BreakRule.HYPHEN);
+        }
+        if (breakPunctuation)
+        {
+            rules.add(BreakRule.PUNCTUATION);
+        }
+        if (breakCJK)
+        {
+            rules.add(BreakRule.CJK);
+        }
+        return rules;
+    }
+
+    /**
+     * Checks whether a line may be broken after the given character under the
+     * current break rules.  Whitespace is handled separately.
+     */
+    private boolean isBreakAfter(char ch)
+    {
+        if (breakHyphen && (ch == '-' || ch == '\u2010'))
+        {
+            return true;
+        }
+        if (breakPunctuation)
+        {
+            switch (ch)
+            {
+                case ',': case ';': case ':': case '!': case '?':
+                case '/': case ')': case ']': case '}':
+                    return true;
+            }
+        }
+        return breakCJK && isCJK(ch);
+    }
+
+    /**
+     * Checks whether a character is a CJK ideograph, kana, CJK symbol or
+     * full-width form.
+     */
+    private static boolean isCJK(char ch)
+    {
+        return (ch >= '\u2e80' && ch <= '\u9fff') ||
+                (ch >= '\uf900' && ch <= '\ufaff') ||
+                (ch >= '\uff00' && ch <= '\uff60') ||
+                (ch >= '\uffe0' && ch <= '\uffe6');
+    }
+
     public Point getCursor()
     {
         return new Point(this.cursorX, this.cursorY);
@@ -317,6 +1696,18 @@ public class TerminalData
         this.cursorY = y;
     }
 
+    /**
+     * Puts the cursor back at a position that print left it at.  Unlike
+     * setCursor, this allows x == width, so that printing carries on by
+     * wrapping to the next line rather than over the last character, and
+     * y == height, which print leaves after a newline on the last line.
+     */
+    void restoreCursor(int x, int y)
+    {
+        cursorX = Math.max(0, Math.min(x, width));
+        cursorY = Math.max(0, Math.min(y, height));
+    }
+
     /**
      * Prints text beginning at the current cursor position.  If the cursor is
      * not at the end of the data, existing data will be over-written by the
@@ -325,11 +1716,39 @@ public class TerminalData
      * position will be updated to point to the position after the last printed
      * character.  If the last character is a newline, the cursor will be placed
      * at the beginning of the following line.
+     * <p>
+     * The details of wrapping are relied upon by callers, and any change to
+     * this function should keep them; TerminalDataFuzzTest checks them against
+     * a simple model:
+     * <ul>
+     * <li>The cursor is allowed to rest at x == width after filling a line;
+     * wrapping only happens when the next character is printed.</li>
+     * <li>NONE discards characters past the end of the line until a newline
+     * is printed.</li>
+     * <li>WORD rewinds to the last whitespace character on the line, blanks
+     * the rest of the line with '\0' (not spaces) and continues printing on
+     * the next line after that whitespace.  If the line holds no whitespace,
+     * the word is broken at the end of the line as in CHAR.</li>
+     * <li>A newline is never stored; it only moves the cursor.</li>
+     * </ul>
      * @param s a string containing the text to print.
      */
     public void print(String s)
     {
         int spos = 0;
+
+        // the last place on the current line that WORD wrapping can break at,
+        // found as the characters are printed so that wrapping never has to
+        // scan back over the line.  breakBlank is the column to blank from
+        // and breakCarry the column of the first character to carry down to
+        // the next line; -1 means there's no break on this line.  Carrying
+        // still copies the partial word a second time and blanks the end of
+        // the line, so WORD is slower than CHAR, and much slower than NONE,
+        // which skips the rest of a full line.  The narrower the lines, the
+        // bigger the difference.
+        int breakBlank = -1;
+        int breakCarry = -1;
+        int nextNewline = -1;
         
         while(spos < s.length())
         {
@@ -349,12 +1768,17 @@ public class TerminalData
                     // Otherwise, ignore the current character.
                     if(s.charAt(spos) == '\n')
                     {
+                        breaks[cursorY] = BREAK_HARD;
                         cursorX = 0;
                         cursorY++;
                     }
                     else
                     {
-                        spos++;
+                        spos = s.indexOf('\n', spos);
+                        if(spos < 0)
+                        {
+                            break;
+                        }
                         continue;
                     }
                 }
@@ -362,49 +1786,84 @@ public class TerminalData
                 {
                     // Advance the cursor to the beginning of the next line
                     // regardless of what type of character it is.
+                    breaks[cursorY] = BREAK_SOFT;
                     cursorX = 0;
                     cursorY++;
                 }
                 else // wrapBehavior == WrapBehavior.WORD
                 {
-                    int origSpos = spos;
-                    
-                    // Rewind the pointer to the last whitespace character,
-                    // then advance the cursor to the beginning of the next
-                    // line.
-                    while((spos > 0) && (cursorX > 0) && !Character.isWhitespace(s.charAt(spos)))
+                    char next = s.charAt(spos);
+                    if(spos > 0 && Character.isWhitespace(next))
                     {
-                        spos--;
-                        cursorX--;
+                        // The line ends exactly at a whitespace character;
+                        // drop it and advance to the next line.
+                        breaks[cursorY] = (next == '\n') ? BREAK_HARD :
+                                spaceBreak(next);
+                        spos++;
+                        cursorX = 0;
+                        cursorY++;
+                        breakBlank = -1;
+                        breakCarry = -1;
+                        continue;
                     }
-                    
-                    if(spos == 0 || cursorX == 0)
+                    else if(breakCJK && isCJK(next))
                     {
-                        // There are more non-whitespace characters than will
-                        // fit on one line.  Force a break in the word at the
-                        // current position by putting the string position back
-                        // to its original position and causing the cursor to
-                        // advance to the beginning of the next line.
-                        spos = origSpos;
+                        // The next character can start a line by itself.
+                        breaks[cursorY] = BREAK_SOFT;
                         cursorX = 0;
                         cursorY++;
                     }
-                    else
+                    else if(breakBlank > 0)
                     {
-                        // The character at spos is whitespace. move one
-                        // character past it.
-                        spos++;
-                        
-                        // Blank to the end of the current line, and advance to
-                        // the next.
-                        while(cursorX < width)
+                        // Carry the partial word after the break down to the
+                        // next line, and blank the end of the current line.
+                        int carry = width - breakCarry;
+                        if(wrapCarry == null || wrapCarry.length < width)
+                        {
+                            wrapCarry = new char[width];
+                        }
+                        char[] line = readLine(cursorY);
+
+                        // a wide character that didn't fit leaves a blank
+                        // cell at the end of the line, which isn't part of
+                        // the word.
+                        while(carry > 0 &&
+                                line[breakCarry + carry - 1] == '\0')
+                        {
+                            carry--;
+                        }
+                        System.arraycopy(line, breakCarry, wrapCarry, 0, carry);
+                        breaks[cursorY] = (breakBlank < breakCarry) ?
+                                spaceBreak(line[breakBlank]) : BREAK_SOFT;
+                        blankCells(cursorY, breakBlank, width);
+                        markDirty(breakBlank, width - 1, cursorY, cursorY);
+
+                        cursorY++;
+                        while(cursorY >= lines.size())
+                        {
+                            addLine();
+                        }
+                        if(carry > 0)
                         {
-                            lines.get(cursorY).put(cursorX++, '\0');
+                            System.arraycopy(wrapCarry, 0,
+                                    writeLine(cursorY, 0, carry), 0, carry);
+                            markDirty(0, carry - 1, cursorY, cursorY);
                         }
+                        cursorX = carry;
+                    }
+                    else
+                    {
+                        // There are more non-whitespace characters than will
+                        // fit on one line.  Force a break in the word at the
+                        // current position by causing the cursor to advance
+                        // to the beginning of the next line.
+                        breaks[cursorY] = BREAK_SOFT;
                         cursorX = 0;
                         cursorY++;
                     }
                 }
+                breakBlank = -1;
+                breakCarry = -1;
             }
             
             if(cursorY >= lines.size())
@@ -412,23 +1871,170 @@ public class TerminalData
                 addLine();
             }
             
-            char ch = s.charAt(spos++);
-            if(ch == '\n')
+            if(s.charAt(spos) == '\n')
             {
                 // if the current character is a return character, don't
                 // bother printing it, just advance the cursor to the next line.
+                breaks[cursorY] = BREAK_HARD;
+                spos++;
                 cursorX = 0;
                 cursorY++;
+                breakBlank = -1;
+                breakCarry = -1;
+                continue;
             }
-            else
+
+            // print as much of the text as will fit on the current line in
+            // one go.
+            if(nextNewline < spos)
+            {
+                nextNewline = s.indexOf('\n', spos);
+                if(nextNewline < 0)
+                {
+                    nextNewline = s.length();
+                }
+            }
+            int end = Math.min(nextNewline, spos + width - cursorX);
+
+            // wide characters and surrogate pairs take two cells, so they're
+            // printed one at a time; the run before one is printed as usual.
+            int pairAt = spos;
+            while(pairAt < end && !CharWidth.isDoubleCell(s.charAt(pairAt)))
+            {
+                pairAt++;
+            }
+            if(pairAt == spos)
+            {
+                int next = printPair(s, spos);
+                if(wrapBehavior == WrapBehavior.WORD && next > spos &&
+                        isBreakAfter(s.charAt(spos)))
+                {
+                    breakBlank = cursorX;
+                    breakCarry = cursorX;
+                }
+                spos = next;
+                continue;
+            }
+            end = pairAt;
+
+            if(wrapBehavior == WrapBehavior.WORD)
             {
-                // print the character at the current position and advance the
-                // position.
-                lines.get(cursorY).put(cursorX++, ch);
+                // find the last break opportunity in the run.  This stops at
+                // the first one found, so each character is looked at once.
+                for(int i = end - 1; i >= spos; i--)
+                {
+                    char ch = s.charAt(i);
+                    int x = cursorX + (i - spos);
+                    if(isBreakAfter(ch))
+                    {
+                        breakBlank = x + 1;
+                        breakCarry = x + 1;
+                        break;
+                    }
+                    if(Character.isWhitespace(ch))
+                    {
+                        // a break at whitespace drops the whitespace.  A
+                        // whitespace character at the start of the text or
+                        // the start of the line can't be broken at.
+                        breakBlank = (i > 0 && x > 0) ? x : -1;
+                        breakCarry = x + 1;
+                        break;
+                    }
+                }
             }
+
+            char[] line = writeLine(cursorY, cursorX, cursorX + end - spos);
+            s.getChars(spos, end, line, cursorX);
+            markDirty(cursorX, cursorX + end - spos - 1, cursorY, cursorY);
+            breakPairs(cursorY, cursorX, cursorX + end - spos);
+            cursorX += end - spos;
+            spos = end;
+        }
+    }
+
+    /**
+     * Prints the wide character or surrogate pair at spos, taking two cells.
+     * If it doesn't fit on the current line, the last cell is blanked and the
+     * cursor is left at the end of the line so that the line wraps.
+     * @return the position in s after the characters printed.
+     */
+    private int printPair(String s, int spos)
+    {
+        char ch = s.charAt(spos);
+        boolean surrogates = Character.isHighSurrogate(ch) &&
+                spos + 1 < s.length() &&
+                Character.isLowSurrogate(s.charAt(spos + 1));
+        if(width < 2)
+        {
+            // it can never fit, so drop it.
+            return spos + (surrogates ? 2 : 1);
+        }
+
+        if(cursorX + 2 > width)
+        {
+            blankCells(cursorY, cursorX, cursorX + 1);
+            markDirty(cursorX, cursorX, cursorY, cursorY);
+            breakPairs(cursorY, cursorX, cursorX + 1);
+            cursorX = width;
+            return spos;
+        }
+
+        char[] line = writeLine(cursorY, cursorX, cursorX + 2);
+        line[cursorX] = ch;
+        line[cursorX + 1] = surrogates ? s.charAt(spos + 1) :
+                WIDE_CONTINUATION;
+        markDirty(cursorX, cursorX + 1, cursorY, cursorY);
+        breakPairs(cursorY, cursorX, cursorX + 2);
+        cursorX += 2;
+        return spos + (surrogates ? 2 : 1);
+    }
+
+    /**
+     * Keeps the two cell pairs of a line whole after cells x0 to x1 - 1 of it
+     * have been written or blanked.  The other half of any pair that the
+     * write cut in half is blanked, and so is a half at either end of the
+     * written cells that was written without its partner, so that a wide
+     * character is never drawn over a cell that holds something else.  Every
+     * method that changes cells calls this, so the cells between the two
+     * halves of a pair never need checking.
+     */
+    private void breakPairs(int y, int x0, int x1)
+    {
+        char[] line = readLine(y);
+        if(x0 > 0 && isPairStart(line[x0 - 1]) && !isPairEnd(line[x0]))
+        {
+            blankPairHalf(y, x0 - 1);
+        }
+        if(isPairEnd(line[x0]) && (x0 == 0 || !isPairStart(line[x0 - 1])))
+        {
+            blankPairHalf(y, x0);
+        }
+        if(x1 < width && isPairEnd(line[x1]) && !isPairStart(line[x1 - 1]))
+        {
+            blankPairHalf(y, x1);
+        }
+        if(isPairStart(line[x1 - 1]) && (x1 == width || !isPairEnd(line[x1])))
+        {
+            blankPairHalf(y, x1 - 1);
         }
     }
 
+    private void blankPairHalf(int y, int x)
+    {
+        blankCells(y, x, x + 1);
+        markDirty(x, x, y, y);
+    }
+
+    private static boolean isPairStart(char ch)
+    {
+        return CharWidth.isDoubleCell(ch);
+    }
+
+    private static boolean isPairEnd(char ch)
+    {
+        return ch == WIDE_CONTINUATION || Character.isLowSurrogate(ch);
+    }
+
     /**
      * Moves the cursor to the position given by the x and y parameters, and
      * begins printing text at this position.  Otherwise, the function behaves
@@ -442,4 +2048,255 @@ public class TerminalData
         setCursor(x, y);
         print(s);
     }
+
+    /**
+     * Writes a binary snapshot of the data to a channel.  The snapshot holds
+     * the dimensions, tab size, wrap behavior, break rules, cursor position
+     * and every line in the data, including lines that have scrolled out of
+     * view, along with whether each line wrapped, so that the restored data
+     * reflows on a resize just as this data would.  Lines still waiting to be
+     * reflowed after a resize are not included; call reflowHistory first to
+     * include them, as TerminalPanel.saveSnapshot does.
+     * @param ch the channel to write the snapshot to.
+     * @throws IOException if an error occured while writing to the channel.
+     */
+    public void saveSnapshot(WritableByteChannel ch) throws IOException
+    {
+        ByteBuffer header = ByteBuffer.allocate(SNAPSHOT_HEADER_SIZE);
+        header.putInt(SNAPSHOT_TAG);
+        header.putInt(SNAPSHOT_VERSION);
+        header.putInt(width);
+        header.putInt(height);
+        header.putInt(tabSize);
+        header.putInt(wrapBehavior.ordinal());
+        header.putInt(cursorX);
+        header.putInt(cursorY);
+        header.putInt(scrollCount);
+        header.putInt(lines.size());
+        header.putInt(ruleBits(getBreakRules()));
+        header.flip();
+        writeFully(ch, header);
+        writeFully(ch, ByteBuffer.wrap(breaks, 0, lines.size()));
+
+        // the lines are written in chunks of as many whole lines as will fit
+        // in the transfer buffer.
+        int linesPerChunk = Math.max(1, SNAPSHOT_CHUNK_SIZE / (width * 2));
+        ByteBuffer bb = ByteBuffer.allocateDirect(linesPerChunk * width * 2);
+        CharBuffer cb = bb.asCharBuffer();
+        int y = 0;
+        while (y < lines.size())
+        {
+            int n = Math.min(linesPerChunk, lines.size() - y);
+            cb.clear();
+            for (int i = y; i < y + n; i++)
+            {
+                cb.put(readLine(i), 0, width);
+            }
+            bb.clear();
+            bb.limit(n * width * 2);
+            writeFully(ch, bb);
+            y += n;
+        }
+    }
+
+    /**
+     * Replaces the contents of the data with a snapshot read from a channel.
+     * Snapshots from before line endings were saved are read with every line
+     * above the cursor taken to have ended with a newline.
+     * @param ch the channel to read the snapshot from.
+     * @return true if the snapshot was loaded, or false if the channel does not
+     * contain a snapshot, the snapshot is of an unknown version or its header
+     * or line endings are out of range.  If false is returned, the data is left
+     * unchanged.
+     * @throws IOException if an error occured while reading the channel, or
+     * the snapshot ended early.
+     */
+    public boolean loadSnapshot(ReadableByteChannel ch) throws IOException
+    {
+        ByteBuffer header = ByteBuffer.allocate(SNAPSHOT_HEADER_SIZE);
+        header.limit(8);
+        readFully(ch, header);
+        if (header.getInt(0) != SNAPSHOT_TAG)
+        {
+            return false;
+        }
+        int version = header.getInt(4);
+        if (version != 1 && version != SNAPSHOT_VERSION)
+        {
+            return false;
+        }
+        header.limit((version == 1) ? SNAPSHOT_V1_HEADER_SIZE :
+                SNAPSHOT_HEADER_SIZE);
+        readFully(ch, header);
+        header.flip();
+        header.position(8);
+
+        int w = header.getInt();
+        int h = header.getInt();
+        int ts = header.getInt();
+        int wb = header.getInt();
+        int cx = header.getInt();
+        int cy = header.getInt();
+        int sc = header.getInt();
+        int count = header.getInt();
+        int rules = (version == 1) ? 0 : header.getInt();
+        // print can leave the cursor one position past the end of the data,
+        // but no further.
+        if (w <= 0 || w > SNAPSHOT_MAX_WIDTH || h <= 0 ||
+                h > SNAPSHOT_MAX_HEIGHT || count < 0 || count > h || wb < 0 ||
+                wb >= WrapBehavior.values().length || cx < 0 || cx > w ||
+                cy < 0 || cy > h || rules < 0 ||
+                rules >= 1 << BreakRule.values().length)
+        {
+            return false;
+        }
+
+        byte[] newBreaks = new byte[Math.max(count, 16)];
+        if (version == 1)
+        {
+            // version 1 didn't say how lines ended, so every line above the
+            // cursor is taken to have ended with a newline.
+            Arrays.fill(newBreaks, 0, Math.min(cy, count), BREAK_HARD);
+        }
+        else
+        {
+            readFully(ch, ByteBuffer.wrap(newBreaks, 0, count));
+            for (int i = 0; i < count; i++)
+            {
+                if (newBreaks[i] < BREAK_OPEN ||
+                        newBreaks[i] >= BREAK_SPACE + DROPPED.length())
+                {
+                    return false;
+                }
+            }
+        }
+
+        // read everything before touching the current data, so that a short
+        // snapshot doesn't leave it half loaded.
+        ArrayList<CharBuffer> newLines = new ArrayList<CharBuffer>(count);
+        int[] newLengths = new int[Math.max(count, 16)];
+        char[] row = new char[w];
+        int linesPerChunk = Math.max(1, SNAPSHOT_CHUNK_SIZE / (w * 2));
+        ByteBuffer bb = ByteBuffer.allocateDirect(linesPerChunk * w * 2);
+        CharBuffer cb = bb.asCharBuffer();
+        int y = 0;
+        while (y < count)
+        {
+            int n = Math.min(linesPerChunk, count - y);
+            bb.clear();
+            bb.limit(n * w * 2);
+            readFully(ch, bb);
+            cb.clear();
+            for (int i = 0; i < n; i++)
+            {
+                // blank lines are left without storage.
+                cb.get(row, 0, w);
+                int len = w;
+                while (len > 0 && row[len - 1] == '\0')
+                {
+                    len--;
+                }
+                newLengths[y + i] = len;
+                newLines.add((len == 0) ? null :
+                        CharBuffer.wrap(row.clone()));
+            }
+            y += n;
+        }
+
+        this.width = w;
+        this.height = h;
+        this.tabSize = ts;
+        this.wrapBehavior = WrapBehavior.values()[wb];
+        setBreakRules(bitRules(rules));
+        this.lines = newLines;
+        this.breaks = newBreaks;
+        this.lengths = newLengths;
+        this.blankRow = new char[w];
+        this.scrollCount = sc;
+        dropHistory();
+
+        // the cursor is restored as-is, since print can legitimately leave it
+        // one position past the end of the data.
+        this.cursorX = cx;
+        this.cursorY = cy;
+        markDirtyLines(0, height - 1);
+        if (changes != null)
+        {
+            // the height may have changed, so start a new batch.
+            changes = new TerminalChangeBatch(height, sc, -1, -1);
+            changes.setCleared();
+        }
+        return true;
+    }
+
+    /**
+     * Replaces the data with count blank lines at new dimensions, for a copy
+     * that is about to be filled in line by line.  The cursor is left for the
+     * caller to set.
+     */
+    void reset(int w, int h, int count, int sc)
+    {
+        this.width = w;
+        this.height = h;
+        this.lines = new ArrayList<CharBuffer>(count);
+        for (int i = 0; i < count; i++)
+        {
+            lines.add(null);
+        }
+        this.breaks = new byte[Math.max(count, 16)];
+        this.lengths = new int[breaks.length];
+        this.blankRow = new char[w];
+        this.wrapCarry = null;
+        this.scrollCount = sc;
+        dropHistory();
+        resized();
+    }
+
+    /**
+     * Packs a set of break rules into an int for a snapshot, one bit per rule
+     * by its ordinal.
+     */
+    private static int ruleBits(EnumSet<BreakRule> rules)
+    {
+        int bits = 0;
+        for (BreakRule rule : rules)
+        {
+            bits |= 1 << rule.ordinal();
+        }
+        return bits;
+    }
+
+    private static EnumSet<BreakRule> bitRules(int bits)
+    {
+        EnumSet<BreakRule> rules = EnumSet.noneOf(BreakRule.class);
+        for (BreakRule rule : BreakRule.values())
+        {
+            if ((bits & (1 << rule.ordinal())) != 0)
+            {
+                rules.add(rule);
+            }
+        }
+        return rules;
+    }
+
+    private static void writeFully(WritableByteChannel ch, ByteBuffer bb)
+            throws IOException
+    {
+        while (bb.hasRemaining())
+        {
+            ch.write(bb);
+        }
+    }
+
+    private static void readFully(ReadableByteChannel ch, ByteBuffer bb)
+            throws IOException
+    {
+        while (bb.hasRemaining())
+        {
+            if (ch.read(bb) < 0)
+            {
+                throw new EOFException("Terminal snapshot ended early.");
+            }
+        }
+    }
 }
@@ -0,0 +1,984 @@
+package com.abstrys.consolekit;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Random;
+
+/**
+ * A differential fuzz test for TerminalData.  Random sequences of operations
+ * are run on a TerminalData object and on Model, a deliberately simple version
+ * of it that keeps every line as a plain array and prints one character at a
+ * time, and the two are compared after every operation.  The text includes
+ * wide characters and surrogate pairs, so the code that keeps pairs whole is
+ * fuzzed along with the rest.  Resizing is checked separately: text printed
+ * at one width and then resized must come out the same as the text printed
+ * at the new width to begin with.
+ * <p>
+ * The test then times printing and scrolling against a plain copy of the
+ * same characters into arrays, timed in the same run, and fails if either
+ * falls below a fixed fraction of the copy's speed.  Comparing against the
+ * copy keeps the floors independent of the machine.  Each floor is about a
+ * third of the slowest the current code was measured at, and above the
+ * fastest that print managed when it printed one character at a time and
+ * rewound to wrap words.
+ * <p>
+ * Run it with "ant test".  It takes an optional seed and number of sequences
+ * as arguments, so that a failure can be repeated.
+ */
+public class TerminalDataFuzzTest
+{
+    // the pieces random text is made of.  A surrogate pair is one piece, so
+    // that text never holds half of one.
+    private static final String[] ALPHABET = {
+        "a", "b", "c", "d", "e", "f", "g", "h", "i", " ", " ", "-", ",", "\t",
+        "\n", "\u4e2d", "\u6587", "\u3002", "\ud83d\ude00"
+    };
+
+    // the slowest acceptable speeds of printing in NONE, CHAR and WORD, as a
+    // fraction of the speed of copying the same text into arrays, for text of
+    // short words and text of long ones.  The long words make WORD carry a
+    // lot of text down to the next line.
+    private static final double[] MIN_PRINT_SHORT = { 0.15, 0.1, 0.07 };
+    private static final double[] MIN_PRINT_LONG = { 1.0, 0.12, 0.04 };
+
+    // the slowest acceptable speed of scrolling a region, as a fraction of
+    // the speed of copying its rows up with System.arraycopy.
+    private static final double MIN_SCROLL = 0.2;
+
+    private static int failures = 0;
+
+    public static void main(String[] args)
+    {
+        long seed = (args.length > 0) ? Long.parseLong(args[0]) : 1;
+        int sequences = (args.length > 1) ? Integer.parseInt(args[1]) : 20000;
+
+        // the timing is done first, while nothing else has been run that the
+        // JIT could have compiled it differently for.
+        checkThroughput();
+        Random r = new Random(seed);
+        for (int i = 0; i < sequences && failures < 5; i++)
+        {
+            fuzzSequence(r.nextLong());
+        }
+        for (int i = 0; i < sequences / 4 && failures < 5; i++)
+        {
+            fuzzReflow(r.nextLong());
+        }
+
+        if (failures > 0)
+        {
+            System.out.println(failures + " TerminalData fuzz failure(s), " +
+                    "starting from seed " + seed + ".");
+            System.exit(1);
+        }
+        System.out.println("TerminalData fuzz test passed: " + sequences +
+                " sequences from seed " + seed + ".");
+    }
+
+    private static String randomText(Random r, int max)
+    {
+        StringBuilder sb = new StringBuilder();
+        int n = r.nextInt(max + 1);
+        for (int i = 0; i < n; i++)
+        {
+            sb.append(ALPHABET[r.nextInt(ALPHABET.length)]);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Runs one random sequence of operations on both a TerminalData object
+     * and the model, comparing them after each one.
+     */
+    private static void fuzzSequence(long seed)
+    {
+        Random r = new Random(seed);
+        int w = 1 + r.nextInt(12);
+        int h = 1 + r.nextInt(8);
+        TerminalData.WrapBehavior wb =
+                TerminalData.WrapBehavior.values()[r.nextInt(3)];
+        EnumSet<TerminalData.BreakRule> rules = randomRules(r);
+        TerminalData td = new TerminalData(w, h, 4, wb);
+        td.setBreakRules(rules);
+        Model m = new Model(w, h, wb, rules);
+
+        for (int op = 0; op < 40; op++)
+        {
+            String what;
+            int k = r.nextInt(100);
+            int x = r.nextInt(w + 4) - 2;
+            int y = r.nextInt(h + 4) - 2;
+            int rw = r.nextInt(w + 3) - 1;
+            int rh = r.nextInt(h + 3) - 1;
+            if (k < 45)
+            {
+                String s = randomText(r, 3 * w);
+                what = "print(\"" + s.replace("\n", "\\n") + "\")";
+                td.print(s);
+                m.print(s);
+            }
+            else if (k < 53)
+            {
+                char[] chars = { '\0', (char)('A' + op % 26), '\u4e2d',
+                    '\ud83d' };
+                char ch = chars[r.nextInt(chars.length)];
+                what = "setChar('" + ch + "', " + x + ", " + y + ")";
+                boolean set = td.setChar(ch, x, y);
+                if (set != m.setChar(ch, x, y))
+                {
+                    fail(seed, what + " returned " + set);
+                    return;
+                }
+            }
+            else if (k < 58)
+            {
+                char[] chars = { '\0', '#', '\u6587' };
+                char ch = chars[r.nextInt(chars.length)];
+                what = "fill('" + ch + "', " + x + ", " + y + ", " + rw +
+                        ", " + rh + ")";
+                td.fill(ch, x, y, rw, rh);
+                m.fill(ch, x, y, rw, rh);
+            }
+            else if (k < 62)
+            {
+                String s = randomText(r, w).replace('\n', '+');
+                what = "setText(\"" + s + "\", " + x + ", " + y + ", " + rw +
+                        ")";
+                td.setText(s, x, y, rw);
+                m.setText(s, x, y, rw);
+            }
+            else if (k < 70)
+            {
+                int dx = r.nextInt(w + 4) - 2;
+                int dy = r.nextInt(h + 4) - 2;
+                boolean move = r.nextBoolean();
+                what = (move ? "moveRect(" : "copyRect(") + x + ", " + y +
+                        ", " + rw + ", " + rh + ", " + dx + ", " + dy + ")";
+                if (move)
+                {
+                    td.moveRect(x, y, rw, rh, dx, dy);
+                }
+                else
+                {
+                    td.copyRect(x, y, rw, rh, dx, dy);
+                }
+                m.blit(x, y, rw, rh, dx, dy, move);
+            }
+            else if (k < 80)
+            {
+                int n = r.nextInt(h + 2);
+                boolean up = r.nextBoolean();
+                what = (up ? "scrollRegionUp(" : "scrollRegionDown(") + x +
+                        ", " + y + ", " + rw + ", " + rh + ", " + n + ")";
+                if (up)
+                {
+                    td.scrollRegionUp(x, y, rw, rh, n);
+                }
+                else
+                {
+                    td.scrollRegionDown(x, y, rw, rh, n);
+                }
+                m.scrollRegion(x, y, rw, rh, up ? n : -n);
+            }
+            else if (k < 93)
+            {
+                what = "setCursor(" + x + ", " + y + ")";
+                td.setCursor(x, y);
+                m.setCursor(x, y);
+            }
+            else if (k < 95)
+            {
+                what = "clear()";
+                td.clear();
+                m.clear();
+            }
+            else
+            {
+                int y1 = y + r.nextInt(3);
+                what = "clear(" + y + ", " + y1 + ")";
+                td.clear(y, y1);
+                m.clear(y, y1);
+            }
+
+            String diff = m.compare(td);
+            if (diff != null)
+            {
+                fail(seed, "after op " + op + ", " + what + " at " + w + "x" +
+                        h + " " + wb + " breaking at " + rules + ": " + diff);
+                return;
+            }
+        }
+    }
+
+    private static EnumSet<TerminalData.BreakRule> randomRules(Random r)
+    {
+        EnumSet<TerminalData.BreakRule> rules =
+                EnumSet.noneOf(TerminalData.BreakRule.class);
+        for (TerminalData.BreakRule rule : TerminalData.BreakRule.values())
+        {
+            if (r.nextBoolean())
+            {
+                rules.add(rule);
+            }
+        }
+        return rules;
+    }
+
+    /**
+     * Prints text at one width, resizes, and checks the result against the
+     * same text printed at the new width.
+     */
+    private static void fuzzReflow(long seed)
+    {
+        Random r = new Random(seed);
+        // a pair printed at a width of 1 is dropped, and can't come back.
+        int w1 = 2 + r.nextInt(15);
+        int w2 = 1 + r.nextInt(16);
+        TerminalData.WrapBehavior wb = (r.nextBoolean()) ?
+                TerminalData.WrapBehavior.WORD :
+                TerminalData.WrapBehavior.CHAR;
+        EnumSet<TerminalData.BreakRule> rules = randomRules(r);
+
+        // the height is large enough that nothing scrolls off the top, since
+        // lines lost that way can't be reflowed.
+        int h = 400;
+        StringBuilder sb = new StringBuilder();
+        int pieces = 1 + r.nextInt(6);
+        for (int i = 0; i < pieces; i++)
+        {
+            sb.append(randomText(r, 3 * Math.max(w1, w2)));
+        }
+        String s = sb.toString();
+
+        TerminalData resized = new TerminalData(w1, h, 4, wb);
+        resized.setBreakRules(rules);
+        resized.print(s);
+        resized.resize(w2, h, r.nextInt(10));
+        resized.reflowHistory(Integer.MAX_VALUE);
+
+        TerminalData fresh = new TerminalData(w2, h, 4, wb);
+        fresh.setBreakRules(rules);
+        fresh.print(s);
+
+        // reflowHistory lowers the scroll count by the number of lines it
+        // adds above line 0, so that isn't compared.
+        Model m = Model.copyOf(fresh);
+        m.scrollCount = resized.getScrollCount();
+        String diff = m.compare(resized);
+        if (diff != null)
+        {
+            fail(seed, "printing \"" + s.replace("\n", "\\n") + "\" " + wb +
+                    " breaking at " + rules +
+                    " at width " + w1 + " and resizing to " + w2 +
+                    " differs from printing it at " + w2 + ": " + diff);
+        }
+    }
+
+    private static void fail(long seed, String what)
+    {
+        failures++;
+        System.out.println("FAILED (sequence seed " + seed + "): " + what);
+    }
+
+    /**
+     * Times printing in each wrap mode and scrolling a region, and fails if
+     * either is slower than its floor.  Everything is run once to warm up the
+     * JIT first, and then the best of a few runs is used.
+     */
+    private static void checkThroughput()
+    {
+        String shortWords = wordText(1, 12);
+        String longWords = wordText(20, 400);
+        for (int run = 0; run < 2; run++)
+        {
+            boolean check = (run == 1);
+            checkPrint("short words", shortWords, MIN_PRINT_SHORT, check);
+            checkPrint("long words", longWords, MIN_PRINT_LONG, check);
+            checkScroll(shortWords, check);
+        }
+    }
+
+    /**
+     * Makes a million characters of text, in words of random letters
+     * separated by spaces and the odd newline.
+     */
+    private static String wordText(int minLength, int maxLength)
+    {
+        Random r = new Random(minLength);
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < 1000000)
+        {
+            int n = minLength + r.nextInt(maxLength - minLength + 1);
+            for (int i = 0; i < n; i++)
+            {
+                sb.append((char)('a' + r.nextInt(26)));
+            }
+            sb.append(r.nextInt(20) == 0 ? '\n' : ' ');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Times printing text in each wrap mode.  The text is printed in pieces
+     * of a thousand characters, as a terminal is usually given it.
+     */
+    private static void checkPrint(String what, String text, double[] min,
+            boolean check)
+    {
+        String[] pieces = new String[(text.length() + 999) / 1000];
+        for (int i = 0; i < pieces.length; i++)
+        {
+            pieces[i] = text.substring(i * 1000,
+                    Math.min((i + 1) * 1000, text.length()));
+        }
+
+        char[] chars = text.toCharArray();
+        long copy = Long.MAX_VALUE;
+        for (int run = 0; run < 9; run++)
+        {
+            copy = Math.min(copy, timeCopy(chars));
+        }
+        for (TerminalData.WrapBehavior wb : TerminalData.WrapBehavior.values())
+        {
+            long best = Long.MAX_VALUE;
+            for (int run = 0; run < 9; run++)
+            {
+                TerminalData td = new TerminalData(80, 50, 4, wb);
+                long t = System.nanoTime();
+                for (String piece : pieces)
+                {
+                    td.print(piece);
+                }
+                best = Math.min(best, System.nanoTime() - t);
+            }
+            if (check)
+            {
+                checkRate("print " + wb + " of " + what, text.length(), best,
+                        copy, min[wb.ordinal()], "chars");
+            }
+        }
+    }
+
+    /**
+     * Times copying text into an 80 by 50 grid of arrays a line at a time,
+     * with no wrapping, as a measure of how fast the machine moves characters.
+     */
+    private static long timeCopy(char[] text)
+    {
+        char[][] grid = new char[50][80];
+        long t = System.nanoTime();
+        int pos = 0;
+        int x = 0;
+        int y = 0;
+        while (pos < text.length)
+        {
+            int end = pos;
+            while (end < text.length && text[end] != '\n')
+            {
+                end++;
+            }
+            while (pos < end)
+            {
+                int n = Math.min(end - pos, 80 - x);
+                System.arraycopy(text, pos, grid[y], x, n);
+                pos += n;
+                x += n;
+                if (x == 80)
+                {
+                    x = 0;
+                    y = (y + 1) % 50;
+                }
+            }
+            pos++;
+            x = 0;
+            y = (y + 1) % 50;
+        }
+        return System.nanoTime() - t;
+    }
+
+    private static void checkScroll(String text, boolean check)
+    {
+        int lines = 20000;
+        long copy = Long.MAX_VALUE;
+        long best = Long.MAX_VALUE;
+        for (int run = 0; run < 9; run++)
+        {
+            char[][] grid = new char[50][80];
+            long t = System.nanoTime();
+            for (int i = 0; i < lines; i++)
+            {
+                for (int y = 5; y < 44; y++)
+                {
+                    System.arraycopy(grid[y + 1], 0, grid[y], 0, 80);
+                }
+                Arrays.fill(grid[44], '\0');
+            }
+            copy = Math.min(copy, System.nanoTime() - t);
+
+            TerminalData td = new TerminalData(80, 50, 4,
+                    TerminalData.WrapBehavior.CHAR);
+            td.print(text.substring(0, 80 * 50));
+            t = System.nanoTime();
+            for (int i = 0; i < lines; i++)
+            {
+                td.scrollRegionUp(0, 5, 80, 40, 1);
+            }
+            best = Math.min(best, System.nanoTime() - t);
+        }
+        if (check)
+        {
+            checkRate("scrollRegionUp", lines, best, copy, MIN_SCROLL, "lines");
+        }
+    }
+
+    /**
+     * Reports the rate that count things were done at in nanos, and fails if
+     * it's less than min times the rate they were copied at in copyNanos.
+     */
+    private static void checkRate(String what, int count, long nanos,
+            long copyNanos, double min, String units)
+    {
+        double rate = count * 1e9 / Math.max(nanos, 1);
+        double ratio = (double)copyNanos / Math.max(nanos, 1);
+        System.out.println(String.format(
+                "%s: %.1f million %s/s, %.3f of copying", what, rate / 1e6,
+                units, ratio));
+        if (ratio < min)
+        {
+            failures++;
+            System.out.println(String.format(
+                    "FAILED: %s is below the floor of %.3f of copying", what,
+                    min));
+        }
+    }
+
+    /**
+     * A simple version of TerminalData that it is compared against.  Wide
+     * characters and surrogate pairs are written as TerminalData writes them,
+     * and then repairPairs blanks any half left without its partner, by
+     * looking at the whole grid rather than at the edges of what was changed.
+     */
+    private static class Model
+    {
+        private final int width;
+        private final int height;
+        private final TerminalData.WrapBehavior wrap;
+        private final EnumSet<TerminalData.BreakRule> rules;
+        private final ArrayList<char[]> lines = new ArrayList<char[]>();
+        private int scrollCount = 0;
+        private int cursorX = 0;
+        private int cursorY = 0;
+
+        Model(int w, int h, TerminalData.WrapBehavior wb,
+                EnumSet<TerminalData.BreakRule> rules)
+        {
+            this.width = w;
+            this.height = h;
+            this.wrap = wb;
+            this.rules = rules;
+        }
+
+        static Model copyOf(TerminalData td)
+        {
+            Model m = new Model(td.getWidth(), td.getHeight(),
+                    td.getWrapBehavior(),
+                    EnumSet.noneOf(TerminalData.BreakRule.class));
+            for (int y = 0; y < td.getLineCount(); y++)
+            {
+                m.lines.add(td.getLine(y).clone());
+            }
+            m.scrollCount = td.getScrollCount();
+            m.cursorX = td.getCursor().x;
+            m.cursorY = td.getCursor().y;
+            return m;
+        }
+
+        private void addLine()
+        {
+            lines.add(new char[width]);
+            if (lines.size() > height)
+            {
+                lines.remove(0);
+                scrollCount++;
+                if (cursorY > 0)
+                {
+                    cursorY--;
+                }
+            }
+        }
+
+        private void ensureLines(int count)
+        {
+            while (lines.size() < count)
+            {
+                addLine();
+            }
+        }
+
+        /**
+         * Adds lines until the cursor is on one.  The cursor moves up as
+         * lines scroll off the top, so this is checked after each line.
+         */
+        private void ensureCursorLine()
+        {
+            while (cursorY >= lines.size())
+            {
+                addLine();
+            }
+        }
+
+        boolean setChar(char ch, int x, int y)
+        {
+            if (x < 0 || x >= width || y < 0 || y >= height)
+            {
+                return false;
+            }
+            int cells = cellsOf(ch);
+            if (cells == 0 || x + cells > width)
+            {
+                return false;
+            }
+            ensureLines(y + 1);
+            lines.get(y)[x] = ch;
+            if (cells == 2)
+            {
+                lines.get(y)[x + 1] = TerminalData.WIDE_CONTINUATION;
+            }
+            repairPairs();
+            return true;
+        }
+
+        private static int cellsOf(char ch)
+        {
+            if (Character.isSurrogate(ch) ||
+                    ch == TerminalData.WIDE_CONTINUATION)
+            {
+                return 0;
+            }
+            return CharWidth.isDoubleCell(ch) ? 2 : 1;
+        }
+
+        void fill(char ch, int x, int y, int w, int h)
+        {
+            if (x >= width || y >= height || cellsOf(ch) == 0)
+            {
+                return;
+            }
+            x = Math.max(x, 0);
+            y = Math.max(y, 0);
+            w = Math.min(w, width - x);
+            h = Math.min(h, height - y);
+            if (w <= 0 || h <= 0)
+            {
+                return;
+            }
+            ensureLines(y + h);
+            for (int i = y; i < y + h; i++)
+            {
+                char[] line = lines.get(i);
+                for (int c = x; c < x + w; c++)
+                {
+                    if (cellsOf(ch) == 1)
+                    {
+                        line[c] = ch;
+                    }
+                    else if (c + 1 < x + w)
+                    {
+                        line[c] = ch;
+                        line[++c] = TerminalData.WIDE_CONTINUATION;
+                    }
+                    else
+                    {
+                        line[c] = '\0';
+                    }
+                }
+            }
+            repairPairs();
+        }
+
+        void setText(String s, int x, int y, int w)
+        {
+            if (y < 0 || y >= height)
+            {
+                return;
+            }
+            // lay the text out in a field of w cells that stops at the edge
+            // of the data, and then copy the part of the field that is inside
+            // the data.
+            char[] field = new char[Math.max(w, 0)];
+            Arrays.fill(field, ' ');
+            int end = Math.min(w, width - x);
+            int c = 0;
+            for (int i = 0; i < s.length() && c < end; i++)
+            {
+                char ch = s.charAt(i);
+                if (!CharWidth.isDoubleCell(ch))
+                {
+                    field[c++] = ch;
+                    continue;
+                }
+                if (c + 2 > end)
+                {
+                    break;
+                }
+                field[c++] = ch;
+                if (Character.isHighSurrogate(ch) && i + 1 < s.length() &&
+                        Character.isLowSurrogate(s.charAt(i + 1)))
+                {
+                    field[c++] = s.charAt(++i);
+                }
+                else
+                {
+                    field[c++] = TerminalData.WIDE_CONTINUATION;
+                }
+            }
+            for (int i = 0; i < w; i++)
+            {
+                int cx = x + i;
+                if (cx >= 0 && cx < width)
+                {
+                    ensureLines(y + 1);
+                    // half a pair clipped at the left edge leaves a space.
+                    lines.get(y)[cx] = (cx == 0 && i > 0 &&
+                            CharWidth.isDoubleCell(field[i - 1])) ?
+                            ' ' : field[i];
+                }
+            }
+            repairPairs();
+        }
+
+        /**
+         * Copies a block through a temporary buffer, blanking the source first
+         * if it is being moved.
+         */
+        void blit(int sx, int sy, int w, int h, int dx, int dy, boolean move)
+        {
+            // only cells whose source and destination are both inside the
+            // data are copied.
+            int x0 = Math.max(0, Math.max(-sx, -dx));
+            int y0 = Math.max(0, Math.max(-sy, -dy));
+            int x1 = Math.min(w, Math.min(width - sx, width - dx));
+            int y1 = Math.min(h, Math.min(height - sy, height - dy));
+            if (x1 <= x0 || y1 <= y0)
+            {
+                return;
+            }
+            ensureLines(Math.max(sy, dy) + y1);
+            char[][] tmp = new char[y1 - y0][x1 - x0];
+            for (int j = y0; j < y1; j++)
+            {
+                System.arraycopy(lines.get(sy + j), sx + x0, tmp[j - y0], 0,
+                        x1 - x0);
+                if (move)
+                {
+                    Arrays.fill(lines.get(sy + j), sx + x0, sx + x1, '\0');
+                }
+            }
+            for (int j = y0; j < y1; j++)
+            {
+                System.arraycopy(tmp[j - y0], 0, lines.get(dy + j), dx + x0,
+                        x1 - x0);
+            }
+            repairPairs();
+        }
+
+        void scrollRegion(int x, int y, int w, int h, int n)
+        {
+            int x0 = Math.max(x, 0);
+            int y0 = Math.max(y, 0);
+            int x1 = Math.min(x + w, width);
+            int y1 = Math.min(y + h, height);
+            if (x1 <= x0 || y1 <= y0 || n == 0)
+            {
+                return;
+            }
+            ensureLines(y1);
+            char[][] tmp = new char[y1 - y0][];
+            for (int j = y0; j < y1; j++)
+            {
+                // the line that ends up at j, or null if a blank one does.
+                int from = j + n;
+                tmp[j - y0] = (from >= y0 && from < y1) ?
+                        Arrays.copyOfRange(lines.get(from), x0, x1) : null;
+            }
+            for (int j = y0; j < y1; j++)
+            {
+                char[] line = lines.get(j);
+                if (tmp[j - y0] == null)
+                {
+                    Arrays.fill(line, x0, x1, '\0');
+                }
+                else
+                {
+                    System.arraycopy(tmp[j - y0], 0, line, x0, x1 - x0);
+                }
+            }
+            repairPairs();
+        }
+
+        /**
+         * Blanks every half of a pair that isn't next to its other half.
+         */
+        private void repairPairs()
+        {
+            for (char[] line : lines)
+            {
+                for (int x = 0; x < width; x++)
+                {
+                    if (CharWidth.isDoubleCell(line[x]) && x + 1 < width &&
+                            isPairEnd(line[x + 1]))
+                    {
+                        x++;
+                    }
+                    else if (CharWidth.isDoubleCell(line[x]) ||
+                            isPairEnd(line[x]))
+                    {
+                        line[x] = '\0';
+                    }
+                }
+            }
+        }
+
+        private static boolean isPairEnd(char ch)
+        {
+            return ch == TerminalData.WIDE_CONTINUATION ||
+                    Character.isLowSurrogate(ch);
+        }
+
+        void setCursor(int x, int y)
+        {
+            cursorX = Math.max(0, Math.min(x, width - 1));
+            cursorY = Math.max(0, Math.min(y, height - 1));
+        }
+
+        void clear()
+        {
+            for (char[] line : lines)
+            {
+                Arrays.fill(line, '\0');
+            }
+        }
+
+        void clear(int y0, int y1)
+        {
+            if (y0 < 0 || y0 > y1)
+            {
+                return;
+            }
+            for (int y = y0; y <= y1 && y < lines.size(); y++)
+            {
+                Arrays.fill(lines.get(y), '\0');
+            }
+        }
+
+        /**
+         * Prints one character at a time, following the rules given on
+         * TerminalData.print.  In NONE and CHAR, a newline printed when the
+         * cursor is at the end of a line moves to the next line to wrap, and
+         * then moves down again for the newline itself.  A pair that doesn't
+         * fit blanks the last cell of the line and is printed again after
+         * the line has wrapped.
+         */
+        void print(String s)
+        {
+            // where WORD wrapping can break the current line: the first cell
+            // to blank and the first cell to carry to the next line.  Only
+            // characters printed by this call are considered.
+            int breakBlank = -1;
+            int breakCarry = -1;
+            for (int i = 0; i < s.length(); i++)
+            {
+                char ch = s.charAt(i);
+                ensureCursorLine();
+                if (cursorX >= width)
+                {
+                    if (wrap == TerminalData.WrapBehavior.NONE)
+                    {
+                        if (ch != '\n')
+                        {
+                            continue;
+                        }
+                        cursorX = 0;
+                        cursorY++;
+                    }
+                    else if (wrap == TerminalData.WrapBehavior.CHAR)
+                    {
+                        cursorX = 0;
+                        cursorY++;
+                    }
+                    else if (i > 0 && Character.isWhitespace(ch))
+                    {
+                        // the whitespace the line ends at is dropped.
+                        cursorX = 0;
+                        cursorY++;
+                        breakBlank = -1;
+                        breakCarry = -1;
+                        continue;
+                    }
+                    else if (rules.contains(TerminalData.BreakRule.CJK) &&
+                            isCJK(ch))
+                    {
+                        cursorX = 0;
+                        cursorY++;
+                    }
+                    else if (breakBlank > 0)
+                    {
+                        // the blank cell left by a pair that didn't fit isn't
+                        // carried.
+                        char[] line = lines.get(cursorY);
+                        int end = width;
+                        while (end > breakCarry && line[end - 1] == '\0')
+                        {
+                            end--;
+                        }
+                        char[] carry = Arrays.copyOfRange(line, breakCarry,
+                                end);
+                        Arrays.fill(line, breakBlank, width, '\0');
+                        cursorY++;
+                        ensureCursorLine();
+                        System.arraycopy(carry, 0, lines.get(cursorY), 0,
+                                carry.length);
+                        cursorX = carry.length;
+                    }
+                    else
+                    {
+                        cursorX = 0;
+                        cursorY++;
+                    }
+                    breakBlank = -1;
+                    breakCarry = -1;
+                    ensureCursorLine();
+                }
+
+                if (ch == '\n')
+                {
+                    cursorX = 0;
+                    cursorY++;
+                    breakBlank = -1;
+                    breakCarry = -1;
+                    continue;
+                }
+                char[] line = lines.get(cursorY);
+                if (CharWidth.isDoubleCell(ch))
+                {
+                    char second = TerminalData.WIDE_CONTINUATION;
+                    if (Character.isHighSurrogate(ch) && i + 1 < s.length() &&
+                            Character.isLowSurrogate(s.charAt(i + 1)))
+                    {
+                        second = s.charAt(++i);
+                    }
+                    if (width < 2)
+                    {
+                        continue;
+                    }
+                    if (cursorX + 2 > width)
+                    {
+                        line[cursorX] = '\0';
+                        cursorX = width;
+                        i -= (second == TerminalData.WIDE_CONTINUATION) ? 1 : 2;
+                        continue;
+                    }
+                    line[cursorX] = ch;
+                    line[cursorX + 1] = second;
+                    cursorX += 2;
+                    if (wrap == TerminalData.WrapBehavior.WORD &&
+                            isBreakAfter(ch))
+                    {
+                        breakBlank = cursorX;
+                        breakCarry = cursorX;
+                    }
+                    continue;
+                }
+                line[cursorX] = ch;
+                if (wrap == TerminalData.WrapBehavior.WORD)
+                {
+                    if (isBreakAfter(ch))
+                    {
+                        breakBlank = cursorX + 1;
+                        breakCarry = cursorX + 1;
+                    }
+                    else if (Character.isWhitespace(ch))
+                    {
+                        breakBlank = (i > 0 && cursorX > 0) ? cursorX : -1;
+                        breakCarry = cursorX + 1;
+                    }
+                }
+                cursorX++;
+            }
+            repairPairs();
+        }
+
+        private boolean isBreakAfter(char ch)
+        {
+            return (rules.contains(TerminalData.BreakRule.HYPHEN) &&
+                    ch == '-') ||
+                    (rules.contains(TerminalData.BreakRule.PUNCTUATION) &&
+                    ",;:!?/)]}".indexOf(ch) >= 0) ||
+                    (rules.contains(TerminalData.BreakRule.CJK) && isCJK(ch));
+        }
+
+        /**
+         * Checks for the CJK characters in the alphabet, which are the only
+         * ones that are printed.
+         */
+        private static boolean isCJK(char ch)
+        {
+            return ch >= '\u2e80' && ch <= '\u9fff';
+        }
+
+        /**
+         * Compares the model with a TerminalData object.
+         * @return a description of the first difference, or null if there is
+         * none.
+         */
+        String compare(TerminalData td)
+        {
+            if (td.getLineCount() != lines.size())
+            {
+                return "line count is " + td.getLineCount() + ", expected " +
+                        lines.size();
+            }
+            if (td.getScrollCount() != scrollCount)
+            {
+                return "scroll count is " + td.getScrollCount() +
+                        ", expected " + scrollCount;
+            }
+            if (td.getCursor().x != cursorX || td.getCursor().y != cursorY)
+            {
+                return "cursor is " + td.getCursor().x + "," +
+                        td.getCursor().y + ", expected " + cursorX + "," +
+                        cursorY;
+            }
+            for (int y = 0; y < lines.size(); y++)
+            {
+                char[] line = td.getLine(y);
+                if (!Arrays.equals(line, lines.get(y)))
+                {
+                    return "line " + y + " is \"" + show(line) +
+                            "\", expected \"" + show(lines.get(y)) + "\"";
+                }
+                for (int x = td.getLineLength(y); x < width; x++)
+                {
+                    if (line[x] != '\0')
+                    {
+                        return "line " + y + " has length " +
+                                td.getLineLength(y) + " but cell " + x +
+                                " isn't blank";
+                    }
+                }
+            }
+            return null;
+        }
+
+        private static String show(char[] line)
+        {
+            StringBuilder sb = new StringBuilder();
+            for (char ch : line)
+            {
+                sb.append(ch == '\0' ? '.' : ch == '\n' ? '/' : ch);
+            }
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package com.abstrys.consolekit;
+
+/**
+ * Provides an interface for observing changes to a TerminalData object.
+ * Changes are not reported as they are made; they are collected and delivered
+ * together in one batch each time flushChanges is called on the data, which a
+ * TerminalPanel does every time it paints.
+ */
+public interface TerminalDataObserver
+{
+    /**
+     * Called with the changes made to the data since the last batch.
+     * @param td the data that changed.
+     * @param batch the changes.  The batch object is reused for every batch,
+     * so it is only valid until this function returns.
+     */
+    public void terminalDataChanged(TerminalData td, TerminalChangeBatch batch);
+}
@@ -0,0 +1,508 @@
+package com.abstrys.consolekit;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.EnumSet;
+
+/**
+ * Regression tests for TerminalData.  Run them with "ant test"; any failure
+ * is reported and makes the run exit with an error.
+ */
+public class TerminalDataTest
+{
+    private static int failures = 0;
+
+    // where the line endings start in a version 2 snapshot.
+    private static final int SNAPSHOT_LINE_ENDINGS = 44;
+
+    public static void main(String[] args)
+    {
+        testScrollRegionUpPastHalf();
+        testScrollRegionDownPastHalf();
+        testSnapshotRoundTrip();
+        testSnapshotHeaderLimits();
+        testSnapshotReflowsLikeOriginal();
+        testSnapshotVersion1();
+        testCopyReflowsLikeOriginal();
+        testSetCharKeepsPairs();
+        testSetTextKeepsPairs();
+        testSetCharsKeepsPairs();
+        testFillKeepsPairs();
+        testCopyRectKeepsPairs();
+        testMoveRectKeepsPairs();
+        testScrollRegionKeepsPairs();
+        testReflowHistoryClearsBatch();
+        testObserverRemovedDuringFlush();
+
+        if (failures > 0)
+        {
+            System.out.println(failures + " TerminalData test(s) failed.");
+            System.exit(1);
+        }
+        System.out.println("All TerminalData tests passed.");
+    }
+
+    private static void check(boolean ok, String what)
+    {
+        if (!ok)
+        {
+            failures++;
+            System.out.println("FAILED: " + what);
+        }
+    }
+
+    /**
+     * Checks a line of the data against the expected text, with '.' standing
+     * for a blank cell and '+' for the second cell of a wide character.
+     */
+    private static void checkLine(TerminalData td, int y, String expected,
+            String what)
+    {
+        char[] line = td.getLine(y);
+        StringBuilder sb = new StringBuilder();
+        for (int x = 0; x < expected.length(); x++)
+        {
+            char ch = line[x];
+            sb.append(ch == '\0' ? '.' :
+                    ch == TerminalData.WIDE_CONTINUATION ? '+' : ch);
+        }
+        check(sb.toString().equals(expected), what + ": line " + y +
+                " is \"" + sb + "\", expected \"" + expected + "\"");
+    }
+
+    private static TerminalData threeLines()
+    {
+        TerminalData td = new TerminalData(3, 3);
+        td.setText("AAA", 0, 0, 3);
+        td.setText("BBB", 0, 1, 3);
+        td.setText("CCC", 0, 2, 3);
+        return td;
+    }
+
+    /**
+     * Gets data with two wide characters printed at the start of its first
+     * line, taking its first four cells.
+     */
+    private static TerminalData twoWide()
+    {
+        TerminalData td = new TerminalData(6, 3);
+        td.print("\u4e2d\u6587");
+        return td;
+    }
+
+    /**
+     * Scrolling by more than half of the region must blank every exposed
+     * line, not just the ones the moved lines came from.
+     */
+    private static void testScrollRegionUpPastHalf()
+    {
+        TerminalData td = threeLines();
+        td.scrollRegionUp(0, 0, 3, 3, 2);
+        checkLine(td, 0, "CCC", "scrollRegionUp by 2");
+        checkLine(td, 1, "...", "scrollRegionUp by 2");
+        checkLine(td, 2, "...", "scrollRegionUp by 2");
+    }
+
+    private static void testScrollRegionDownPastHalf()
+    {
+        TerminalData td = threeLines();
+        td.scrollRegionDown(0, 0, 3, 3, 2);
+        checkLine(td, 0, "...", "scrollRegionDown by 2");
+        checkLine(td, 1, "...", "scrollRegionDown by 2");
+        checkLine(td, 2, "AAA", "scrollRegionDown by 2");
+    }
+
+    private static boolean load(TerminalData td, byte[] snapshot)
+    {
+        try
+        {
+            return td.loadSnapshot(Channels.newChannel(
+                    new ByteArrayInputStream(snapshot)));
+        }
+        catch (IOException ex)
+        {
+            return false;
+        }
+        catch (RuntimeException ex)
+        {
+            failures++;
+            System.out.println("FAILED: loadSnapshot threw " + ex);
+            return false;
+        }
+    }
+
+    private static byte[] save(TerminalData td)
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try
+        {
+            td.saveSnapshot(Channels.newChannel(out));
+        }
+        catch (IOException ex)
+        {
+            throw new RuntimeException(ex);
+        }
+        return out.toByteArray();
+    }
+
+    private static void testSnapshotRoundTrip()
+    {
+        TerminalData td = threeLines();
+        td.print("\n");
+        TerminalData copy = new TerminalData(5, 5);
+        check(load(copy, save(td)), "loading a saved snapshot");
+        checkLine(copy, 0, "AAA", "snapshot round trip");
+        checkLine(copy, 2, "CCC", "snapshot round trip");
+        check(copy.getCursor().equals(td.getCursor()),
+                "snapshot round trip: cursor is " + copy.getCursor());
+    }
+
+    /**
+     * A snapshot whose header has been corrupted must be refused, rather than
+     * loaded or allowed to throw.
+     */
+    private static void testSnapshotHeaderLimits()
+    {
+        // the header fields, as ints: tag, version, width, height, tab size,
+        // wrap behavior, cursor x, cursor y, scroll count, line count.
+        int[][] corrupt = {
+            { 1 << 30, 3, 4, 0, 0, 0, 0, 0 },
+            { 3, 1 << 30, 4, 0, 0, 0, 0, 0 },
+            { 3, 3, 4, 0, 0, 1 << 30, 0, 0 },
+            { 3, 3, 4, 0, 4, 0, 0, 0 },
+            { 3, 3, 4, 0, 0, 0, 0, 4 },
+        };
+        byte[] good = save(threeLines());
+        for (int i = 0; i < corrupt.length; i++)
+        {
+            ByteBuffer bb = ByteBuffer.wrap(good.clone());
+            for (int j = 0; j < corrupt[i].length; j++)
+            {
+                bb.putInt(8 + j * 4, corrupt[i][j]);
+            }
+            TerminalData td = threeLines();
+            check(!load(td, bb.array()), "corrupt snapshot " + i +
+                    " was loaded");
+            checkLine(td, 0, "AAA", "corrupt snapshot " + i);
+        }
+    }
+
+    /**
+     * Writing over either half of a wide character must blank the other
+     * half, so that it isn't drawn over the cell that was written.
+     */
+    private static void testSetCharKeepsPairs()
+    {
+        TerminalData td = twoWide();
+        td.setChar('x', 1, 0);
+        checkLine(td, 0, ".x\u6587+..", "setChar over a second half");
+
+        td = twoWide();
+        td.setChar('x', 2, 0);
+        checkLine(td, 0, "\u4e2d+x...", "setChar over a first half");
+
+        td = twoWide();
+        check(td.setChar('\u4e2d', 2, 0), "setChar of a wide character");
+        checkLine(td, 0, "\u4e2d+\u4e2d+..", "setChar of a wide character");
+
+        td = twoWide();
+        td.setChar('\u4e2d', 1, 0);
+        checkLine(td, 0, ".\u4e2d+...", "setChar of a wide character " +
+                "across two pairs");
+
+        td = twoWide();
+        check(!td.setChar('\u4e2d', 5, 0), "setChar of a wide character " +
+                "in the last column");
+        check(!td.setChar('\ud83d', 4, 0), "setChar of a lone surrogate");
+        checkLine(td, 0, "\u4e2d+\u6587+..", "refused setChar");
+    }
+
+    private static void testSetTextKeepsPairs()
+    {
+        TerminalData td = twoWide();
+        td.setText("y", 3, 0, 1);
+        checkLine(td, 0, "\u4e2d+.y..", "setText over a second half");
+
+        td = twoWide();
+        td.setText("ab", 1, 0, 2);
+        checkLine(td, 0, ".ab...", "setText across two pairs");
+
+        td = new TerminalData(6, 3);
+        td.setText("\u4e2d\u6587ab", 0, 0, 6);
+        checkLine(td, 0, "\u4e2d+\u6587+ab", "setText of wide characters");
+        td.setText("\u4e2d\u6587", 0, 1, 3);
+        checkLine(td, 1, "\u4e2d+ ...", "setText of a pair that doesn't fit");
+        td.setText("\u4e2d\u6587", -1, 2, 5);
+        checkLine(td, 2, " \u6587+ ..", "setText clipping a pair");
+
+        td = new TerminalData(6, 3);
+        td.setText("\ud83d\ude00x", 0, 0, 3);
+        checkLine(td, 0, "\ud83d\ude00x...", "setText of a surrogate pair");
+    }
+
+    private static void testSetCharsKeepsPairs()
+    {
+        TerminalData td = twoWide();
+        td.setChars("ab".toCharArray(), 0, 1, 0, 2);
+        checkLine(td, 0, ".ab...", "setChars across two pairs");
+
+        td = twoWide();
+        td.setChars("\u6587\uffff".toCharArray(), 0, 4, 0, 2);
+        checkLine(td, 0, "\u4e2d+\u6587+\u6587+", "setChars of a whole pair");
+    }
+
+    private static void testFillKeepsPairs()
+    {
+        TerminalData td = twoWide();
+        td.fill('z', 1, 0, 2, 2);
+        checkLine(td, 0, ".zz...", "fill across two pairs");
+        checkLine(td, 1, ".zz...", "fill across two pairs");
+
+        td = new TerminalData(6, 3);
+        td.fill('\u4e2d', 0, 1, 6, 1);
+        checkLine(td, 1, "\u4e2d+\u4e2d+\u4e2d+", "fill with a wide character");
+        td.fill('\u6587', 0, 2, 5, 1);
+        checkLine(td, 2, "\u6587+\u6587+..", "fill of an odd width with a " +
+                "wide character");
+
+        td = twoWide();
+        td.fill('\0', 3, 0, 1, 1);
+        checkLine(td, 0, "\u4e2d+....", "fill blanking a second half");
+    }
+
+    /**
+     * A copy whose edges cut through pairs must not leave half of a pair
+     * behind at either end of the destination.
+     */
+    private static void testCopyRectKeepsPairs()
+    {
+        TerminalData td = twoWide();
+        td.copyRect(1, 0, 2, 1, 1, 1);
+        checkLine(td, 0, "\u4e2d+\u6587+..", "copyRect source");
+        checkLine(td, 1, "......", "copyRect of two halves");
+
+        td = twoWide();
+        td.copyRect(0, 0, 2, 1, 3, 0);
+        checkLine(td, 0, "\u4e2d+.\u4e2d+.", "copyRect over a second half");
+    }
+
+    private static void testMoveRectKeepsPairs()
+    {
+        TerminalData td = twoWide();
+        td.moveRect(0, 0, 1, 1, 0, 1);
+        checkLine(td, 0, "..\u6587+..", "moveRect of a first half");
+        checkLine(td, 1, "......", "moveRect of a first half");
+    }
+
+    private static void testScrollRegionKeepsPairs()
+    {
+        TerminalData td = twoWide();
+        td.scrollRegionUp(0, 0, 1, 2, 1);
+        checkLine(td, 0, "..\u6587+..", "scrolling a region through a pair");
+    }
+
+    /**
+     * Adding reflowed history above line 0 moves every line down, which
+     * observers can only learn about from a cleared batch.
+     */
+    private static void testReflowHistoryClearsBatch()
+    {
+        TerminalData td = new TerminalData(4, 20, 4,
+                TerminalData.WrapBehavior.CHAR);
+        for (int i = 0; i < 10; i++)
+        {
+            td.print("abcdef\n");
+        }
+        final boolean[] cleared = new boolean[1];
+        td.addObserver(new TerminalDataObserver()
+        {
+            public void terminalDataChanged(TerminalData data,
+                    TerminalChangeBatch batch)
+            {
+                cleared[0] = batch.isCleared();
+            }
+        });
+        td.resize(8, 20, 2);
+        td.flushChanges();
+        check(td.getPendingHistory() > 0, "resize left no history to reflow");
+
+        td.reflowHistory(Integer.MAX_VALUE);
+        cleared[0] = false;
+        td.flushChanges();
+        check(cleared[0], "reflowHistory batch wasn't cleared");
+    }
+
+    /**
+     * Counts the batches delivered to it, and removes itself from the data
+     * after the first if asked to.
+     */
+    private static class CountingObserver implements TerminalDataObserver
+    {
+        private final boolean removeSelf;
+        int batches = 0;
+
+        CountingObserver(boolean removeSelf)
+        {
+            this.removeSelf = removeSelf;
+        }
+
+        public void terminalDataChanged(TerminalData td,
+                TerminalChangeBatch batch)
+        {
+            batches++;
+            if (removeSelf)
+            {
+                td.removeObserver(this);
+            }
+        }
+    }
+
+    /**
+     * An observer that removes itself while a batch is delivered must neither
+     * break the flush nor keep the batch from the observers after it.
+     */
+    private static void testObserverRemovedDuringFlush()
+    {
+        TerminalData td = new TerminalData(4, 4);
+        CountingObserver last = new CountingObserver(true);
+        td.addObserver(last);
+        td.print("a");
+        try
+        {
+            td.flushChanges();
+            td.print("b");
+            td.flushChanges();
+        }
+        catch (RuntimeException ex)
+        {
+            check(false, "flushChanges threw " + ex + " when the last " +
+                    "observer removed itself");
+        }
+        check(last.batches == 1, "removed observer saw " + last.batches +
+                " batches");
+
+        td = new TerminalData(4, 4);
+        CountingObserver first = new CountingObserver(true);
+        CountingObserver second = new CountingObserver(false);
+        td.addObserver(first);
+        td.addObserver(second);
+        td.print("a");
+        td.flushChanges();
+        check(second.batches == 1, "the observer after one that removed " +
+                "itself saw " + second.batches + " batches");
+        td.print("b");
+        td.flushChanges();
+        check(first.batches == 1 && second.batches == 2, "after removal the " +
+                "observers saw " + first.batches + " and " + second.batches +
+                " batches");
+    }
+
+    /**
+     * Checks that two TerminalData objects hold the same lines and cursor.
+     */
+    private static void checkSame(TerminalData td, TerminalData expected,
+            String what)
+    {
+        check(td.getLineCount() == expected.getLineCount(), what + ": " +
+                td.getLineCount() + " lines, expected " +
+                expected.getLineCount());
+        for (int y = 0; y < Math.min(td.getLineCount(),
+                expected.getLineCount()); y++)
+        {
+            String line = new String(td.getLine(y), 0, td.getLineLength(y));
+            String want = new String(expected.getLine(y), 0,
+                    expected.getLineLength(y));
+            check(line.equals(want), what + ": line " + y + " is \"" + line +
+                    "\", expected \"" + want + "\"");
+        }
+        check(td.getCursor().equals(expected.getCursor()), what +
+                ": cursor is " + td.getCursor() + ", expected " +
+                expected.getCursor());
+    }
+
+    private static TerminalData wrappedText()
+    {
+        TerminalData td = new TerminalData(6, 20, 4,
+                TerminalData.WrapBehavior.WORD);
+        td.setBreakRules(EnumSet.of(TerminalData.BreakRule.HYPHEN));
+        td.print("one two-three\tfour five\nsix seven");
+        return td;
+    }
+
+    /**
+     * A restored snapshot must know which lines wrapped, and with which break
+     * rules, so that resizing it gives the same result as resizing the data
+     * it was taken from.
+     */
+    private static void testSnapshotReflowsLikeOriginal()
+    {
+        TerminalData td = wrappedText();
+        TerminalData copy = new TerminalData(3, 3);
+        check(load(copy, save(td)), "loading a snapshot of wrapped text");
+        check(copy.getBreakRules().equals(td.getBreakRules()),
+                "snapshot break rules are " + copy.getBreakRules());
+
+        td.resize(11, 20, 20);
+        td.reflowHistory(Integer.MAX_VALUE);
+        copy.resize(11, 20, 20);
+        copy.reflowHistory(Integer.MAX_VALUE);
+        checkSame(copy, td, "resized snapshot");
+
+        byte[] bad = save(wrappedText());
+        bad[SNAPSHOT_LINE_ENDINGS] = 100;
+        check(!load(new TerminalData(3, 3), bad), "a snapshot with a bad " +
+                "line ending was loaded");
+    }
+
+    /**
+     * Snapshots from version 1, which didn't save line endings, still load,
+     * with the lines above the cursor ending in newlines.
+     */
+    private static void testSnapshotVersion1()
+    {
+        TerminalData td = wrappedText();
+        byte[] v2 = save(td);
+        int count = ByteBuffer.wrap(v2).getInt(36);
+        ByteBuffer v1 = ByteBuffer.allocate(v2.length - 4 - count);
+        v1.put(v2, 0, 40);
+        v1.putInt(4, 1);
+        v1.put(v2, SNAPSHOT_LINE_ENDINGS + count,
+                v2.length - SNAPSHOT_LINE_ENDINGS - count);
+
+        TerminalData copy = new TerminalData(3, 3);
+        check(load(copy, v1.array()), "loading a version 1 snapshot");
+        checkSame(copy, td, "version 1 snapshot");
+
+        // none of the lines are joined when they are made wider.
+        copy.resize(11, 20, 20);
+        copy.reflowHistory(Integer.MAX_VALUE);
+        for (int y = 0; y < td.getLineCount() - 1; y++)
+        {
+            checkLine(copy, y, new String(td.getLine(y), 0,
+                    td.getLineLength(y)).replace('\0', '.'),
+                    "resized version 1 snapshot");
+        }
+    }
+
+    /**
+     * A copy must keep the break rules, so that it reflows as the original
+     * does.
+     */
+    private static void testCopyReflowsLikeOriginal()
+    {
+        TerminalData td = wrappedText();
+        TerminalData copy = new TerminalData(td);
+        check(copy.getBreakRules().equals(td.getBreakRules()),
+                "copied break rules are " + copy.getBreakRules());
+        td.print(" eight-nine-ten");
+        copy.print(" eight-nine-ten");
+        td.resize(8, 20, 20);
+        td.reflowHistory(Integer.MAX_VALUE);
+        copy.resize(8, 20, 20);
+        copy.reflowHistory(Integer.MAX_VALUE);
+        checkSame(copy, td, "resized copy");
+    }
+}
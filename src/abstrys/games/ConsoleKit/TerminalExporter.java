@@ -0,0 +1,459 @@
+package com.abstrys.consolekit;
+
+import java.awt.Color;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Renders the contents of a TerminalData object to image files without a
+ * window, using the font and colors from a TerminalPrefs object.  Single
+ * frames can be saved as PNG files, and a series of frames can be recorded as
+ * an animated GIF.
+ * <p>
+ * Each character is rendered once and the result is reused for every cell and
+ * frame it appears in.  GIF frames only hold the rectangle of cells that
+ * changed since the frame before, and are written to the file as they are
+ * recorded, so long recordings don't build up in memory.
+ */
+public class TerminalExporter
+{
+    private static final String GIF_FORMAT = "javax_imageio_gif_image_1.0";
+
+    private final TerminalPrefs prefs;
+    private final IndexColorModel colorModel;
+    private final int rampShift;
+    private final int rampFrom;
+    private final int rampRange;
+    private final HashMap<Integer, BufferedImage> glyphs;
+    private final int charWidth;
+    private final int lineHeight;
+    private final int ascent;
+
+    // state of the GIF being recorded.
+    private ImageWriter gifWriter = null;
+    private ImageOutputStream gifStream = null;
+    private int gifTop;
+    private int gifRows;
+    private int gifCols;
+    private char[][] gifCells;
+    private BufferedImage pendingImage = null;
+    private int pendingX;
+    private int pendingY;
+    private int pendingDelay;
+    private boolean pendingFirst;
+
+    /**
+     * Constructs a new TerminalExporter.
+     * @param prefs the preferences to take the font, colors and text
+     * antialiasing hint from.
+     */
+    public TerminalExporter(TerminalPrefs prefs)
+    {
+        this.prefs = new TerminalPrefs(prefs);
+        this.glyphs = new HashMap<Integer, BufferedImage>();
+
+        // the palette runs from the background color to the foreground color,
+        // which covers every shade that antialiased text can produce.
+        byte[] r = new byte[256];
+        byte[] g = new byte[256];
+        byte[] b = new byte[256];
+        Color bg = this.prefs.bgColor;
+        Color fg = this.prefs.fgColor;
+        for (int i = 0; i < 256; i++)
+        {
+            r[i] = (byte)(bg.getRed() + (fg.getRed() - bg.getRed()) * i / 255);
+            g[i] = (byte)(bg.getGreen() + (fg.getGreen() - bg.getGreen()) * i / 255);
+            b[i] = (byte)(bg.getBlue() + (fg.getBlue() - bg.getBlue()) * i / 255);
+        }
+        this.colorModel = new IndexColorModel(8, 256, r, g, b);
+
+        // a pixel's place on the palette is measured on the color channel
+        // that changes the most from the background to the foreground.
+        int[] from = { bg.getRed(), bg.getGreen(), bg.getBlue() };
+        int[] to = { fg.getRed(), fg.getGreen(), fg.getBlue() };
+        int channel = 0;
+        for (int i = 1; i < 3; i++)
+        {
+            if (Math.abs(to[i] - from[i]) >
+                    Math.abs(to[channel] - from[channel]))
+            {
+                channel = i;
+            }
+        }
+        this.rampShift = 16 - channel * 8;
+        this.rampFrom = from[channel];
+        this.rampRange = to[channel] - from[channel];
+
+        BufferedImage scratch = new BufferedImage(1, 1,
+                BufferedImage.TYPE_INT_RGB);
+        Graphics2D g2 = scratch.createGraphics();
+        FontMetrics fm = g2.getFontMetrics(this.prefs.font);
+        this.charWidth = fm.charWidth('0');
+        this.lineHeight = fm.getHeight();
+        this.ascent = fm.getLeading() + fm.getAscent();
+        g2.dispose();
+    }
+
+    /**
+     * Renders a block of lines to an image.
+     * @param td the data to render.
+     * @param top the first line to render.
+     * @param rows the number of lines to render.
+     * @return an image of the lines.
+     */
+    public BufferedImage render(TerminalData td, int top, int rows)
+    {
+        int cols = td.getWidth();
+        BufferedImage image = createImage(cols * charWidth, rows * lineHeight);
+        Graphics2D g2 = image.createGraphics();
+        for (int row = 0; row < rows; row++)
+        {
+            char[] line = getLine(td, top + row);
+            for (int col = 0; line != null && col < Math.min(cols, line.length);
+                    col++)
+            {
+                drawCell(g2, line, col, col * charWidth, row * lineHeight);
+            }
+        }
+        g2.dispose();
+        return image;
+    }
+
+    /**
+     * Renders a block of lines and saves them as a PNG file.
+     * @param td the data to render.
+     * @param top the first line to render.
+     * @param rows the number of lines to render.
+     * @param file the file to write.
+     * @throws IOException if an error occured while writing the file.
+     */
+    public void writePng(TerminalData td, int top, int rows, File file)
+            throws IOException
+    {
+        ImageIO.write(render(td, top, rows), "png", file);
+    }
+
+    /**
+     * Starts recording an animated GIF.  Frames are added with addGifFrame,
+     * and the file is completed with finishGif.
+     * @param file the file to write.
+     * @param top the first line of each frame.
+     * @param rows the number of lines in each frame.
+     * @param cols the number of characters in each line.
+     * @throws IOException if an error occured while opening the file.
+     */
+    public void startGif(File file, int top, int rows, int cols)
+            throws IOException
+    {
+        if (gifWriter != null)
+        {
+            finishGif();
+        }
+        gifWriter = ImageIO.getImageWritersByFormatName("gif").next();
+        file.delete();
+        gifStream = ImageIO.createImageOutputStream(file);
+        gifWriter.setOutput(gifStream);
+        gifWriter.prepareWriteSequence(null);
+        gifTop = top;
+        gifRows = rows;
+        gifCols = cols;
+        gifCells = null;
+        pendingImage = null;
+    }
+
+    /**
+     * Adds a frame to the GIF being recorded.  Only the cells that differ from
+     * the previous frame are rendered and stored; a frame with no changes just
+     * extends the time that the previous frame is shown.
+     * @param td the data to record.
+     * @param delay how long the frame is shown for, in hundredths of a second.
+     * @throws IOException if an error occured while writing the file.
+     */
+    public void addGifFrame(TerminalData td, int delay) throws IOException
+    {
+        // find the rectangle of cells that changed.
+        int x0 = gifCols;
+        int y0 = gifRows;
+        int x1 = -1;
+        int y1 = -1;
+        boolean first = (gifCells == null);
+        if (first)
+        {
+            gifCells = new char[gifRows][gifCols];
+        }
+        for (int row = 0; row < gifRows; row++)
+        {
+            char[] line = getLine(td, gifTop + row);
+            char[] prev = gifCells[row];
+            for (int col = 0; col < gifCols; col++)
+            {
+                char ch = (line != null && col < line.length) ? line[col] : '\0';
+                if (first || ch != prev[col])
+                {
+                    prev[col] = ch;
+                    x0 = Math.min(x0, col);
+                    x1 = Math.max(x1, col);
+                    y0 = Math.min(y0, row);
+                    y1 = Math.max(y1, row);
+                }
+            }
+        }
+
+        if (x1 >= 0)
+        {
+            // don't cut a wide character or surrogate pair in half.  Growing
+            // the rectangle can cut a pair on another row, so keep going
+            // until it stops growing.
+            boolean grown = true;
+            while (grown)
+            {
+                grown = false;
+                for (int row = y0; row <= y1; row++)
+                {
+                    char[] cells = gifCells[row];
+                    if (x0 > 0 && isPairEnd(cells[x0]))
+                    {
+                        x0--;
+                        grown = true;
+                    }
+                    if (x1 < gifCols - 1 && CharWidth.isDoubleCell(cells[x1]))
+                    {
+                        x1++;
+                        grown = true;
+                    }
+                }
+            }
+        }
+        else
+        {
+            if (pendingImage != null)
+            {
+                pendingDelay += delay;
+            }
+            return;
+        }
+
+        // the previous frame's delay is now known, so it can be written.
+        writePendingFrame();
+
+        BufferedImage image = createImage((x1 - x0 + 1) * charWidth,
+                (y1 - y0 + 1) * lineHeight);
+        Graphics2D g2 = image.createGraphics();
+        for (int row = y0; row <= y1; row++)
+        {
+            for (int col = x0; col <= x1; col++)
+            {
+                drawCell(g2, gifCells[row], col, (col - x0) * charWidth,
+                        (row - y0) * lineHeight);
+            }
+        }
+        g2.dispose();
+
+        pendingImage = image;
+        pendingX = x0 * charWidth;
+        pendingY = y0 * lineHeight;
+        pendingDelay = delay;
+        pendingFirst = first;
+    }
+
+    /**
+     * Writes the last frame and closes the GIF file.
+     * @throws IOException if an error occured while writing the file.
+     */
+    public void finishGif() throws IOException
+    {
+        if (gifWriter == null)
+        {
+            return;
+        }
+        try
+        {
+            writePendingFrame();
+            gifWriter.endWriteSequence();
+        }
+        finally
+        {
+            gifStream.close();
+            gifWriter.dispose();
+            gifWriter = null;
+            gifStream = null;
+            gifCells = null;
+        }
+    }
+
+    private void writePendingFrame() throws IOException
+    {
+        if (pendingImage == null)
+        {
+            return;
+        }
+
+        IIOMetadata meta = gifWriter.getDefaultImageMetadata(
+                new ImageTypeSpecifier(pendingImage), null);
+        IIOMetadataNode root = (IIOMetadataNode)meta.getAsTree(GIF_FORMAT);
+
+        IIOMetadataNode gce = getChild(root, "GraphicControlExtension");
+        gce.setAttribute("disposalMethod", "doNotDispose");
+        gce.setAttribute("userInputFlag", "FALSE");
+        gce.setAttribute("transparentColorFlag", "FALSE");
+        gce.setAttribute("delayTime", Integer.toString(pendingDelay));
+        gce.setAttribute("transparentColorIndex", "0");
+
+        IIOMetadataNode desc = getChild(root, "ImageDescriptor");
+        desc.setAttribute("imageLeftPosition", Integer.toString(pendingX));
+        desc.setAttribute("imageTopPosition", Integer.toString(pendingY));
+
+        if (pendingFirst)
+        {
+            // loop forever.
+            IIOMetadataNode apps = getChild(root, "ApplicationExtensions");
+            IIOMetadataNode app = new IIOMetadataNode("ApplicationExtension");
+            app.setAttribute("applicationID", "NETSCAPE");
+            app.setAttribute("authenticationCode", "2.0");
+            app.setUserObject(new byte[] { 1, 0, 0 });
+            apps.appendChild(app);
+        }
+
+        meta.setFromTree(GIF_FORMAT, root);
+        gifWriter.writeToSequence(new IIOImage(pendingImage, null, meta), null);
+        pendingImage = null;
+    }
+
+    private static IIOMetadataNode getChild(IIOMetadataNode root, String name)
+    {
+        for (int i = 0; i < root.getLength(); i++)
+        {
+            if (root.item(i).getNodeName().equals(name))
+            {
+                return (IIOMetadataNode)root.item(i);
+            }
+        }
+        IIOMetadataNode node = new IIOMetadataNode(name);
+        root.appendChild(node);
+        return node;
+    }
+
+    /**
+     * Gets a line without adding lines to the data.
+     */
+    private static char[] getLine(TerminalData td, int y)
+    {
+        if (y < 0 || y >= td.getLineCount())
+        {
+            return null;
+        }
+        return td.getLine(y);
+    }
+
+    private BufferedImage createImage(int w, int h)
+    {
+        // a new indexed image is filled with index 0, the background color.
+        return new BufferedImage(Math.max(w, 1), Math.max(h, 1),
+                BufferedImage.TYPE_BYTE_INDEXED, colorModel);
+    }
+
+    /**
+     * Gets the palette index of the shade closest to a color between the
+     * background and foreground colors.
+     */
+    private int paletteIndex(int rgb)
+    {
+        if (rampRange == 0)
+        {
+            return 0;
+        }
+        int c = (rgb >> rampShift) & 0xff;
+        int i = Math.round((c - rampFrom) * 255f / rampRange);
+        return Math.max(0, Math.min(i, 255));
+    }
+
+    private static boolean isPairEnd(char ch)
+    {
+        return ch == TerminalData.WIDE_CONTINUATION ||
+                Character.isLowSurrogate(ch);
+    }
+
+    /**
+     * Draws one cell of a line.  The first cell of a wide character or
+     * surrogate pair draws a glyph two cells wide, and the second cell draws
+     * nothing.
+     */
+    private void drawCell(Graphics2D g2, char[] line, int col, int x, int y)
+    {
+        char ch = line[col];
+        if (ch == '\0' || ch == ' ' || isPairEnd(ch))
+        {
+            g2.setColor(prefs.bgColor);
+            g2.fillRect(x, y, charWidth, lineHeight);
+            return;
+        }
+        if (CharWidth.isDoubleCell(ch) && col + 1 < line.length)
+        {
+            int cp = Character.isLowSurrogate(line[col + 1]) ?
+                    Character.toCodePoint(ch, line[col + 1]) : ch;
+            g2.drawImage(getGlyph(cp, 2), x, y, null);
+            return;
+        }
+        g2.drawImage(getGlyph(ch, 1), x, y, null);
+    }
+
+    /**
+     * Gets the rendered image of a character, rendering it the first time it
+     * is asked for.
+     */
+    private BufferedImage getGlyph(int cp, int cells)
+    {
+        BufferedImage glyph = glyphs.get(cp);
+        if (glyph != null)
+        {
+            return glyph;
+        }
+
+        // render in full color, then map the result onto the palette.
+        int w = charWidth * cells;
+        BufferedImage rgb = new BufferedImage(w, lineHeight,
+                BufferedImage.TYPE_INT_RGB);
+        Graphics2D g2 = rgb.createGraphics();
+        g2.setColor(prefs.bgColor);
+        g2.fillRect(0, 0, w, lineHeight);
+        g2.setFont(prefs.font);
+        if (prefs.renderHint != null)
+        {
+            g2.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING,
+                    prefs.renderHint);
+        }
+        g2.setColor(prefs.fgColor);
+        char[] chars = Character.toChars(cp);
+        g2.drawChars(chars, 0, chars.length, 0, ascent);
+        g2.dispose();
+
+        // drawing the result onto an indexed image would pick colors through
+        // a coarse inverse color map, which can land well away from the
+        // shade, so each pixel's index is worked out from the palette ramp.
+        glyph = createImage(w, lineHeight);
+        WritableRaster raster = glyph.getRaster();
+        for (int y = 0; y < lineHeight; y++)
+        {
+            for (int x = 0; x < w; x++)
+            {
+                raster.setSample(x, y, 0, paletteIndex(rgb.getRGB(x, y)));
+            }
+        }
+        glyphs.put(cp, glyph);
+        return glyph;
+    }
+}
@@ -0,0 +1,337 @@
+package com.abstrys.consolekit;
+
+import java.awt.Color;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Tests for TerminalExporter's GIF recording.  The GIF is read back with
+ * ImageIO, and each frame's position, size, delay and pixels are checked.
+ * Run them with "ant test"; any failure is reported and makes the run exit
+ * with an error.
+ */
+public class TerminalExporterTest
+{
+    private static int failures = 0;
+
+    private static final String GIF_FORMAT = "javax_imageio_gif_image_1.0";
+    private static final char WIDE = '\u4e2d';
+    private static final char WIDE2 = '\u6587';
+    private static final int COLS = 10;
+    private static final int ROWS = 3;
+
+    /**
+     * A frame read back from a GIF, with its position in cells.
+     */
+    private static class Frame
+    {
+        BufferedImage image;
+        int x;
+        int y;
+        int cols;
+        int rows;
+        int delay;
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        TerminalPrefs prefs = new TerminalPrefs();
+        prefs.fgColor = new Color(255, 200, 0);
+        prefs.bgColor = new Color(0, 40, 80);
+        prefs.renderHint = RenderingHints.VALUE_TEXT_ANTIALIAS_ON;
+        TerminalExporter exporter = new TerminalExporter(prefs);
+
+        BufferedImage scratch = new BufferedImage(1, 1,
+                BufferedImage.TYPE_INT_RGB);
+        Graphics2D g2 = scratch.createGraphics();
+        FontMetrics fm = g2.getFontMetrics(prefs.font);
+        int cw = fm.charWidth('0');
+        int lh = fm.getHeight();
+        g2.dispose();
+
+        File file = File.createTempFile("exporter", ".gif");
+        file.deleteOnExit();
+        ArrayList<TerminalData> states = record(exporter, file);
+        ArrayList<Frame> frames = readGif(file, cw, lh);
+
+        testChangedRects(frames);
+        testFrameContents(exporter, states, frames, cw, lh);
+        testPalette(prefs, frames);
+        testPaletteIndexing(prefs, frames, cw, lh, fm.getLeading() +
+                fm.getAscent());
+
+        if (failures > 0)
+        {
+            System.out.println(failures + " TerminalExporter test(s) failed.");
+            System.exit(1);
+        }
+        System.out.println("All TerminalExporter tests passed.");
+    }
+
+    private static void check(boolean ok, String what)
+    {
+        if (!ok)
+        {
+            failures++;
+            System.out.println("FAILED: " + what);
+        }
+    }
+
+    /**
+     * Records a GIF of a series of changes, and gets a copy of the data for
+     * each frame that should be written.
+     */
+    private static ArrayList<TerminalData> record(TerminalExporter exporter,
+            File file) throws IOException
+    {
+        ArrayList<TerminalData> states = new ArrayList<TerminalData>();
+        TerminalData td = new TerminalData(COLS, ROWS);
+        exporter.startGif(file, 0, ROWS, COLS);
+
+        // frame 0: everything.
+        td.setText("ab" + WIDE + "\ud83d\ude00", 0, 0, COLS);
+        td.setChar(WIDE, 1, 1);
+        td.setText("Hello", 3, 1, 5);
+        exporter.addGifFrame(td, 10);
+        states.add(new TerminalData(td));
+
+        // frame 1: one cell.
+        td.setChar('x', 4, 1);
+        exporter.addGifFrame(td, 20);
+        states.add(new TerminalData(td));
+
+        // no change, so frame 1 is shown for longer.
+        exporter.addGifFrame(td, 5);
+
+        // frame 2: two cells far apart.
+        td.setChar('y', 1, 0);
+        td.setChar('z', 8, 2);
+        exporter.addGifFrame(td, 30);
+        states.add(new TerminalData(td));
+
+        // frame 3: only the first cell of a wide character changes.
+        td.setChar(WIDE2, 2, 0);
+        exporter.addGifFrame(td, 40);
+        states.add(new TerminalData(td));
+
+        // frame 4: only the low surrogate of a pair changes.
+        td.setText("\ud83d\ude01", 4, 0, 2);
+        exporter.addGifFrame(td, 50);
+        states.add(new TerminalData(td));
+
+        // frame 5: only column 1 changes on the first two rows.  The second
+        // row's pair at columns 1 and 2 takes in column 2, which cuts the
+        // first row's pair at columns 2 and 3, so the rectangle grows again.
+        td.setChar('q', 1, 0);
+        td.setChar(WIDE2, 1, 1);
+        exporter.addGifFrame(td, 60);
+        states.add(new TerminalData(td));
+
+        exporter.finishGif();
+        return states;
+    }
+
+    private static ArrayList<Frame> readGif(File file, int cw, int lh)
+            throws IOException
+    {
+        ArrayList<Frame> frames = new ArrayList<Frame>();
+        ImageReader reader = ImageIO.getImageReadersByFormatName("gif").next();
+        ImageInputStream in = ImageIO.createImageInputStream(file);
+        try
+        {
+            reader.setInput(in);
+            int n = reader.getNumImages(true);
+            for (int i = 0; i < n; i++)
+            {
+                IIOMetadataNode root = (IIOMetadataNode)reader
+                        .getImageMetadata(i).getAsTree(GIF_FORMAT);
+                IIOMetadataNode desc = (IIOMetadataNode)root
+                        .getElementsByTagName("ImageDescriptor").item(0);
+                IIOMetadataNode gce = (IIOMetadataNode)root
+                        .getElementsByTagName("GraphicControlExtension").item(0);
+
+                Frame f = new Frame();
+                f.image = reader.read(i);
+                f.x = Integer.parseInt(desc.getAttribute("imageLeftPosition")) / cw;
+                f.y = Integer.parseInt(desc.getAttribute("imageTopPosition")) / lh;
+                f.cols = Integer.parseInt(desc.getAttribute("imageWidth")) / cw;
+                f.rows = Integer.parseInt(desc.getAttribute("imageHeight")) / lh;
+                f.delay = Integer.parseInt(gce.getAttribute("delayTime"));
+                frames.add(f);
+            }
+        }
+        finally
+        {
+            reader.dispose();
+            in.close();
+        }
+        return frames;
+    }
+
+    private static void checkFrame(ArrayList<Frame> frames, int i, int x,
+            int y, int cols, int rows, int delay, String what)
+    {
+        if (i >= frames.size())
+        {
+            check(false, what + ": frame " + i + " is missing");
+            return;
+        }
+        Frame f = frames.get(i);
+        check(f.x == x && f.y == y && f.cols == cols && f.rows == rows,
+                what + ": frame " + i + " covers " + f.x + "," + f.y + " " +
+                f.cols + "x" + f.rows + ", expected " + x + "," + y + " " +
+                cols + "x" + rows);
+        check(f.delay == delay, what + ": frame " + i + " has a delay of " +
+                f.delay + ", expected " + delay);
+    }
+
+    /**
+     * Each frame holds the rectangle of cells that changed, grown to keep
+     * every wide character and surrogate pair whole.
+     */
+    private static void testChangedRects(ArrayList<Frame> frames)
+    {
+        check(frames.size() == 6, "the GIF has " + frames.size() +
+                " frames, expected 6");
+        checkFrame(frames, 0, 0, 0, COLS, ROWS, 10, "first frame");
+        checkFrame(frames, 1, 4, 1, 1, 1, 25, "one cell changed");
+        checkFrame(frames, 2, 1, 0, 8, 3, 30, "two cells changed");
+        checkFrame(frames, 3, 2, 0, 2, 1, 40, "first half of a pair changed");
+        checkFrame(frames, 4, 4, 0, 2, 1, 50, "second half of a pair changed");
+        checkFrame(frames, 5, 1, 0, 3, 2, 60, "pairs on two rows");
+    }
+
+    /**
+     * The pixels of each frame match the same cells rendered in full.
+     */
+    private static void testFrameContents(TerminalExporter exporter,
+            ArrayList<TerminalData> states, ArrayList<Frame> frames, int cw,
+            int lh)
+    {
+        for (int i = 0; i < Math.min(states.size(), frames.size()); i++)
+        {
+            BufferedImage full = exporter.render(states.get(i), 0, ROWS);
+            Frame f = frames.get(i);
+            int bad = 0;
+            for (int y = 0; y < f.image.getHeight(); y++)
+            {
+                for (int x = 0; x < f.image.getWidth(); x++)
+                {
+                    if (f.image.getRGB(x, y) !=
+                            full.getRGB(f.x * cw + x, f.y * lh + y))
+                    {
+                        bad++;
+                    }
+                }
+            }
+            check(bad == 0, "frame " + i + " has " + bad +
+                    " pixels that don't match the rendered data");
+        }
+    }
+
+    /**
+     * The palette runs from the background color at index 0 to the
+     * foreground color at index 255.
+     */
+    private static void testPalette(TerminalPrefs prefs,
+            ArrayList<Frame> frames)
+    {
+        for (Frame f : frames)
+        {
+            if (!(f.image.getColorModel() instanceof IndexColorModel))
+            {
+                check(false, "a frame isn't indexed");
+                return;
+            }
+            IndexColorModel cm = (IndexColorModel)f.image.getColorModel();
+            check(cm.getMapSize() == 256, "the palette has " +
+                    cm.getMapSize() + " colors, expected 256");
+            check(cm.getRGB(0) == prefs.bgColor.getRGB(),
+                    "palette index 0 isn't the background color");
+            check(cm.getRGB(255) == prefs.fgColor.getRGB(),
+                    "palette index 255 isn't the foreground color");
+            for (int i = 1; i < 256; i++)
+            {
+                if (cm.getRed(i) < cm.getRed(i - 1) ||
+                        cm.getGreen(i) < cm.getGreen(i - 1) ||
+                        cm.getBlue(i) > cm.getBlue(i - 1))
+                {
+                    check(false, "palette index " + i +
+                            " isn't between its neighbours");
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * The shades of an antialiased glyph map onto the palette entries closest
+     * to them, and blank cells use the background index.
+     */
+    private static void testPaletteIndexing(TerminalPrefs prefs,
+            ArrayList<Frame> frames, int cw, int lh, int ascent)
+    {
+        // frame 1 is the single cell holding 'x'.
+        BufferedImage rgb = new BufferedImage(cw, lh,
+                BufferedImage.TYPE_INT_RGB);
+        Graphics2D g2 = rgb.createGraphics();
+        g2.setColor(prefs.bgColor);
+        g2.fillRect(0, 0, cw, lh);
+        g2.setFont(prefs.font);
+        g2.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING,
+                prefs.renderHint);
+        g2.setColor(prefs.fgColor);
+        g2.drawString("x", 0, ascent);
+        g2.dispose();
+
+        BufferedImage cell = frames.get(1).image;
+        int worst = 0;
+        int shades = 0;
+        for (int y = 0; y < lh; y++)
+        {
+            for (int x = 0; x < cw; x++)
+            {
+                int index = cell.getRaster().getSample(x, y, 0);
+                if (index != 0 && index != 255)
+                {
+                    shades++;
+                }
+                Color want = new Color(rgb.getRGB(x, y));
+                Color got = new Color(cell.getRGB(x, y));
+                worst = Math.max(worst, Math.abs(want.getRed() - got.getRed()));
+                worst = Math.max(worst,
+                        Math.abs(want.getGreen() - got.getGreen()));
+                worst = Math.max(worst,
+                        Math.abs(want.getBlue() - got.getBlue()));
+            }
+        }
+        check(worst <= 2, "a glyph pixel is " + worst +
+                " away from its color in full color");
+        check(shades > 0, "an antialiased glyph has no shades in between");
+
+        // the blank cells right of the text in frame 0.
+        BufferedImage first = frames.get(0).image;
+        int bad = 0;
+        for (int y = 2 * lh; y < 3 * lh; y++)
+        {
+            for (int x = 0; x < first.getWidth(); x++)
+            {
+                if (first.getRaster().getSample(x, y, 0) != 0)
+                {
+                    bad++;
+                }
+            }
+        }
+        check(bad == 0, bad + " pixels of a blank line aren't index 0");
+    }
+}
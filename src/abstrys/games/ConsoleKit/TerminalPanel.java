@@ -1,7 +1,20 @@
 package com.abstrys.consolekit;
 
 import java.awt.*;
+import java.awt.datatransfer.DataFlavor;
+import java.awt.datatransfer.UnsupportedFlavorException;
 import java.awt.event.*;
+import java.awt.font.FontRenderContext;
+import java.awt.image.BufferedImage;
+import java.awt.image.VolatileImage;
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import javax.swing.*;
 import javax.swing.event.MouseInputAdapter;
 
@@ -14,30 +27,83 @@ import javax.swing.event.MouseInputAdapter;
  */
 public class TerminalPanel extends JPanel implements KeyListener
 {
+    /**
+     * Constants used to define the shape of the input cursor.
+     */
+    public enum CursorStyle
+    {
+        BAR, BLOCK, UNDERLINE
+    };
+
+    // a single blink clock is shared by every panel that is showing a prompt.
+    private static final int CURSOR_BLINK_DELAY = 500;
+    private static final ArrayList<TerminalPanel> blinkingPanels =
+            new ArrayList<TerminalPanel>();
+    private static Timer blinkTimer = null;
+
+    // the smallest band of rows worth handing to another thread.
+    private static final int MIN_BAND_ROWS = 8;
+
+    // the number of history lines reflowed each time the event thread is
+    // idle after a resize.
+    private static final int HISTORY_REFLOW_LINES = 256;
+
+    // how often, in milliseconds, a shared grid is checked for new output.
+    private static final int SHARED_GRID_POLL_DELAY = 15;
+
     private TerminalData data;
     private TerminalPrefs prefs;
     private int lineOffset = 0;
     private int charWidth = 0;
     private int lineHeight = 0;
     private int topBaseline = 0;
-    private char[] cursorChar = {'|'};
-    private Timer cursorTimer;
-    private final int cursorBlinkDelay = 500;
+    private CursorStyle cursorStyle = CursorStyle.BAR;
+    private Rectangle cursorDrawnAt = null;
     private boolean acceptInput = false;
     private boolean cursorIsVisible = false;
     private TerminalListener listener = null;
-    private String keyInput = "";
+    private boolean echoInput = true;
+    private LineEditor lineEditor = new LineEditor();
+
+    // where the line being edited is shown: the cell its first character is
+    // in, the cell after its last character, the length of the line shown and
+    // the data's scroll count when they were found.  inputStart is null until
+    // the line is first echoed.
+    private Point inputStart = null;
+    private Point inputEnd = null;
+    private int inputLength = 0;
+    private int inputScroll = 0;
     private final int WIDTHPADDING = 4;
     private final int HEIGHTPADDING = 4;
-    private boolean firstPaint;
+    private BufferedImage backBuffer = null;
+    private boolean backBufferValid = false;
+    private int backBufferTop = 0;
+    private boolean parallelRendering = false;
+    private boolean acceleratedRendering = false;
+    private VolatileImage accelBuffer = null;
+    private boolean accelBufferValid = false;
+    private Rectangle accelShift = null;
+    private int accelShiftDy = 0;
+    private Rectangle accelDamage = null;
+    private boolean autoResize = false;
+    private Timer historyTimer = null;
+    private SharedTerminalGrid sharedGrid = null;
+    private Timer sharedGridTimer = null;
 
-    Action updateCursorAction = new AbstractAction()
+    private static final Action blinkAction = new AbstractAction()
     {
-        boolean shouldDraw = false;
         public void actionPerformed(ActionEvent e)
         {
-            cursorIsVisible = !cursorIsVisible;
-            repaint();
+            TerminalPanel[] panels;
+            synchronized(blinkingPanels)
+            {
+                panels = blinkingPanels.toArray(
+                        new TerminalPanel[blinkingPanels.size()]);
+            }
+            for(TerminalPanel p : panels)
+            {
+                p.blinkCursor();
+            }
         }
     };
     
@@ -93,6 +159,16 @@ public class TerminalPanel extends JPanel implements KeyListener
         init();
     }
 
+    /**
+     * Gets the character data displayed by the panel.  Changes made to the
+     * data directly are shown the next time the panel is repainted.
+     * @return the panel's TerminalData.
+     */
+    public TerminalData getData()
+    {
+        return data;
+    }
+
     public void setRunnable(Runnable thread)
     {
         Thread procThread = new Thread(thread);
@@ -117,7 +193,133 @@ public class TerminalPanel extends JPanel implements KeyListener
                 requestFocusInWindow();
             }
         });
-        firstPaint = true;
+        this.addComponentListener(new ComponentAdapter(){
+            @Override
+            public void componentResized(ComponentEvent e)
+            {
+                if(autoResize)
+                {
+                    fitToComponentSize();
+                }
+            }
+        });
+        this.historyTimer = new Timer(0, new ActionListener(){
+            public void actionPerformed(ActionEvent e)
+            {
+                reflowSomeHistory();
+            }
+        });
+        updateMetrics();
+    }
+
+    /**
+     * Changes the number of characters shown across and down the panel.  The
+     * text is reflowed to the new width: the lines on display are reflowed
+     * straight away, and older lines a few at a time while the event thread
+     * is idle.
+     * @param cols the new width, in characters.
+     * @param rows the new height, in characters.
+     */
+    public void setTerminalSize(int cols, int rows)
+    {
+        if(cols <= 0 || rows <= 0)
+        {
+            return;
+        }
+        prefs.displayWidthChars = cols;
+        prefs.displayHeightChars = rows;
+        prefs.bufferWidthChars = cols;
+        prefs.bufferHeightChars = Math.max(prefs.bufferHeightChars, rows);
+        data.resize(cols, prefs.bufferHeightChars, rows);
+        lineOffset = Math.max(0, data.getCursor().y - rows + 1);
+        if(inputStart != null)
+        {
+            findInputAfterResize();
+        }
+        backBufferValid = false;
+        accelBufferValid = false;
+        if(data.getPendingHistory() > 0)
+        {
+            historyTimer.start();
+        }
+        if(!autoResize)
+        {
+            resizeParentToOptimumSize();
+        }
+        repaint();
+    }
+
+    /**
+     * Sets whether the number of characters shown follows the size of the
+     * panel, so that resizing the window reflows the text to fit.
+     * @param auto true to resize the text with the panel.
+     */
+    public void setAutoResize(boolean auto)
+    {
+        autoResize = auto;
+        if(auto)
+        {
+            fitToComponentSize();
+        }
+    }
+
+    public boolean isAutoResize()
+    {
+        return autoResize;
+    }
+
+    /**
+     * Finds where the line being edited is after the data has been reflowed,
+     * by counting back from the cursor, and redraws it there.
+     */
+    private void findInputAfterResize()
+    {
+        int width = data.getWidth();
+        int cells = 0;
+        for(int i = 0; i < lineEditor.getCursor(); i++)
+        {
+            char ch = lineEditor.charAt(i);
+            if(!Character.isLowSurrogate(ch))
+            {
+                cells += CharWidth.isDoubleCell(ch) ? 2 : 1;
+            }
+        }
+        Point cpos = data.getCursor();
+        int start = cpos.y*width + cpos.x - cells;
+        inputStart = new Point(Math.floorMod(start, width),
+                Math.floorDiv(start, width));
+        inputEnd = inputCell(lineEditor.length());
+        inputLength = lineEditor.length();
+        inputScroll = data.getScrollCount();
+        drawInput(0);
+    }
+
+    private void fitToComponentSize()
+    {
+        if(charWidth <= 0 || lineHeight <= 0)
+        {
+            return;
+        }
+        int cols = (getWidth() - WIDTHPADDING*2) / charWidth;
+        int rows = (getHeight() - HEIGHTPADDING*2) / lineHeight;
+        if(cols != prefs.displayWidthChars || rows != prefs.displayHeightChars)
+        {
+            setTerminalSize(cols, rows);
+        }
+    }
+
+    /**
+     * Reflows a batch of the lines left waiting by the last resize.  They are
+     * added above the lines on display, so the view is moved down to match
+     * and nothing visible changes.
+     */
+    private void reflowSomeHistory()
+    {
+        lineOffset += data.reflowHistory(HISTORY_REFLOW_LINES);
+        if(data.getPendingHistory() == 0)
+        {
+            historyTimer.stop();
+        }
     }
     
     public void resetPrefs()
@@ -125,16 +327,76 @@ public class TerminalPanel extends JPanel implements KeyListener
         this.setFont(prefs.font);
         this.setBackground(prefs.bgColor);
         this.setForeground(prefs.fgColor);
-        lineHeight = 0;
-        firstPaint = true;
+        updateMetrics();
+        resizeParentToOptimumSize();
+        backBufferValid = false;
+        accelBufferValid = false;
+        repaint();
     }
-    
-    private void setTextAttributes(Graphics2D g2)
+
+    /**
+     * Sets the size of a character cell from the panel's font.  The cell is
+     * only measured if the prefs don't already hold metrics for the font in
+     * the rendering context of the panel's font metrics, which takes in the
+     * display's scale and the desktop's antialiasing settings.  The metrics
+     * are stored in the prefs, so they are saved with them and the next run
+     * can skip measuring.  This doesn't need a graphics context, so the panel
+     * knows its size before it is first shown.
+     */
+    private void updateMetrics()
+    {
+        Font f = this.getFont();
+        FontMetrics fm = this.getFontMetrics(f);
+        FontRenderContext frc = fm.getFontRenderContext();
+        if(!prefs.hasMetricsFor(f, frc))
+        {
+            prefs.setMetrics(f, frc, fm.charWidth('0'), fm.getHeight(),
+                    fm.getLeading() + fm.getAscent());
+        }
+        charWidth = prefs.getMetricsCharWidth();
+        lineHeight = prefs.getMetricsLineHeight();
+        topBaseline = HEIGHTPADDING + prefs.getMetricsAscent();
+    }
+
+    /**
+     * Gets the size needed to show the whole display, unless a preferred size
+     * has been set.
+     */
+    @Override
+    public Dimension getPreferredSize()
+    {
+        if(isPreferredSizeSet())
+        {
+            return super.getPreferredSize();
+        }
+        return findOptimumSize();
+    }
+
+    /**
+     * Sizes the frame holding the panel to fit it as soon as the panel is
+     * added to one, so that the first paint is already at the right size.
+     */
+    @Override
+    public void addNotify()
+    {
+        super.addNotify();
+        resizeParentToOptimumSize();
+        if(acceptInput)
+        {
+            joinBlinkClock();
+        }
+    }
+
+    /**
+     * Leaves the shared blink clock when the panel is taken out of its
+     * window, so that the clock doesn't keep a panel that is no longer shown.
+     * It joins again if it is added back while showing a prompt.
+     */
+    @Override
+    public void removeNotify()
     {
-        FontMetrics fm = g2.getFontMetrics(this.getFont());
-        lineHeight = fm.getHeight();
-        charWidth = fm.charWidth('0');
-        topBaseline = HEIGHTPADDING + fm.getLeading() + fm.getAscent();
+        leaveBlinkClock();
+        super.removeNotify();
     }
     
     private Dimension findOptimumSize()
@@ -166,211 +428,1307 @@ public class TerminalPanel extends JPanel implements KeyListener
     {
         Graphics2D g2 = (Graphics2D)g;
 
-        if(firstPaint)
-        {
-            setTextAttributes(g2);
-            resizeParentToOptimumSize();
-            firstPaint = false;
-            repaint();
-            return;
-        }
-
         super.paintComponent(g);
 
-		g2.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING,
-				prefs.renderHint);
-        g.setColor(prefs.bgColor);
-        g.fillRect(0, 0, getWidth(), getHeight());
-        g.setColor(prefs.fgColor);        
-        
-        // draw the visible lines.
-		for(int i = this.lineOffset; i < (this.lineOffset +
-					prefs.displayHeightChars); i++)
+        updateBackBuffer();
+
+        // each paint is a frame boundary for anything observing the data.
+        data.flushChanges();
+        if(backBuffer != null)
         {
-            char[] line = data.getLine(i);
-            if(line == null)
+            if(acceleratedRendering)
             {
-                break;
+                presentAccelerated(g2);
+            }
+            else
+            {
+                g2.drawImage(backBuffer, 0, 0, null);
             }
-			g2.drawChars(line, 0, line.length, WIDTHPADDING, topBaseline +
-					((i-this.lineOffset) * lineHeight));
         }
-        
+        g2.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING,
+                prefs.renderHint);
+        g.setColor(prefs.fgColor);
+
         // draw the cursor (if visible)
+        cursorDrawnAt = null;
         if(cursorIsVisible)
         {
-            Point cursorPos = data.getCursor();
-			g2.drawChars(cursorChar, 0, 1, (cursorPos.x)*charWidth,
-					(cursorPos.y+1 - this.lineOffset)*lineHeight);
+            Rectangle r = getCursorBounds();
+            switch(cursorStyle)
+            {
+                case BLOCK:
+                    g2.fillRect(r.x, r.y, r.width, r.height);
+                    char[] line = getCursorLine();
+                    int x = (r.x - WIDTHPADDING)/charWidth;
+
+                    // a blank cell, or half of a pair whose partner was
+                    // overwritten, has no glyph to draw.
+                    if(line != null && x < line.length && line[x] != '\0' &&
+                            line[x] != TerminalData.WIDE_CONTINUATION &&
+                            !Character.isLowSurrogate(line[x]))
+                    {
+                        int n = (x + 1 < line.length &&
+                                Character.isLowSurrogate(line[x + 1])) ? 2 : 1;
+                        g2.setColor(prefs.bgColor);
+                        g2.drawChars(line, x, n, r.x,
+                                r.y - HEIGHTPADDING + topBaseline);
+                    }
+                    break;
+                case UNDERLINE:
+                    g2.fillRect(r.x, r.y + r.height - 2, r.width, 2);
+                    break;
+                default:
+                    g2.fillRect(r.x, r.y, 2, r.height);
+                    break;
+            }
+            cursorDrawnAt = r;
         }
     }
 
     /**
-     * Prints text at the current cursor position.
-     * @param text the text to print.
+     * Finds the area of the panel covered by the character that the cursor
+     * is in.  This is one cell, or both cells of a wide character or
+     * surrogate pair, whichever half of it the cursor is on.
+     * @return the bounds of the cursor cells, in pixels.
      */
-    public void print(String text)
+    private Rectangle getCursorBounds()
     {
-        data.print(text);
-        if(data.getCursor().y >= (lineOffset+prefs.displayHeightChars))
+        Point cursorPos = data.getCursor();
+        int x = cursorPos.x;
+        int cells = 1;
+        char[] line = getCursorLine();
+        if(line != null && x < line.length)
         {
-            lineOffset = (data.getCursor().y-prefs.displayHeightChars)+1;
+            boolean end = (line[x] == TerminalData.WIDE_CONTINUATION ||
+                    Character.isLowSurrogate(line[x]));
+            if(end && x > 0 && CharWidth.isDoubleCell(line[x - 1]))
+            {
+                x--;
+                cells = 2;
+            }
+            else if(CharWidth.isDoubleCell(line[x]) && x + 1 < line.length &&
+                    (line[x + 1] == TerminalData.WIDE_CONTINUATION ||
+                    Character.isLowSurrogate(line[x + 1])))
+            {
+                cells = 2;
+            }
         }
+        return new Rectangle(WIDTHPADDING + x*charWidth,
+                HEIGHTPADDING + (cursorPos.y - this.lineOffset)*lineHeight,
+                cells*charWidth, lineHeight);
     }
 
     /**
-     * Prints text, beginning at the provided row and column position.
-     * @param text the text to print.
-     * @param x the column at which to begin printing.
-     * @param y the row at which to begin printing.
+     * Gets the line that the cursor is on.
+     * @return the characters of the line, or null if the cursor is below the
+     * last line.
      */
-    public void print(String text, int x, int y)
+    private char[] getCursorLine()
     {
-        data.print(text, x, y);
-        if(data.getCursor().y >= (lineOffset+prefs.displayHeightChars))
-        {
-            lineOffset = data.getCursor().y-prefs.displayHeightChars+1;
-        }
+        Point cursorPos = data.getCursor();
+        return (cursorPos.y < data.getLineCount()) ?
+                data.getLine(cursorPos.y) : null;
     }
 
     /**
-     * Prints a character at the provided row and column.
-     * @param ch the character to print
-     * @param x the column at which to display the character
-     * @param y the row at which to display the character
+     * Called by the shared blink clock.  Toggles the cursor and repaints only
+     * the cells it has been drawn in.
      */
-    public void setChar(char ch, int x, int y)
+    private void blinkCursor()
     {
-        data.setChar(ch, x, y);
+        cursorIsVisible = !cursorIsVisible;
+        Rectangle r = getCursorBounds();
+        if(cursorDrawnAt != null)
+        {
+            r.add(cursorDrawnAt);
+        }
+        repaint(r);
     }
 
     /**
-     * Clears the display
+     * Sets the shape used to draw the input cursor.
+     * @param style the cursor style.
      */
-    public void clearDisplay()
+    public void setCursorStyle(CursorStyle style)
     {
-        data.clear();
+        cursorStyle = style;
+        repaint();
     }
 
     /**
-     * Clears a single character position on the display
-     * @param x the horizontal position of the character to clear.
-     * @param y the vertical position of the character to clear.
+     * Gets the shape used to draw the input cursor.
+     * @return the cursor style.
      */
-    public void clearChar(int x, int y)
+    public CursorStyle getCursorStyle()
     {
-        data.setChar(' ', x, y);
+        return cursorStyle;
     }
 
     /**
-	 * Fills an area of the display with a given character, beginning at the row
-	 * and column position given.  The area filled will extend a number of
-	 * characters (determined by displayWidthChars and displayHeightChars) down
-	 * and to the right of the position given.
-     * @param ch tge character to fill the area with.
-     * @param x the column at which to begin filling.
-     * @param y the row at which to begin filling.
-     * @param width the width of the area to fill.
-     * @param height the height of the area to fill.
+     * Brings the back buffer up to date with the terminal data.  If the
+     * display has scrolled since the last paint, the pixels that are still
+     * visible are shifted with copyArea and only the rows that scrolled into
+     * view are rendered, along with any rows that were modified in the data.
      */
-    public void fill(char ch, int x, int y, int width, int height)
-    {
-        data.fill(ch, x, y, width, height);
-    }
-    
-	/**
-	 * Shows, or hides, the blinking cursor.  This function also begins input
-	 * mode, in which typing in the panel will send messages to any terminal
-	 * listeners.
-	 * @param show set to true to show the cursor, or false to hide it.
-	 */
-    public void showPrompt(boolean show)
+    private void updateBackBuffer()
     {
-        acceptInput = show;
-        if(acceptInput)
+        int w = getWidth();
+        int h = getHeight();
+        if(w <= 0 || h <= 0)
         {
-            // set up a timer to periodically show the cursor.
-            cursorTimer = new Timer(cursorBlinkDelay, updateCursorAction);
-            cursorTimer.start();
-            cursorIsVisible = true;
+            return;
         }
-        else
+
+        if(backBuffer == null || backBuffer.getWidth() != w ||
+                backBuffer.getHeight() != h)
         {
-            // remove the timer task and hide the cursor.
-            cursorTimer.stop();
-            cursorIsVisible = false;
+            backBuffer = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+            backBufferValid = false;
+            accelBufferValid = false;
         }
-        repaint();
-    }
-    
-	/**
-	 * Sets the terminal listener that will receive notifications when
-	 * characters are typed in the panel.
-     * 
-     * @param l the TerminalListener to set.
-     */
-    public void setTerminalListener(TerminalListener l)
-    {
-        listener = l;
-    }
-    
-    //
-    // KeyListener methods.
-    //
-    public void keyTyped(KeyEvent e)
-    {
-        char ch = e.getKeyChar();
-        
-        if(ch == '\b')
+
+        Graphics2D bg = backBuffer.createGraphics();
+        bg.setFont(getFont());
+        bg.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING,
+                prefs.renderHint);
+
+        int rows = prefs.displayHeightChars;
+        int top = data.getScrollCount() + lineOffset;
+        int delta = top - backBufferTop;
+
+        if(!backBufferValid || Math.abs(delta) >= rows)
         {
-            int len = keyInput.length();
-            if(len > 0)
-            {
-                keyInput = keyInput.substring(0,len-1);
-                Point cpos = data.getCursor();
-                data.setChar('\0', --cpos.x, cpos.y);
-                data.setCursor(cpos.x, cpos.y);                
-            }
-            if(listener != null)
-            {
-				// backspace characters don't appear in the line keyInput, so
-				// there's no need to pay attention to the return value of
-				// terminalCharTyped in this case.
-                listener.terminalCharTyped(ch);
-            }
+            bg.setColor(prefs.bgColor);
+            bg.fillRect(0, 0, w, h);
+            renderRange(bg, 0, rows - 1);
+            accelBufferValid = false;
         }
-        else if(ch == '\n')
+        else
         {
-            data.print("\n");
-            if(listener != null)
+            if(delta > 0)
             {
-				// in this case, the line will be refreshed.  Again, there's no
-				// need to pay attention to the return value of
-				// terminalCharTyped.
-                listener.terminalCharTyped(ch);
-                listener.terminalLineTyped(keyInput);
-                keyInput = new String("");
+                // scrolled forward: shift up, render the rows at the bottom.
+                bg.copyArea(0, HEIGHTPADDING + delta*lineHeight, w,
+                        (rows-delta)*lineHeight, 0, -delta*lineHeight);
+                accelShift = new Rectangle(0, HEIGHTPADDING + delta*lineHeight,
+                        w, (rows-delta)*lineHeight);
+                accelShiftDy = -delta*lineHeight;
+                renderRange(bg, rows - delta, rows - 1);
             }
-        }
-        else
-        {
-            boolean addToInput = true;
-            data.print("" + ch);
-            if(listener != null)
+            else if(delta < 0)
             {
-                addToInput = !listener.terminalCharTyped(ch);
+                // scrolled back: shift down, render the rows at the top.
+                bg.copyArea(0, HEIGHTPADDING, w, (rows+delta)*lineHeight,
+                        0, -delta*lineHeight);
+                accelShift = new Rectangle(0, HEIGHTPADDING, w,
+                        (rows+delta)*lineHeight);
+                accelShiftDy = -delta*lineHeight;
+                renderRange(bg, 0, -delta - 1);
             }
-            if(addToInput)
+
+            // re-render any visible rows that were changed in place.
+            int dirtyTop = data.getDirtyTop() - lineOffset;
+            int dirtyBottom = data.getDirtyBottom() - lineOffset;
+            if(dirtyBottom >= dirtyTop)
             {
-                keyInput += ch;
+                renderRange(bg, Math.max(dirtyTop, 0),
+                        Math.min(dirtyBottom, rows - 1));
             }
         }
-        repaint();
+
+        bg.dispose();
+        if(!acceleratedRendering || !accelBufferValid)
+        {
+            // nothing is tracking the accelerated surface, or it will be
+            // copied in full, so there's no need to keep the damage.
+            accelShift = null;
+            accelDamage = null;
+        }
+        data.clearDirty();
+        backBufferTop = data.getScrollCount() + lineOffset;
+        backBufferValid = true;
     }
 
-    public void keyPressed(KeyEvent e)
+    /**
+     * Renders a range of display rows into the back buffer.  If parallel
+     * rendering is on and the range is large enough, the rows are split into
+     * bands that are rendered concurrently.
+     * @param bg the back buffer graphics.
+     * @param first the first display row to render.
+     * @param last the last display row to render.
+     */
+    private void renderRange(Graphics2D bg, int first, int last)
     {
-        // ignored.
+        if(first > last)
+        {
+            return;
+        }
+
+        // remember which part of the accelerated surface is now out of date.
+        Rectangle r = new Rectangle(0, HEIGHTPADDING + first*lineHeight,
+                backBuffer.getWidth(), (last - first + 1)*lineHeight);
+        if(accelDamage == null)
+        {
+            accelDamage = r;
+        }
+        else
+        {
+            accelDamage.add(r);
+        }
+
+        if(!parallelRendering || last - first + 1 < MIN_BAND_ROWS*2)
+        {
+            renderRows(bg, first, last);
+            return;
+        }
+
+        int bandRows = Math.max(MIN_BAND_ROWS, (last - first + 1 +
+                ForkJoinPool.getCommonPoolParallelism() - 1) /
+                ForkJoinPool.getCommonPoolParallelism());
+        ForkJoinPool.commonPool().invoke(new BandRenderer(first, last,
+                    bandRows));
+    }
+
+    /**
+     * Renders a band of rows into the back buffer with its own graphics
+     * context, splitting it in two until it is no larger than bandRows.
+     */
+    @SuppressWarnings("serial")
+    private class BandRenderer extends RecursiveAction
+    {
+        private final int first;
+        private final int last;
+        private final int bandRows;
+
+        BandRenderer(int first, int last, int bandRows)
+        {
+            this.first = first;
+            this.last = last;
+            this.bandRows = bandRows;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if(last - first + 1 <= bandRows)
+            {
+                Graphics2D bg = backBuffer.createGraphics();
+                bg.setFont(getFont());
+                bg.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING,
+                        prefs.renderHint);
+                renderRows(bg, first, last);
+                bg.dispose();
+                return;
+            }
+
+            int mid = (first + last) / 2;
+            invokeAll(new BandRenderer(first, mid, bandRows),
+                    new BandRenderer(mid + 1, last, bandRows));
+        }
+    }
+
+    /**
+     * Presents the back buffer through an accelerated VolatileImage.  The back
+     * buffer stays the master copy of the display: only the regions that
+     * changed since the last paint are copied to the accelerated surface, and
+     * the whole surface is copied again if its contents are lost.  If there is
+     * no graphics configuration to create the surface with (for example, on a
+     * headless system) the back buffer is drawn directly.
+     * @param g2 the component graphics to present to.
+     */
+    private void presentAccelerated(Graphics2D g2)
+    {
+        GraphicsConfiguration gc = getGraphicsConfiguration();
+        if(gc == null)
+        {
+            accelBufferValid = false;
+            g2.drawImage(backBuffer, 0, 0, null);
+            return;
+        }
+
+        int w = backBuffer.getWidth();
+        int h = backBuffer.getHeight();
+        do
+        {
+            int status = VolatileImage.IMAGE_INCOMPATIBLE;
+            if(accelBuffer != null && accelBuffer.getWidth() == w &&
+                    accelBuffer.getHeight() == h)
+            {
+                status = accelBuffer.validate(gc);
+            }
+            if(status == VolatileImage.IMAGE_INCOMPATIBLE)
+            {
+                if(accelBuffer != null)
+                {
+                    accelBuffer.flush();
+                }
+                accelBuffer = gc.createCompatibleVolatileImage(w, h);
+                accelBufferValid = false;
+                if(accelBuffer.validate(gc) ==
+                        VolatileImage.IMAGE_INCOMPATIBLE)
+                {
+                    // the surface can't be used with this configuration.
+                    accelBuffer = null;
+                    g2.drawImage(backBuffer, 0, 0, null);
+                    return;
+                }
+            }
+            else if(status == VolatileImage.IMAGE_RESTORED)
+            {
+                accelBufferValid = false;
+            }
+
+            Graphics2D vg = accelBuffer.createGraphics();
+            if(!accelBufferValid)
+            {
+                vg.drawImage(backBuffer, 0, 0, null);
+            }
+            else
+            {
+                if(accelShift != null)
+                {
+                    vg.copyArea(accelShift.x, accelShift.y, accelShift.width,
+                            accelShift.height, 0, accelShiftDy);
+                }
+                if(accelDamage != null)
+                {
+                    Rectangle r = accelDamage.intersection(
+                            new Rectangle(0, 0, w, h));
+                    if(!r.isEmpty())
+                    {
+                        vg.drawImage(backBuffer, r.x, r.y, r.x + r.width,
+                                r.y + r.height, r.x, r.y, r.x + r.width,
+                                r.y + r.height, null);
+                    }
+                }
+            }
+            vg.dispose();
+
+            if(accelBuffer.contentsLost())
+            {
+                accelBufferValid = false;
+                continue;
+            }
+            accelBufferValid = true;
+            accelShift = null;
+            accelDamage = null;
+            g2.drawImage(accelBuffer, 0, 0, null);
+        } while(accelBuffer.contentsLost());
+    }
+
+    /**
+     * Turns accelerated rendering on or off.  When it is on, the display is
+     * kept in an accelerated image and only the parts that change are updated.
+     * Swing still paints the panel into the window's own buffer, as it does
+     * for every other component.  Systems without an accelerated surface fall
+     * back to the normal software path.
+     * @param accelerated true to use accelerated rendering.
+     */
+    public void setAcceleratedRendering(boolean accelerated)
+    {
+        acceleratedRendering = accelerated;
+        accelBufferValid = false;
+        if(!accelerated && accelBuffer != null)
+        {
+            accelBuffer.flush();
+            accelBuffer = null;
+        }
+        repaint();
+    }
+
+    /**
+     * Checks whether accelerated rendering is on.
+     * @return true if the display is presented through an accelerated image.
+     */
+    public boolean isAcceleratedRendering()
+    {
+        return acceleratedRendering;
+    }
+
+    /**
+     * Turns parallel rendering on or off.  When it is on, large redraws of the
+     * display are split into horizontal bands that are rendered on separate
+     * threads before the result is drawn to the screen.  This is only worth
+     * doing for very large terminals.
+     * @param parallel true to render in parallel.
+     */
+    public void setParallelRendering(boolean parallel)
+    {
+        parallelRendering = parallel;
+    }
+
+    /**
+     * Checks whether parallel rendering is on.
+     * @return true if large redraws are rendered in parallel.
+     */
+    public boolean isParallelRendering()
+    {
+        return parallelRendering;
+    }
+
+    /**
+     * Renders a range of display rows into the back buffer, clearing each row
+     * to the background color first.
+     * @param bg the back buffer graphics.
+     * @param first the first display row to render.
+     * @param last the last display row to render.
+     */
+    private void renderRows(Graphics2D bg, int first, int last)
+    {
+        for(int row = first; row <= last; row++)
+        {
+            bg.setColor(prefs.bgColor);
+            bg.fillRect(0, HEIGHTPADDING + row*lineHeight,
+                    backBuffer.getWidth(), lineHeight);
+
+            // only the cells up to the line's length can hold anything.
+            int len = data.getLineLength(this.lineOffset + row);
+            if(len == 0)
+            {
+                continue;
+            }
+            char[] line = data.getLine(this.lineOffset + row);
+            bg.setColor(prefs.fgColor);
+            if(!CharWidth.hasDoubleCells(line, len))
+            {
+                bg.drawChars(line, 0, len, WIDTHPADDING, topBaseline +
+                        (row * lineHeight));
+            }
+            else
+            {
+                drawCells(bg, line, len, topBaseline + (row * lineHeight));
+            }
+        }
+    }
+
+    /**
+     * Draws a line that holds wide characters or surrogate pairs.  Runs of
+     * ordinary characters are still drawn in one call each; each pair is drawn
+     * at the start of its two cells, whatever the font's advance for it is,
+     * so that the columns after it stay aligned.
+     */
+    private void drawCells(Graphics2D bg, char[] line, int len, int baseline)
+    {
+        int run = 0;
+        int x = 0;
+        while(x < len)
+        {
+            char ch = line[x];
+            boolean start = CharWidth.isDoubleCell(ch);
+            boolean end = (ch == TerminalData.WIDE_CONTINUATION ||
+                    Character.isLowSurrogate(ch));
+            if(!start && !end)
+            {
+                x++;
+                continue;
+            }
+
+            if(x > run)
+            {
+                bg.drawChars(line, run, x - run, WIDTHPADDING + run*charWidth,
+                        baseline);
+            }
+            if(start && x + 1 < line.length)
+            {
+                int n = Character.isLowSurrogate(line[x + 1]) ? 2 : 1;
+                bg.drawChars(line, x, n, WIDTHPADDING + x*charWidth,
+                        baseline);
+                x++;
+            }
+            // the second half of a pair, or a half whose partner was
+            // overwritten, draws nothing.
+            x++;
+            run = x;
+        }
+        if(len > run)
+        {
+            bg.drawChars(line, run, len - run,
+                    WIDTHPADDING + run*charWidth, baseline);
+        }
+    }
+
+    /**
+     * Prints text at the current cursor position.
+     * @param text the text to print.
+     */
+    public void print(String text)
+    {
+        data.print(text);
+        if(data.getCursor().y >= (lineOffset+prefs.displayHeightChars))
+        {
+            lineOffset = (data.getCursor().y-prefs.displayHeightChars)+1;
+        }
+    }
+
+    /**
+     * Prints text, beginning at the provided row and column position.
+     * @param text the text to print.
+     * @param x the column at which to begin printing.
+     * @param y the row at which to begin printing.
+     */
+    public void print(String text, int x, int y)
+    {
+        data.print(text, x, y);
+        if(data.getCursor().y >= (lineOffset+prefs.displayHeightChars))
+        {
+            lineOffset = data.getCursor().y-prefs.displayHeightChars+1;
+        }
+    }
+
+    /**
+     * Shows the output of another process, shared through a grid file.  The
+     * grid is checked for new output every few milliseconds on the event
+     * thread, and the panel's data is brought up to date from it and scrolled
+     * to keep the cursor in view.  The panel still draws from its own data,
+     * which the changed lines are copied into.  It takes on the dimensions of
+     * the shared data, and shouldn't be written to while it is being shown.
+     * @param grid a grid opened with SharedTerminalGrid.openReader, or null to
+     * stop following the grid currently shown.
+     */
+    public void setSharedGrid(SharedTerminalGrid grid)
+    {
+        sharedGrid = grid;
+        if(grid == null)
+        {
+            if(sharedGridTimer != null)
+            {
+                sharedGridTimer.stop();
+            }
+            return;
+        }
+        if(sharedGridTimer == null)
+        {
+            sharedGridTimer = new Timer(SHARED_GRID_POLL_DELAY,
+                    new ActionListener(){
+                public void actionPerformed(ActionEvent e)
+                {
+                    readSharedGrid();
+                }
+            });
+        }
+        sharedGridTimer.start();
+        readSharedGrid();
+    }
+
+    public SharedTerminalGrid getSharedGrid()
+    {
+        return sharedGrid;
+    }
+
+    private void readSharedGrid()
+    {
+        if(sharedGrid == null)
+        {
+            return;
+        }
+        try
+        {
+            if(!sharedGrid.readInto(data))
+            {
+                return;
+            }
+        }
+        catch(IOException ex)
+        {
+            setSharedGrid(null);
+            return;
+        }
+        lineOffset = Math.max(0, data.getCursor().y-prefs.displayHeightChars+1);
+        repaint();
+    }
+
+    /**
+     * Writes a snapshot of the terminal contents to a channel.  Any lines
+     * still waiting to be reflowed after a resize are reflowed first, so the
+     * snapshot includes all of the terminal's history.
+     * @param ch the channel to write the snapshot to.
+     * @throws IOException if an error occured while writing to the channel.
+     */
+    public void saveSnapshot(WritableByteChannel ch) throws IOException
+    {
+        // include any history that hasn't been reflowed since a resize.
+        lineOffset += data.reflowHistory(Integer.MAX_VALUE);
+        historyTimer.stop();
+        data.saveSnapshot(ch);
+    }
+
+    /**
+     * Replaces the terminal contents with a snapshot read from a channel.  The
+     * display is scrolled so that the restored cursor is visible.
+     * @param ch the channel to read the snapshot from.
+     * @return true if the snapshot was loaded, or false if the channel does not
+     * contain a snapshot.
+     * @throws IOException if an error occured while reading the channel.
+     */
+    public boolean loadSnapshot(ReadableByteChannel ch) throws IOException
+    {
+        if(!data.loadSnapshot(ch))
+        {
+            return false;
+        }
+        lineOffset = Math.max(0, data.getCursor().y-prefs.displayHeightChars+1);
+        backBufferValid = false;
+        repaint();
+        return true;
+    }
+
+    /**
+     * Prints a character at the provided row and column.
+     * @param ch the character to print
+     * @param x the column at which to display the character
+     * @param y the row at which to display the character
+     */
+    public void setChar(char ch, int x, int y)
+    {
+        data.setChar(ch, x, y);
+    }
+
+    /**
+     * Clears the display
+     */
+    public void clearDisplay()
+    {
+        data.clear();
+    }
+
+    /**
+     * Clears a single character position on the display
+     * @param x the horizontal position of the character to clear.
+     * @param y the vertical position of the character to clear.
+     */
+    public void clearChar(int x, int y)
+    {
+        data.setChar(' ', x, y);
+    }
+
+    /**
+	 * Fills an area of the display with a given character, beginning at the row
+	 * and column position given.  The area filled will extend a number of
+	 * characters (determined by displayWidthChars and displayHeightChars) down
+	 * and to the right of the position given.
+     * @param ch tge character to fill the area with.
+     * @param x the column at which to begin filling.
+     * @param y the row at which to begin filling.
+     * @param width the width of the area to fill.
+     * @param height the height of the area to fill.
+     */
+    public void fill(char ch, int x, int y, int width, int height)
+    {
+        data.fill(ch, x, y, width, height);
+    }
+
+    /**
+     * Copies a block of the display to another position.  The source and
+     * destination may overlap.
+     * @param sx the column of the top-left of the block to copy.
+     * @param sy the row of the top-left of the block to copy.
+     * @param width the width of the block to copy.
+     * @param height the height of the block to copy.
+     * @param dx the column to copy the block to.
+     * @param dy the row to copy the block to.
+     */
+    public void copyRect(int sx, int sy, int width, int height, int dx, int dy)
+    {
+        data.copyRect(sx, sy, width, height, dx, dy);
+    }
+
+    /**
+     * Moves a block of the display to another position, blanking the part of
+     * the original block that was not overwritten.
+     * @param sx the column of the top-left of the block to move.
+     * @param sy the row of the top-left of the block to move.
+     * @param width the width of the block to move.
+     * @param height the height of the block to move.
+     * @param dx the column to move the block to.
+     * @param dy the row to move the block to.
+     */
+    public void moveRect(int sx, int sy, int width, int height, int dx, int dy)
+    {
+        data.moveRect(sx, sy, width, height, dx, dy);
+    }
+
+    /**
+     * Scrolls an area of the display up, blanking the rows exposed at the
+     * bottom of the area.
+     * @param x the column of the top-left of the area.
+     * @param y the row of the top-left of the area.
+     * @param width the width of the area.
+     * @param height the height of the area.
+     * @param lines the number of rows to scroll by.
+     */
+    public void scrollRegionUp(int x, int y, int width, int height, int lines)
+    {
+        data.scrollRegionUp(x, y, width, height, lines);
+    }
+
+    /**
+     * Scrolls an area of the display down, blanking the rows exposed at the
+     * top of the area.
+     * @param x the column of the top-left of the area.
+     * @param y the row of the top-left of the area.
+     * @param width the width of the area.
+     * @param height the height of the area.
+     * @param lines the number of rows to scroll by.
+     */
+    public void scrollRegionDown(int x, int y, int width, int height, int lines)
+    {
+        data.scrollRegionDown(x, y, width, height, lines);
+    }
+    
+	/**
+	 * Shows, or hides, the blinking cursor.  This function also begins input
+	 * mode, in which typing in the panel will send messages to any terminal
+	 * listeners.
+	 * @param show set to true to show the cursor, or false to hide it.
+	 */
+    public void showPrompt(boolean show)
+    {
+        acceptInput = show;
+        cursorIsVisible = show;
+
+        // a panel that isn't in a window yet joins the blink clock when it
+        // is added to one.
+        if(show && isDisplayable())
+        {
+            joinBlinkClock();
+        }
+        else
+        {
+            leaveBlinkClock();
+        }
+        repaint();
+    }
+
+    /**
+     * Joins the shared blink clock, starting it if this is the first panel
+     * to show a prompt.
+     */
+    private void joinBlinkClock()
+    {
+        synchronized(blinkingPanels)
+        {
+            if(!blinkingPanels.contains(this))
+            {
+                blinkingPanels.add(this);
+            }
+            if(blinkTimer == null)
+            {
+                blinkTimer = new Timer(CURSOR_BLINK_DELAY, blinkAction);
+            }
+            if(!blinkTimer.isRunning())
+            {
+                blinkTimer.start();
+            }
+        }
+    }
+
+    /**
+     * Leaves the shared blink clock, stopping it if no panels are left.
+     */
+    private void leaveBlinkClock()
+    {
+        synchronized(blinkingPanels)
+        {
+            blinkingPanels.remove(this);
+            if(blinkTimer != null && blinkingPanels.isEmpty())
+            {
+                blinkTimer.stop();
+            }
+        }
+    }
+    
+	/**
+	 * Sets the terminal listener that will receive notifications when
+	 * characters are typed in the panel.
+     * 
+     * @param l the TerminalListener to set.
+     */
+    public void setTerminalListener(TerminalListener l)
+    {
+        listener = l;
+    }
+
+    /**
+     * Gets the terminal listener that receives notifications when characters
+     * are typed in the panel.
+     * @return the current TerminalListener, or null if there is none.
+     */
+    public TerminalListener getTerminalListener()
+    {
+        return listener;
+    }
+
+    /**
+     * Sets whether typed characters are printed to the display.  Games that
+     * read the keyboard directly will usually want to turn this off.
+     * @param echo true to print typed characters, or false to only send them
+     * to the terminal listener.
+     */
+    public void setEchoInput(boolean echo)
+    {
+        echoInput = echo;
+    }
+
+    /**
+     * Checks whether typed characters are printed to the display.
+     * @return true if typed characters are printed.
+     */
+    public boolean isEchoInput()
+    {
+        return echoInput;
+    }
+    
+    /**
+     * Sends a block of text to the panel as though it had been typed.  Runs of
+     * ordinary characters are printed with a single call and handed to the
+     * terminal listener together (see TerminalBatchListener), and the panel is
+     * repainted once at the end, so this is much faster than typing the text
+     * a character at a time.  Newlines and backspaces are handled exactly as
+     * they are when typed.
+     * @param text the text to type.  Carriage returns, and carriage return /
+     * newline pairs, are treated as newlines.
+     */
+    public void typeText(String text)
+    {
+        text = text.replace("\r\n", "\n").replace('\r', '\n');
+        int start = 0;
+        for(int i = 0; i < text.length(); i++)
+        {
+            char ch = text.charAt(i);
+            if(ch == '\n' || ch == '\b')
+            {
+                if(i > start)
+                {
+                    typeRun(text.substring(start, i));
+                }
+                typeChar(ch);
+                start = i + 1;
+            }
+        }
+        if(start < text.length())
+        {
+            typeRun(text.substring(start));
+        }
+        repaint();
+    }
+
+    /**
+     * Types the text on the system clipboard into the panel.  This is called
+     * when Ctrl+V (Command+V on the Mac) or Shift+Insert is pressed.
+     */
+    public void paste()
+    {
+        try
+        {
+            String text = (String)Toolkit.getDefaultToolkit()
+                    .getSystemClipboard().getData(DataFlavor.stringFlavor);
+            if(text != null)
+            {
+                typeText(text);
+            }
+        }
+        catch (UnsupportedFlavorException ex)
+        {
+            // there's no text on the clipboard; there's nothing to paste.
+        }
+        catch (IOException ex)
+        {
+            Logger.getLogger(TerminalPanel.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        catch (IllegalStateException ex)
+        {
+            // the clipboard is in use by another application.
+            Logger.getLogger(TerminalPanel.class.getName()).log(Level.WARNING, null, ex);
+        }
+    }
+
+    /**
+     * Gets the editor that holds the line being typed.  Its history and
+     * completer can be set up through it.
+     * @return the line editor.
+     */
+    public LineEditor getLineEditor()
+    {
+        return lineEditor;
+    }
+
+    /**
+     * Types a run of characters that contains no newlines or backspaces.
+     */
+    private void typeRun(String run)
+    {
+        if(listener instanceof TerminalBatchListener)
+        {
+            if(!((TerminalBatchListener)listener).terminalTextTyped(run))
+            {
+                insertInput(run);
+            }
+        }
+        else if(listener != null)
+        {
+            for(int i = 0; i < run.length(); i++)
+            {
+                char ch = run.charAt(i);
+                if(!listener.terminalCharTyped(ch))
+                {
+                    insertInput(String.valueOf(ch));
+                }
+            }
+        }
+        else
+        {
+            insertInput(run);
+        }
+        showInput();
+    }
+
+    /**
+     * Adds typed text to the line being edited.  Tabs are added as spaces,
+     * and other control characters aren't added, so that every character in
+     * the line takes a fixed number of cells.
+     */
+    private void insertInput(String text)
+    {
+        int start = 0;
+        for(int i = 0; i < text.length(); i++)
+        {
+            char ch = text.charAt(i);
+            if(ch < ' ' || ch == '\u007f')
+            {
+                lineEditor.insert(text.subSequence(start, i));
+                if(ch == '\t')
+                {
+                    lineEditor.insert(' ');
+                }
+                start = i + 1;
+            }
+        }
+        lineEditor.insert(text.subSequence(start, text.length()));
+    }
+
+    /**
+     * Types a single character.  This doesn't repaint the panel.
+     */
+    private void typeChar(char ch)
+    {
+        if(ch == '\b')
+        {
+            lineEditor.deleteBackward();
+            showInput();
+            if(listener != null)
+            {
+				// backspace characters don't appear in the line input, so
+				// there's no need to pay attention to the return value of
+				// terminalCharTyped in this case.
+                listener.terminalCharTyped(ch);
+            }
+        }
+        else if(ch == '\n')
+        {
+            if(echoInput)
+            {
+                if(inputStart != null)
+                {
+                    trackInputScroll();
+                    data.restoreCursor(inputEnd.x, inputEnd.y);
+                }
+                data.print("\n");
+            }
+            String line = lineEditor.getText();
+            lineEditor.addHistory(line);
+            lineEditor.clear();
+            lineEditor.clearChanges();
+            inputStart = null;
+            if(listener != null)
+            {
+				// in this case, the line will be refreshed.  Again, there's no
+				// need to pay attention to the return value of
+				// terminalCharTyped.
+                listener.terminalCharTyped(ch);
+                listener.terminalLineTyped(line);
+            }
+        }
+        else if(ch == '\t' && lineEditor.getCompleter() != null)
+        {
+            lineEditor.complete();
+            showInput();
+        }
+        else
+        {
+            boolean addToInput = true;
+            if(listener != null)
+            {
+                addToInput = !listener.terminalCharTyped(ch);
+            }
+            if(addToInput)
+            {
+                insertInput(String.valueOf(ch));
+                showInput();
+            }
+        }
+    }
+
+    /**
+     * Shows the changes made to the line being edited, and moves the cursor
+     * to match the editor's.
+     */
+    private void showInput()
+    {
+        int from = lineEditor.getChangeStart();
+        lineEditor.clearChanges();
+        if(!echoInput)
+        {
+            return;
+        }
+        if(from >= 0 || inputStart == null)
+        {
+            drawInput(from < 0 ? 0 : from);
+        }
+        else
+        {
+            trackInputScroll();
+        }
+
+        // put the cursor where the next character typed will go.
+        int cursor = lineEditor.getCursor();
+        Point p = (cursor == lineEditor.length()) ? inputEnd :
+                inputCell(cursor);
+        if(cursor < lineEditor.length() && (p.x >= data.getWidth() ||
+                (CharWidth.isDoubleCell(lineEditor.charAt(cursor)) &&
+                p.x + 2 > data.getWidth())))
+        {
+            p = new Point(0, p.y + 1);
+        }
+        if(p.y >= 0)
+        {
+            data.restoreCursor(p.x, p.y);
+        }
+    }
+
+    /**
+     * Moves the recorded position of the line being edited to follow the
+     * data as it scrolls.
+     */
+    private void trackInputScroll()
+    {
+        int scrolled = data.getScrollCount() - inputScroll;
+        inputStart.y -= scrolled;
+        inputEnd.y -= scrolled;
+        inputScroll += scrolled;
+    }
+
+    /**
+     * Redraws the line being edited from a position to its end, and blanks
+     * the cells past the new end that the old text covered.  Nothing before
+     * the position is written, so only the edited part of the prompt row is
+     * marked as changed.  The text is printed with CHAR wrapping whatever the
+     * data's wrap behavior is, so that the cell each character is in can be
+     * worked out from the line alone.
+     */
+    private void drawInput(int from)
+    {
+        if(inputStart == null)
+        {
+            inputStart = data.getCursor();
+            inputEnd = new Point(inputStart);
+            inputLength = 0;
+            inputScroll = data.getScrollCount();
+            from = 0;
+        }
+        trackInputScroll();
+
+        // start at the beginning of a surrogate pair, and below the top of the
+        // data if the start of the line has scrolled off.
+        int len = lineEditor.length();
+        if(from > 0 && from < len &&
+                Character.isLowSurrogate(lineEditor.charAt(from)) &&
+                Character.isHighSurrogate(lineEditor.charAt(from - 1)))
+        {
+            from--;
+        }
+        // when text has only been added to the end, start from the old end
+        // rather than working along the whole line.
+        int width = data.getWidth();
+        Point p;
+        int i;
+        if(from == inputLength && inputEnd.y >= 0)
+        {
+            p = new Point(inputEnd);
+            i = from;
+        }
+        else
+        {
+            p = new Point(inputStart);
+            i = 0;
+        }
+        while(i < len && (i < from || p.y + (p.x >= width ? 1 : 0) < 0))
+        {
+            i = stepInput(i, p);
+        }
+        if(p.y < 0)
+        {
+            // the first character to draw starts the top row.
+            p.x = 0;
+            p.y++;
+        }
+
+        if(i < len)
+        {
+            TerminalData.WrapBehavior wrap = data.getWrapBehavior();
+            data.setWrapBehavior(TerminalData.WrapBehavior.CHAR);
+            data.restoreCursor(p.x, p.y);
+            data.print(lineEditor.getText(i, len));
+            data.setWrapBehavior(wrap);
+            trackInputScroll();
+            p = data.getCursor();
+        }
+
+        // blank what's left of the old text.
+        for(int y = Math.max(p.y, 0); y <= inputEnd.y; y++)
+        {
+            int x0 = (y == p.y) ? p.x : 0;
+            int x1 = (y == inputEnd.y) ? inputEnd.x : width;
+            if(x1 > x0)
+            {
+                data.fill('\0', x0, y, x1 - x0, 1);
+            }
+        }
+        inputEnd = p;
+        inputLength = len;
+    }
+
+    /**
+     * Finds the cell that a character of the line being edited is printed
+     * at.  If the line fills the row before it, this is x == width on that
+     * row, as print leaves the cursor.
+     */
+    private Point inputCell(int index)
+    {
+        Point p = new Point(inputStart);
+        int i = 0;
+        while(i < index)
+        {
+            i = stepInput(i, p);
+        }
+        return p;
+    }
+
+    /**
+     * Moves p past the character at position i of the line being edited, the
+     * same way print with CHAR wrapping would.
+     * @return the position of the next character.  This is i again if a two
+     * cell character didn't fit at the end of a row, and p has been moved to
+     * the end of the row instead.
+     */
+    private int stepInput(int i, Point p)
+    {
+        int width = data.getWidth();
+        if(p.x >= width)
+        {
+            p.x = 0;
+            p.y++;
+        }
+        char ch = lineEditor.charAt(i);
+        if(!CharWidth.isDoubleCell(ch))
+        {
+            p.x++;
+            return i + 1;
+        }
+
+        int n = (Character.isHighSurrogate(ch) && i + 1 < lineEditor.length() &&
+                Character.isLowSurrogate(lineEditor.charAt(i + 1))) ? 2 : 1;
+        if(width < 2)
+        {
+            return i + n;
+        }
+        if(p.x + 2 > width)
+        {
+            p.x = width;
+            return i;
+        }
+        p.x += 2;
+        return i + n;
+    }
+
+    /**
+     * Handles the keys that edit the line being typed, while the prompt is
+     * shown.
+     * @return true if the key was used.
+     */
+    private boolean editKeyPressed(KeyEvent e)
+    {
+        boolean used = true;
+        switch(e.getKeyCode())
+        {
+            case KeyEvent.VK_LEFT:
+            case KeyEvent.VK_KP_LEFT:
+                lineEditor.moveLeft();
+                break;
+            case KeyEvent.VK_RIGHT:
+            case KeyEvent.VK_KP_RIGHT:
+                lineEditor.moveRight();
+                break;
+            case KeyEvent.VK_HOME:
+                lineEditor.moveHome();
+                break;
+            case KeyEvent.VK_END:
+                lineEditor.moveEnd();
+                break;
+            case KeyEvent.VK_DELETE:
+                lineEditor.deleteForward();
+                break;
+            case KeyEvent.VK_UP:
+            case KeyEvent.VK_KP_UP:
+                lineEditor.historyPrevious();
+                break;
+            case KeyEvent.VK_DOWN:
+            case KeyEvent.VK_KP_DOWN:
+                lineEditor.historyNext();
+                break;
+            default:
+                used = false;
+                break;
+        }
+        if(used)
+        {
+            showInput();
+        }
+        return used;
+    }
+
+    //
+    // KeyListener methods.
+    //
+    public void keyTyped(KeyEvent e)
+    {
+        char ch = e.getKeyChar();
+
+        // the paste shortcut and Delete are handled in keyPressed.
+        if(((e.isControlDown() || e.isMetaDown()) &&
+                (ch == '\u0016' || ch == 'v' || ch == 'V')) ||
+                ch == '\u007f')
+        {
+            return;
+        }
+
+        typeChar(ch);
+        repaint();
+    }
+
+    public void keyPressed(KeyEvent e)
+    {
+        if((e.getKeyCode() == KeyEvent.VK_V &&
+                    (e.isControlDown() || e.isMetaDown())) ||
+                (e.getKeyCode() == KeyEvent.VK_INSERT && e.isShiftDown()))
+        {
+            paste();
+            e.consume();
+        }
+        else if(acceptInput && editKeyPressed(e))
+        {
+            e.consume();
+            repaint();
+        }
 	}
 
     public void keyReleased(KeyEvent e)
@@ -0,0 +1,98 @@
+package com.abstrys.consolekit;
+
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+
+/**
+ * Tests for TerminalPanel painting.  Run them with "ant test"; any failure is
+ * reported and makes the run exit with an error.
+ */
+public class TerminalPanelTest
+{
+    private static int failures = 0;
+
+    public static void main(String[] args)
+    {
+        testAcceleratedFallback();
+
+        if (failures > 0)
+        {
+            System.out.println(failures + " TerminalPanel test(s) failed.");
+            System.exit(1);
+        }
+        System.out.println("All TerminalPanel tests passed.");
+    }
+
+    private static void check(boolean ok, String what)
+    {
+        if (!ok)
+        {
+            failures++;
+            System.out.println("FAILED: " + what);
+        }
+    }
+
+    private static BufferedImage paint(TerminalPanel panel)
+    {
+        BufferedImage image = new BufferedImage(panel.getWidth(),
+                panel.getHeight(), BufferedImage.TYPE_INT_RGB);
+        Graphics2D g2 = image.createGraphics();
+        panel.paint(g2);
+        g2.dispose();
+        return image;
+    }
+
+    /**
+     * Counts the pixels that differ between two images of the same size.
+     */
+    private static int differences(BufferedImage a, BufferedImage b)
+    {
+        int n = 0;
+        for (int y = 0; y < a.getHeight(); y++)
+        {
+            for (int x = 0; x < a.getWidth(); x++)
+            {
+                if (a.getRGB(x, y) != b.getRGB(x, y))
+                {
+                    n++;
+                }
+            }
+        }
+        return n;
+    }
+
+    /**
+     * A panel that isn't in a window has no graphics configuration to make
+     * an accelerated surface with, so accelerated rendering must paint just
+     * as the software path does, before and after the display changes.
+     */
+    private static void testAcceleratedFallback()
+    {
+        TerminalPanel soft = new TerminalPanel(20, 4);
+        TerminalPanel accel = new TerminalPanel(20, 4);
+        accel.setAcceleratedRendering(true);
+        check(accel.getGraphicsConfiguration() == null,
+                "a panel outside a window has a graphics configuration");
+
+        Dimension d = soft.getPreferredSize();
+        soft.setSize(d);
+        accel.setSize(d);
+        soft.getData().print("Hello, world");
+        accel.getData().print("Hello, world");
+        BufferedImage blank = new BufferedImage(d.width, d.height,
+                BufferedImage.TYPE_INT_RGB);
+        BufferedImage expected = paint(soft);
+        check(differences(expected, blank) > 0,
+                "the software path painted nothing");
+        check(differences(paint(accel), expected) == 0,
+                "accelerated rendering with no graphics configuration " +
+                "painted differently from the software path");
+
+        soft.getData().print(" again");
+        accel.getData().print(" again");
+        check(differences(paint(accel), paint(soft)) == 0,
+                "accelerated rendering with no graphics configuration " +
+                "painted a change differently from the software path");
+    }
+}
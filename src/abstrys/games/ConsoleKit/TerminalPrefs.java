@@ -8,13 +8,21 @@ package com.abstrys.consolekit;
 import java.awt.Color;
 import java.awt.Font;
 import java.awt.RenderingHints;
+import java.awt.font.FontRenderContext;
+import java.awt.geom.AffineTransform;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
-import java.io.PrintStream;
+import java.util.Arrays;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -38,8 +46,32 @@ public class TerminalPrefs {
     private final String PREFS_TAG = "Abstrys Terminal Panel Prefs";
 
     // if any of the data members above change, increment the prefsVersion and
-    // handle the change in the load/save functions.
-    private final int PREFS_VERSION = 1;
+    // handle the change in the load/save functions.  Version 1 was the text
+    // format; version 2 is binary, and starts with PREFS_MAGIC.
+    private final int PREFS_VERSION = 2;
+    private final int TEXT_PREFS_VERSION = 1;
+    private final int PREFS_MAGIC = 0x41545050; // "ATPP"
+
+    // the text antialiasing hints that can be saved, by their saved index.
+    private static final Object[] RENDER_HINTS =
+    {
+        RenderingHints.VALUE_TEXT_ANTIALIAS_DEFAULT,
+        RenderingHints.VALUE_TEXT_ANTIALIAS_OFF,
+        RenderingHints.VALUE_TEXT_ANTIALIAS_ON,
+        RenderingHints.VALUE_TEXT_ANTIALIAS_GASP,
+        RenderingHints.VALUE_TEXT_ANTIALIAS_LCD_HRGB,
+        RenderingHints.VALUE_TEXT_ANTIALIAS_LCD_HBGR,
+        RenderingHints.VALUE_TEXT_ANTIALIAS_LCD_VRGB,
+        RenderingHints.VALUE_TEXT_ANTIALIAS_LCD_VBGR
+    };
+
+    // cell metrics measured for the font and rendering context named by
+    // metricsFont, saved with the prefs so that a panel can be laid out without
+    // measuring its font.
+    private String metricsFont = null;
+    private int metricsCharWidth;
+    private int metricsLineHeight;
+    private int metricsAscent;
 
     public TerminalPrefs()
     {
@@ -78,28 +110,102 @@ public class TerminalPrefs {
         renderHint = prefs.renderHint;
         font = new Font(prefs.font.getAttributes());
         monospaceOnly = prefs.monospaceOnly;
+        metricsFont = prefs.metricsFont;
+        metricsCharWidth = prefs.metricsCharWidth;
+        metricsLineHeight = prefs.metricsLineHeight;
+        metricsAscent = prefs.metricsAscent;
     }
 
     /**
-     * Loads preferences from a file.
-     * @param path the full pathname of the file to load preference data from.
-     * @return true if preference information could be retrieved, or false if
-     * the file does not exist or is corrupt.
-     * @throws IOException if an error occured while reading the file.
+     * Checks whether the cell metrics stored in the prefs were measured for
+     * the given font in the given rendering context.
      */
-    public boolean loadPrefs(String path) throws IOException
+    boolean hasMetricsFor(Font f, FontRenderContext frc)
+    {
+        return metricsFont != null && metricsFont.equals(metricsKey(f, frc));
+    }
+
+    /**
+     * Stores the cell metrics measured for a font in a rendering context.
+     * They are saved along with the rest of the prefs, so that the next run
+     * can lay out a panel without measuring the font.
+     */
+    void setMetrics(Font f, FontRenderContext frc, int charWidth,
+            int lineHeight, int ascent)
+    {
+        metricsFont = metricsKey(f, frc);
+        metricsCharWidth = charWidth;
+        metricsLineHeight = lineHeight;
+        metricsAscent = ascent;
+    }
+
+    int getMetricsCharWidth()
     {
+        return metricsCharWidth;
+    }
+
+    int getMetricsLineHeight()
+    {
+        return metricsLineHeight;
+    }
+
+    int getMetricsAscent()
+    {
+        return metricsAscent;
+    }
+
+    /**
+     * Names a font and the rendering context it was measured in.  The same
+     * font measures differently when the display is scaled, or with other
+     * antialiasing or fractional metrics, so all of them are part of the name.
+     */
+    private static String metricsKey(Font f, FontRenderContext frc)
+    {
+        AffineTransform t = frc.getTransform();
+        return f.getName() + "/" + f.getStyle() + "/" + f.getSize2D() + "/" +
+                t.getScaleX() + "," + t.getShearY() + "," + t.getShearX() +
+                "," + t.getScaleY() + "/" +
+                Arrays.asList(RENDER_HINTS).indexOf(
+                        frc.getAntiAliasingHint()) + "/" +
+                frc.usesFractionalMetrics();
+    }
+
+    /**
+     * Gets the file to load or save prefs with.
+     */
+    private File getPrefsFile(String path)
+    {
+        if(path != null)
+        {
+            return new File(path);
+        }
+
         // find the user's home directory.
         String homeDir = System.getProperty("user.home");
         if(homeDir == null)
         {
             homeDir = System.getProperty("user.dir");
         }
+        return new File(homeDir, PREFS_FILE);
+    }
 
-        FileReader fr = null;
+    /**
+     * Loads preferences from a file.  Files in the older, text format are
+     * still read.
+     * @param path the full pathname of the file to load preference data from,
+     * or null to use the default file in the user's home directory.
+     * @return true if preference information could be retrieved, or false if
+     * the file does not exist or is corrupt.
+     * @throws IOException if an error occured while reading the file.
+     */
+    public boolean loadPrefs(String path) throws IOException
+    {
+        File file = getPrefsFile(path);
+        DataInputStream in = null;
         try
         {
-            fr = new FileReader(homeDir + File.separator + PREFS_FILE);
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file)));
         }
         catch (FileNotFoundException ex)
         {
@@ -107,101 +213,159 @@ public class TerminalPrefs {
             return false;
         }
 
-        BufferedReader br = new BufferedReader(fr);
-        String line = br.readLine();
-        if(!line.equals(PREFS_TAG))
+        try
+        {
+            if(in.readInt() != PREFS_MAGIC)
+            {
+                in.close();
+                return loadTextPrefs(file);
+            }
+            if(in.readInt() != PREFS_VERSION)
+            {
+                return false;
+            }
+
+            displayWidthPx = in.readInt();
+            displayHeightPx = in.readInt();
+            displayWidthChars = in.readInt();
+            displayHeightChars = in.readInt();
+            bufferWidthChars = in.readInt();
+            bufferHeightChars = in.readInt();
+            fgColor = new Color(in.readInt());
+            bgColor = new Color(in.readInt());
+            int hint = in.readByte();
+            renderHint = (hint >= 0 && hint < RENDER_HINTS.length) ?
+                    RENDER_HINTS[hint] :
+                    RenderingHints.VALUE_TEXT_ANTIALIAS_DEFAULT;
+            String fontName = in.readUTF();
+            int fontStyle = in.readInt();
+            float fontSize = in.readFloat();
+            font = new Font(fontName, fontStyle, 1).deriveFont(fontSize);
+            monospaceOnly = in.readBoolean();
+            String key = in.readUTF();
+            metricsFont = key.isEmpty() ? null : key;
+            metricsCharWidth = in.readInt();
+            metricsLineHeight = in.readInt();
+            metricsAscent = in.readInt();
+        }
+        catch (EOFException ex)
         {
             return false;
         }
-        line = br.readLine();
-        int v = Integer.parseInt(line);
-        if(v != PREFS_VERSION)
+        finally
         {
-            // TODO: Older versions of the file will have their own legacy reading functions.
-            return true;
+            in.close();
         }
 
-        // read the prefs and convert the data.
-        line = br.readLine();
-        displayWidthPx = Integer.parseInt(line);
-        line = br.readLine();
-        displayHeightPx = Integer.parseInt(line);
-        line = br.readLine();
-        displayWidthChars = Integer.parseInt(line);
-        line = br.readLine();
-        displayHeightChars = Integer.parseInt(line);
-        line = br.readLine();
-        bufferWidthChars = Integer.parseInt(line);
-        line = br.readLine();
-        bufferHeightChars = Integer.parseInt(line);
-        line = br.readLine();
-        fgColor = Color.decode(line);
-        line = br.readLine();
-        bgColor = Color.decode(line);
-        line = br.readLine();
-        renderHint = null; // TODO: read this!
-        line = br.readLine();
-        font = Font.getFont(line);
-        line = br.readLine();
-        monospaceOnly = Boolean.parseBoolean(line);
-
         return true;
     }
 
     /**
-     * Saves preferences to a file.
-     * @param path the full pathname of the file to save preference data to.
-     * @return
+     * Reads prefs saved in the older format, with one value on each line.
      */
-    public boolean savePrefs(String path)
+    private boolean loadTextPrefs(File file) throws IOException
     {
-        // find the user's home directory.
-        String homeDir = System.getProperty("user.home");
-        if(homeDir == null)
-        {
-            homeDir = System.getProperty("user.dir");
-        }
-
-        // open (or create) the prefs file.
-        File saveFile = new File(homeDir, PREFS_FILE);
-        if(!saveFile.exists())
+        BufferedReader br = new BufferedReader(new FileReader(file));
+        try
         {
-            try
+            String line = br.readLine();
+            if(line == null || !line.equals(PREFS_TAG))
             {
-                saveFile.createNewFile();
+                return false;
             }
-            catch (IOException ex)
+            line = br.readLine();
+            int v = Integer.parseInt(line);
+            if(v != TEXT_PREFS_VERSION)
             {
-                Logger.getLogger(TerminalPrefs.class.getName()).log(Level.SEVERE, null, ex);
+                return true;
             }
-            return false;
+
+            // read the prefs and convert the data.
+            line = br.readLine();
+            displayWidthPx = Integer.parseInt(line);
+            line = br.readLine();
+            displayHeightPx = Integer.parseInt(line);
+            line = br.readLine();
+            displayWidthChars = Integer.parseInt(line);
+            line = br.readLine();
+            displayHeightChars = Integer.parseInt(line);
+            line = br.readLine();
+            bufferWidthChars = Integer.parseInt(line);
+            line = br.readLine();
+            bufferHeightChars = Integer.parseInt(line);
+            line = br.readLine();
+            fgColor = Color.decode(line);
+            line = br.readLine();
+            bgColor = Color.decode(line);
+            line = br.readLine();
+            renderHint = RenderingHints.VALUE_TEXT_ANTIALIAS_DEFAULT;
+            line = br.readLine();
+            font = new Font(line, font.getStyle(), font.getSize());
+            line = br.readLine();
+            monospaceOnly = Boolean.parseBoolean(line);
+        }
+        finally
+        {
+            br.close();
         }
 
-        FileOutputStream fos = null;
+        return true;
+    }
+
+    /**
+     * Saves preferences to a file, along with the cell metrics of the font if
+     * a panel has measured them.
+     * @param path the full pathname of the file to save preference data to,
+     * or null to use the default file in the user's home directory.
+     * @return true if the prefs were saved, or false if the file could not be
+     * written.
+     */
+    public boolean savePrefs(String path)
+    {
+        DataOutputStream out = null;
         try
         {
-            fos = new FileOutputStream(homeDir + File.separator + PREFS_FILE);
+            out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(getPrefsFile(path))));
+            out.writeInt(PREFS_MAGIC);
+            out.writeInt(PREFS_VERSION);
+            out.writeInt(displayWidthPx);
+            out.writeInt(displayHeightPx);
+            out.writeInt(displayWidthChars);
+            out.writeInt(displayHeightChars);
+            out.writeInt(bufferWidthChars);
+            out.writeInt(bufferHeightChars);
+            out.writeInt(fgColor.getRGB());
+            out.writeInt(bgColor.getRGB());
+            out.writeByte(Arrays.asList(RENDER_HINTS).indexOf(renderHint));
+            out.writeUTF(font.getName());
+            out.writeInt(font.getStyle());
+            out.writeFloat(font.getSize2D());
+            out.writeBoolean(monospaceOnly);
+            out.writeUTF(metricsFont == null ? "" : metricsFont);
+            out.writeInt(metricsCharWidth);
+            out.writeInt(metricsLineHeight);
+            out.writeInt(metricsAscent);
         }
-        catch (FileNotFoundException ex)
+        catch (IOException ex)
         {
             Logger.getLogger(TerminalPrefs.class.getName()).log(Level.SEVERE, null, ex);
             return false;
         }
-
-        PrintStream ps = new PrintStream(fos);
-        ps.println(PREFS_TAG);
-        ps.println(PREFS_VERSION);
-        ps.println(displayWidthPx);
-        ps.println(displayHeightPx);
-        ps.println(displayWidthChars);
-        ps.println(displayHeightChars);
-        ps.println(bufferWidthChars);
-        ps.println(bufferHeightChars);
-        ps.println(fgColor.getRGB());
-        ps.println(bgColor.getRGB());
-        ps.println(renderHint);
-        ps.println(font.getName());
-        ps.println(new Boolean(monospaceOnly).toString());
+        finally
+        {
+            if(out != null)
+            {
+                try
+                {
+                    out.close();
+                }
+                catch (IOException ex)
+                {
+                    return false;
+                }
+            }
+        }
         return true;
     }
 }
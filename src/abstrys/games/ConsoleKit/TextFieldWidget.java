@@ -0,0 +1,106 @@
+package com.abstrys.consolekit;
+
+/**
+ * A widget that holds a single line of editable text.  Characters passed to
+ * handleChar are inserted at the caret, and backspace deletes the character
+ * before it.  If the text is wider than the field, it scrolls to keep the
+ * caret in view.
+ */
+public class TextFieldWidget extends Widget
+{
+    private StringBuilder text;
+    private int caret;
+    private int scroll;
+    private int maxLength;
+    private int fieldX;
+    private int fieldWidth;
+
+    /**
+     * Constructs a new, empty TextFieldWidget.
+     * @param columns the preferred width of the field, in characters.
+     * @param maxLength the most characters the field will hold.
+     */
+    public TextFieldWidget(int columns, int maxLength)
+    {
+        this.text = new StringBuilder();
+        this.caret = 0;
+        this.scroll = 0;
+        this.maxLength = maxLength;
+        this.fieldX = 0;
+        this.fieldWidth = columns;
+        setPreferredSize(columns, 1);
+    }
+
+    /**
+     * Replaces the text in the field, and moves the caret to the end.
+     * @param s the new text.
+     */
+    public void setText(String s)
+    {
+        text.setLength(0);
+        text.append(s, 0, Math.min(s.length(), maxLength));
+        caret = text.length();
+        damage();
+    }
+
+    public String getText()
+    {
+        return text.toString();
+    }
+
+    /**
+     * Gets the column that the caret was drawn at, so that the terminal's
+     * cursor can be placed there.
+     * @return the cartesian x coordinate of the caret.
+     */
+    public int getCaretColumn()
+    {
+        return fieldX + caret - scroll;
+    }
+
+    @Override
+    public boolean handleChar(char ch)
+    {
+        if (ch == '\b')
+        {
+            if (caret > 0)
+            {
+                text.deleteCharAt(--caret);
+                damage();
+            }
+            return true;
+        }
+        if (ch < ' ' || text.length() >= maxLength)
+        {
+            return false;
+        }
+        text.insert(caret++, ch);
+        damage();
+        return true;
+    }
+
+    @Override
+    protected void paintContent(TerminalData td, int cx, int cy, int cw,
+            int ch)
+    {
+        fieldX = cx;
+        fieldWidth = cw;
+
+        // keep the caret in view, leaving room for it after the last
+        // character.
+        if (caret < scroll)
+        {
+            scroll = caret;
+        }
+        else if (caret >= scroll + fieldWidth)
+        {
+            scroll = caret - fieldWidth + 1;
+        }
+
+        td.setText(text.substring(Math.min(scroll, text.length())), cx, cy, cw);
+        for (int i = cy + 1; i < cy + ch; i++)
+        {
+            td.setText("", cx, i, cw);
+        }
+    }
+}
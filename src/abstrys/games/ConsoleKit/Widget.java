@@ -0,0 +1,224 @@
+package com.abstrys.consolekit;
+
+/**
+ * The base class for retained-mode text widgets drawn into a TerminalData
+ * grid.  Each widget remembers whether it has been damaged since it was last
+ * drawn, and only damaged widgets are redrawn when the widget tree is updated.
+ * Subclasses draw their content in paintContent, and call damage whenever
+ * something that affects their appearance changes.
+ */
+public abstract class Widget
+{
+    private int x = 0;
+    private int y = 0;
+    private int width = 0;
+    private int height = 0;
+    private int preferredWidth = 0;
+    private int preferredHeight = 1;
+    private boolean border = false;
+    private String title = null;
+    private boolean damaged = true;
+    WidgetContainer parent = null;
+
+    /**
+     * Sets the position and size of the widget, in characters.  This is
+     * normally called by the widget's container during layout.
+     * @param x the cartesian x coordinate of the widget's top-left corner.
+     * @param y the cartesian y coordinate of the widget's top-left corner.
+     * @param w the width of the widget.
+     * @param h the height of the widget.
+     */
+    public void setBounds(int x, int y, int w, int h)
+    {
+        if (x == this.x && y == this.y && w == width && h == height)
+        {
+            return;
+        }
+        this.x = x;
+        this.y = y;
+        this.width = w;
+        this.height = h;
+        damage();
+    }
+
+    public int getX()
+    {
+        return x;
+    }
+
+    public int getY()
+    {
+        return y;
+    }
+
+    public int getWidth()
+    {
+        return width;
+    }
+
+    public int getHeight()
+    {
+        return height;
+    }
+
+    /**
+     * Sets the size the widget would like to be given during layout, not
+     * counting its border.
+     * @param w the preferred width, in characters.
+     * @param h the preferred height, in characters.
+     */
+    public void setPreferredSize(int w, int h)
+    {
+        preferredWidth = w;
+        preferredHeight = h;
+        if (parent != null)
+        {
+            parent.invalidateLayout();
+        }
+    }
+
+    /**
+     * Gets the preferred width of the widget, including its border.
+     * @return the preferred width, in characters.
+     */
+    public int getPreferredWidth()
+    {
+        return preferredWidth + (border ? 2 : 0);
+    }
+
+    /**
+     * Gets the preferred height of the widget, including its border.
+     * @return the preferred height, in characters.
+     */
+    public int getPreferredHeight()
+    {
+        return preferredHeight + (border ? 2 : 0);
+    }
+
+    /**
+     * Turns the widget's border on or off.
+     * @param border true to draw a border around the widget.
+     * @param title a title to draw in the top edge of the border, or null for
+     * no title.
+     */
+    public void setBorder(boolean border, String title)
+    {
+        this.border = border;
+        this.title = title;
+        if (parent != null)
+        {
+            parent.invalidateLayout();
+        }
+        damage();
+    }
+
+    /**
+     * Checks whether the widget has a border.
+     * @return true if a border is drawn around the widget.
+     */
+    public boolean hasBorder()
+    {
+        return border;
+    }
+
+    /**
+     * Marks the widget as needing to be redrawn at the next update.
+     */
+    public void damage()
+    {
+        damaged = true;
+    }
+
+    /**
+     * Checks whether the widget needs to be redrawn.
+     * @return true if the widget has been damaged since it was last drawn.
+     */
+    public boolean isDamaged()
+    {
+        return damaged;
+    }
+
+    /**
+     * Redraws the widget if it has been damaged.
+     * @param td the data to draw into.
+     */
+    public void update(TerminalData td)
+    {
+        if (!damaged)
+        {
+            return;
+        }
+        damaged = false;
+        if (width <= 0 || height <= 0)
+        {
+            return;
+        }
+
+        if (border)
+        {
+            paintBorder(td);
+            if (width > 2 && height > 2)
+            {
+                paintContent(td, x + 1, y + 1, width - 2, height - 2);
+            }
+        }
+        else
+        {
+            paintContent(td, x, y, width, height);
+        }
+    }
+
+    private void paintBorder(TerminalData td)
+    {
+        StringBuilder edge = new StringBuilder(width);
+        edge.append('+');
+        for (int i = 2; i < width; i++)
+        {
+            edge.append('-');
+        }
+        if (width > 1)
+        {
+            edge.append('+');
+        }
+        td.setText(edge.toString(), x, y + height - 1, width);
+
+        if (title != null && width > 4)
+        {
+            String t = " " + title + " ";
+            if (t.length() > width - 2)
+            {
+                t = t.substring(0, width - 2);
+            }
+            edge.replace(1, 1 + t.length(), t);
+        }
+        td.setText(edge.toString(), x, y, width);
+
+        for (int i = y + 1; i < y + height - 1; i++)
+        {
+            td.setText("|", x, i, 1);
+            td.setText("|", x + width - 1, i, 1);
+        }
+    }
+
+    /**
+     * Draws the content of the widget.  Only the given area should be drawn
+     * into; it is the widget's bounds less its border.
+     * @param td the data to draw into.
+     * @param cx the cartesian x coordinate of the content area.
+     * @param cy the cartesian y coordinate of the content area.
+     * @param cw the width of the content area.
+     * @param ch the height of the content area.
+     */
+    protected abstract void paintContent(TerminalData td, int cx, int cy,
+            int cw, int ch);
+
+    /**
+     * Called when a character is typed while this widget has the focus.
+     * @param ch the character typed.
+     * @return true if the widget used the character.
+     */
+    public boolean handleChar(char ch)
+    {
+        return false;
+    }
+}
@@ -0,0 +1,285 @@
+package com.abstrys.consolekit;
+
+import java.util.ArrayList;
+
+/**
+ * A widget that holds other widgets and lays them out in a row or a column.
+ * Each child is given its preferred size along the layout direction, and any
+ * space left over is shared between the children in proportion to their
+ * weights.  Children fill the container across the layout direction.
+ * <p>
+ * A container is also used as the root of a widget tree.  Call update to
+ * bring the terminal data up to date with the tree; only widgets that have
+ * been damaged since the last update are redrawn.
+ */
+public class WidgetContainer extends Widget
+{
+    /**
+     * Constants used to define the direction that a container lays out its
+     * children in.
+     */
+    public enum Orientation
+    {
+        HORIZONTAL, VERTICAL
+    };
+
+    private Orientation orientation;
+    private ArrayList<Widget> children;
+    private ArrayList<Integer> weights;
+    private boolean layoutNeeded;
+    private Widget focus;
+
+    /**
+     * Constructs a new, empty WidgetContainer.
+     * @param o the direction to lay out children in.
+     */
+    public WidgetContainer(Orientation o)
+    {
+        this.orientation = o;
+        this.children = new ArrayList<Widget>();
+        this.weights = new ArrayList<Integer>();
+        this.layoutNeeded = true;
+        this.focus = null;
+    }
+
+    /**
+     * Adds a widget to the end of the container with a weight of zero.
+     * @param w the widget to add.
+     */
+    public void add(Widget w)
+    {
+        add(w, 0);
+    }
+
+    /**
+     * Adds a widget to the end of the container.
+     * @param w the widget to add.
+     * @param weight the share of any extra space that the widget is given.  A
+     * widget with a weight of zero is kept at its preferred size.
+     */
+    public void add(Widget w, int weight)
+    {
+        children.add(w);
+        weights.add(weight);
+        w.parent = this;
+        invalidateLayout();
+    }
+
+    /**
+     * Removes a widget from the container.
+     * @param w the widget to remove.
+     */
+    public void remove(Widget w)
+    {
+        int i = children.indexOf(w);
+        if (i < 0)
+        {
+            return;
+        }
+        children.remove(i);
+        weights.remove(i);
+        w.parent = null;
+
+        // this container, or any container above it, may have had w or a
+        // widget inside w as its focus.
+        for (WidgetContainer c = this; c != null; c = c.parent)
+        {
+            if (c.focus != null && !c.contains(c.focus))
+            {
+                c.focus = null;
+            }
+        }
+        invalidateLayout();
+    }
+
+    /**
+     * Checks whether a widget is inside this container, either as a child or
+     * inside a child container.
+     */
+    private boolean contains(Widget w)
+    {
+        for (WidgetContainer c = w.parent; c != null; c = c.parent)
+        {
+            if (c == this)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Marks the container as needing to lay out its children again at the
+     * next update.
+     */
+    public void invalidateLayout()
+    {
+        layoutNeeded = true;
+        if (parent != null)
+        {
+            parent.invalidateLayout();
+        }
+    }
+
+    /**
+     * Sets the widget that receives typed characters passed to handleChar.
+     * The focus is cleared if the widget is later removed from the container.
+     * @param w the widget to give the focus to, or null to clear the focus.
+     * This may be a widget inside a child container.
+     * @return true if the focus was set, or false if the widget isn't inside
+     * this container, in which case the focus is left as it was.
+     */
+    public boolean setFocus(Widget w)
+    {
+        if (w != null && !contains(w))
+        {
+            return false;
+        }
+        focus = w;
+        return true;
+    }
+
+    @Override
+    public boolean handleChar(char ch)
+    {
+        return focus != null && focus.handleChar(ch);
+    }
+
+    @Override
+    public void setBounds(int x, int y, int w, int h)
+    {
+        if (x != getX() || y != getY() || w != getWidth() || h != getHeight())
+        {
+            layoutNeeded = true;
+        }
+        super.setBounds(x, y, w, h);
+    }
+
+    @Override
+    public int getPreferredWidth()
+    {
+        int size = 0;
+        for (Widget w : children)
+        {
+            if (orientation == Orientation.HORIZONTAL)
+            {
+                size += w.getPreferredWidth();
+            }
+            else
+            {
+                size = Math.max(size, w.getPreferredWidth());
+            }
+        }
+        return size + (hasBorder() ? 2 : 0);
+    }
+
+    @Override
+    public int getPreferredHeight()
+    {
+        int size = 0;
+        for (Widget w : children)
+        {
+            if (orientation == Orientation.VERTICAL)
+            {
+                size += w.getPreferredHeight();
+            }
+            else
+            {
+                size = Math.max(size, w.getPreferredHeight());
+            }
+        }
+        return size + (hasBorder() ? 2 : 0);
+    }
+
+    /**
+     * Lays out the children, if needed, and redraws every damaged widget in
+     * the tree.
+     * @param td the data to draw into.
+     */
+    @Override
+    public void update(TerminalData td)
+    {
+        if (layoutNeeded)
+        {
+            doLayout();
+        }
+
+        // if the container itself is damaged, it clears its whole area, so
+        // every child has to be drawn again.
+        if (isDamaged())
+        {
+            super.update(td);
+            for (Widget w : children)
+            {
+                w.damage();
+            }
+        }
+        for (Widget w : children)
+        {
+            w.update(td);
+        }
+    }
+
+    @Override
+    protected void paintContent(TerminalData td, int cx, int cy, int cw,
+            int ch)
+    {
+        for (int i = cy; i < cy + ch; i++)
+        {
+            td.setText("", cx, i, cw);
+        }
+    }
+
+    /**
+     * Gives each child its share of the container's content area.
+     */
+    private void doLayout()
+    {
+        layoutNeeded = false;
+        damage();
+
+        int inset = hasBorder() ? 1 : 0;
+        int cx = getX() + inset;
+        int cy = getY() + inset;
+        int cw = Math.max(getWidth() - inset*2, 0);
+        int ch = Math.max(getHeight() - inset*2, 0);
+        boolean vertical = (orientation == Orientation.VERTICAL);
+        int space = vertical ? ch : cw;
+
+        int fixed = 0;
+        int totalWeight = 0;
+        for (int i = 0; i < children.size(); i++)
+        {
+            Widget w = children.get(i);
+            fixed += vertical ? w.getPreferredHeight() : w.getPreferredWidth();
+            totalWeight += weights.get(i);
+        }
+        int extra = Math.max(space - fixed, 0);
+
+        int pos = 0;
+        int given = 0;
+        for (int i = 0; i < children.size(); i++)
+        {
+            Widget w = children.get(i);
+            int size = vertical ? w.getPreferredHeight() : w.getPreferredWidth();
+            if (totalWeight > 0 && weights.get(i) > 0)
+            {
+                // the last weighted child takes any rounding remainder.
+                given += weights.get(i);
+                size += extra * given / totalWeight -
+                        extra * (given - weights.get(i)) / totalWeight;
+            }
+            size = Math.max(Math.min(size, space - pos), 0);
+
+            if (vertical)
+            {
+                w.setBounds(cx, cy + pos, cw, size);
+            }
+            else
+            {
+                w.setBounds(cx + pos, cy, size, ch);
+            }
+            pos += size;
+        }
+    }
+}
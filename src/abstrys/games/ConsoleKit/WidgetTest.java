@@ -0,0 +1,356 @@
+package com.abstrys.consolekit;
+
+import java.util.ArrayList;
+
+/**
+ * Tests for the widget classes: layout, damage, focus and what each kind of
+ * widget draws.  Run them with "ant test"; any failure is reported and makes
+ * the run exit with an error.
+ */
+public class WidgetTest
+{
+    private static int failures = 0;
+
+    public static void main(String[] args)
+    {
+        testWeightedLayout();
+        testLayoutWithBorder();
+        testLayoutClipsToSpace();
+        testDamageRedrawsOnlyChanged();
+        testRelayoutRedrawsAll();
+        testFocusRouting();
+        testFocusMustBeInside();
+        testFocusClearedOnNestedRemoval();
+        testLabel();
+        testListScrolls();
+        testTextField();
+
+        if (failures > 0)
+        {
+            System.out.println(failures + " widget test(s) failed.");
+            System.exit(1);
+        }
+        System.out.println("All widget tests passed.");
+    }
+
+    private static void check(boolean ok, String what)
+    {
+        if (!ok)
+        {
+            failures++;
+            System.out.println("FAILED: " + what);
+        }
+    }
+
+    /**
+     * Checks the cells of a line, shown with '.' for a blank cell.
+     */
+    private static void checkLine(TerminalData td, int y, String expected,
+            String what)
+    {
+        char[] line = td.getLine(y);
+        StringBuilder sb = new StringBuilder();
+        for (char ch : line)
+        {
+            sb.append(ch == '\0' ? '.' : ch);
+        }
+        check(sb.toString().equals(expected), what + ": line " + y + " is \"" +
+                sb + "\", expected \"" + expected + "\"");
+    }
+
+    private static void checkBounds(Widget w, int x, int y, int width,
+            int height, String what)
+    {
+        check(w.getX() == x && w.getY() == y && w.getWidth() == width &&
+                w.getHeight() == height, what + ": bounds are " + w.getX() +
+                "," + w.getY() + " " + w.getWidth() + "x" + w.getHeight() +
+                ", expected " + x + "," + y + " " + width + "x" + height);
+    }
+
+    /**
+     * Children with no weight keep their preferred size, and the space left
+     * over is shared by weight, with the last weighted child taking the
+     * rounding remainder.
+     */
+    private static void testWeightedLayout()
+    {
+        WidgetContainer root = new WidgetContainer(
+                WidgetContainer.Orientation.VERTICAL);
+        LabelWidget title = new LabelWidget("title");
+        ListWidget small = new ListWidget();
+        ListWidget large = new ListWidget();
+        root.add(title);
+        root.add(small, 1);
+        root.add(large, 3);
+        root.setBounds(0, 0, 10, 20);
+        root.update(new TerminalData(10, 20));
+
+        // 17 rows are left over: a quarter of them, rounded down, goes to
+        // small and the rest to large.
+        checkBounds(title, 0, 0, 10, 1, "unweighted child");
+        checkBounds(small, 0, 1, 10, 5, "child with weight 1");
+        checkBounds(large, 0, 6, 10, 14, "child with weight 3");
+    }
+
+    /**
+     * A container's border is taken out of the space given to its children.
+     */
+    private static void testLayoutWithBorder()
+    {
+        WidgetContainer root = new WidgetContainer(
+                WidgetContainer.Orientation.HORIZONTAL);
+        root.setBorder(true, null);
+        LabelWidget left = new LabelWidget("ab");
+        LabelWidget right = new LabelWidget("cd");
+        root.add(left, 1);
+        root.add(right, 1);
+        root.setBounds(2, 1, 13, 5);
+        root.update(new TerminalData(20, 10));
+
+        checkBounds(left, 3, 2, 5, 3, "first child inside a border");
+        checkBounds(right, 8, 2, 6, 3, "second child inside a border");
+        check(root.getPreferredWidth() == 6, "preferred width with a " +
+                "border is " + root.getPreferredWidth() + ", expected 6");
+    }
+
+    /**
+     * Children that don't fit are cut short, and those past the end of the
+     * container get no space at all.
+     */
+    private static void testLayoutClipsToSpace()
+    {
+        WidgetContainer root = new WidgetContainer(
+                WidgetContainer.Orientation.HORIZONTAL);
+        LabelWidget first = new LabelWidget("1234");
+        LabelWidget second = new LabelWidget("5678");
+        LabelWidget third = new LabelWidget("9");
+        root.add(first);
+        root.add(second, 1);
+        root.add(third);
+        root.setBounds(0, 0, 6, 1);
+        root.update(new TerminalData(6, 1));
+
+        checkBounds(first, 0, 0, 4, 1, "child that fits");
+        checkBounds(second, 4, 0, 2, 1, "child cut short");
+        checkBounds(third, 6, 0, 0, 1, "child with no room");
+    }
+
+    /**
+     * After an update, changing one widget redraws only that widget; cells
+     * belonging to the others are left alone.
+     */
+    private static void testDamageRedrawsOnlyChanged()
+    {
+        TerminalData td = new TerminalData(8, 2);
+        WidgetContainer root = new WidgetContainer(
+                WidgetContainer.Orientation.VERTICAL);
+        LabelWidget top = new LabelWidget("top");
+        LabelWidget bottom = new LabelWidget("bottom");
+        root.add(top, 1);
+        root.add(bottom, 1);
+        root.setBounds(0, 0, 8, 2);
+        root.update(td);
+        check(!root.isDamaged() && !top.isDamaged() && !bottom.isDamaged(),
+                "widgets are still damaged after an update");
+
+        // mark the top line, so that redrawing it would show.
+        td.setChar('#', 7, 0);
+        bottom.setText("changed");
+        check(bottom.isDamaged() && !top.isDamaged() && !root.isDamaged(),
+                "setText damaged the wrong widgets");
+        root.update(td);
+        checkLine(td, 0, "top    #", "undamaged label");
+        checkLine(td, 1, "changed ", "damaged label");
+
+        top.setText("top");
+        check(!top.isDamaged(), "setting the same text damaged a label");
+    }
+
+    /**
+     * A change to a child's preferred size lays out every container above it
+     * again, and a container that is laid out again redraws all its children.
+     */
+    private static void testRelayoutRedrawsAll()
+    {
+        TerminalData td = new TerminalData(8, 3);
+        WidgetContainer root = new WidgetContainer(
+                WidgetContainer.Orientation.VERTICAL);
+        WidgetContainer row = new WidgetContainer(
+                WidgetContainer.Orientation.HORIZONTAL);
+        LabelWidget a = new LabelWidget("a");
+        LabelWidget b = new LabelWidget("b");
+        LabelWidget c = new LabelWidget("c");
+        row.add(a);
+        row.add(b);
+        root.add(row);
+        root.add(c);
+        root.setBounds(0, 0, 8, 3);
+        root.update(td);
+        checkLine(td, 0, "ab      ", "before growing a child");
+
+        td.setChar('#', 7, 2);
+        a.setPreferredSize(3, 1);
+        root.update(td);
+        checkLine(td, 0, "a  b    ", "after growing a child");
+        checkBounds(b, 3, 0, 1, 1, "child moved by a nested relayout");
+        checkLine(td, 2, "        ", "the rest of a relaid container");
+    }
+
+    /**
+     * Characters given to the root go to the focused widget, wherever it is
+     * in the tree.
+     */
+    private static void testFocusRouting()
+    {
+        WidgetContainer root = new WidgetContainer(
+                WidgetContainer.Orientation.VERTICAL);
+        WidgetContainer row = new WidgetContainer(
+                WidgetContainer.Orientation.HORIZONTAL);
+        TextFieldWidget field = new TextFieldWidget(5, 10);
+        TextFieldWidget other = new TextFieldWidget(5, 10);
+        row.add(field);
+        root.add(row);
+        root.add(other);
+
+        check(!root.handleChar('x'), "a tree with no focus used a character");
+        check(root.setFocus(field), "couldn't focus a nested widget");
+        check(root.handleChar('h') && root.handleChar('i'),
+                "the focused widget didn't use a character");
+        check(field.getText().equals("hi") && other.getText().isEmpty(),
+                "characters went to \"" + other.getText() +
+                "\" instead of the focused field");
+
+        check(root.setFocus(null), "couldn't clear the focus");
+        check(!root.handleChar('x'), "a character was used with no focus");
+    }
+
+    /**
+     * The focus can only be given to a widget inside the container.
+     */
+    private static void testFocusMustBeInside()
+    {
+        WidgetContainer root = new WidgetContainer(
+                WidgetContainer.Orientation.VERTICAL);
+        WidgetContainer row = new WidgetContainer(
+                WidgetContainer.Orientation.HORIZONTAL);
+        TextFieldWidget field = new TextFieldWidget(5, 10);
+        TextFieldWidget outside = new TextFieldWidget(5, 10);
+        row.add(field);
+        root.add(row);
+        root.setFocus(field);
+
+        check(!root.setFocus(outside), "focused a widget outside the tree");
+        check(!root.setFocus(root), "a container focused itself");
+        check(!row.setFocus(root), "a container focused its parent");
+        root.handleChar('a');
+        check(field.getText().equals("a") && outside.getText().isEmpty(),
+                "a refused setFocus moved the focus");
+    }
+
+    /**
+     * Removing the focused widget, or a container holding it, clears the
+     * focus of every container above it.
+     */
+    private static void testFocusClearedOnNestedRemoval()
+    {
+        WidgetContainer root = new WidgetContainer(
+                WidgetContainer.Orientation.VERTICAL);
+        WidgetContainer row = new WidgetContainer(
+                WidgetContainer.Orientation.HORIZONTAL);
+        TextFieldWidget field = new TextFieldWidget(5, 10);
+        row.add(field);
+        root.add(row);
+
+        root.setFocus(field);
+        row.remove(field);
+        check(!root.handleChar('a') && field.getText().isEmpty(),
+                "the root kept the focus on a widget removed from a child");
+
+        row.add(field);
+        root.setFocus(field);
+        root.remove(row);
+        check(!root.handleChar('a') && field.getText().isEmpty(),
+                "the root kept the focus inside a removed container");
+
+        // the removed container's own focus is still inside it.
+        row.setFocus(field);
+        check(row.handleChar('b') && field.getText().equals("b"),
+                "a removed container lost the focus inside it");
+    }
+
+    private static void testLabel()
+    {
+        TerminalData td = new TerminalData(10, 4);
+        LabelWidget label = new LabelWidget("a long label");
+        label.setBorder(true, "T");
+        label.setBounds(0, 0, 8, 4);
+        label.update(td);
+        checkLine(td, 0, "+ T ---+..", "label border with a title");
+        checkLine(td, 1, "|a long|..", "label cut to its width");
+        checkLine(td, 2, "|      |..", "label's blank second row");
+        checkLine(td, 3, "+------+..", "label border bottom");
+    }
+
+    /**
+     * A list only draws the rows in view, and scrolls to keep the selected
+     * item in view.
+     */
+    private static void testListScrolls()
+    {
+        TerminalData td = new TerminalData(6, 3);
+        ListWidget list = new ListWidget();
+        ArrayList<String> items = new ArrayList<String>();
+        for (int i = 0; i < 10; i++)
+        {
+            items.add("i" + i);
+        }
+        list.setItems(items);
+        list.setBounds(0, 0, 6, 3);
+        list.update(td);
+        checkLine(td, 0, "> i0  ", "list before scrolling");
+        checkLine(td, 2, "  i2  ", "list before scrolling");
+
+        list.setSelected(5);
+        check(list.isDamaged(), "selecting an item didn't damage the list");
+        list.update(td);
+        checkLine(td, 0, "  i3  ", "list scrolled down");
+        checkLine(td, 2, "> i5  ", "list scrolled down");
+
+        list.moveSelection(-4);
+        list.update(td);
+        checkLine(td, 0, "> i1  ", "list scrolled up");
+
+        // an item added below the view doesn't need a redraw.
+        list.addItem("i10");
+        check(!list.isDamaged(), "adding an item out of view damaged the list");
+    }
+
+    /**
+     * A text field takes characters up to its maximum length, deletes with
+     * backspace, and scrolls to keep the caret in view.
+     */
+    private static void testTextField()
+    {
+        TerminalData td = new TerminalData(6, 1);
+        TextFieldWidget field = new TextFieldWidget(4, 6);
+        field.setBounds(1, 0, 4, 1);
+        for (char ch : "abcdefg".toCharArray())
+        {
+            field.handleChar(ch);
+        }
+        check(field.getText().equals("abcdef"), "field text is \"" +
+                field.getText() + "\", expected \"abcdef\"");
+        field.update(td);
+        checkLine(td, 0, ".def .", "field scrolled to the caret");
+        check(field.getCaretColumn() == 4, "caret column is " +
+                field.getCaretColumn() + ", expected 4");
+
+        check(field.handleChar('\b'), "backspace wasn't used");
+        check(!field.handleChar('\n'), "a control character was used");
+        field.update(td);
+        // the caret is still in view, so the field doesn't scroll back.
+        checkLine(td, 0, ".de  .", "field after backspace");
+        check(field.getText().equals("abcde"), "field text is \"" +
+                field.getText() + "\", expected \"abcde\"");
+    }
+}
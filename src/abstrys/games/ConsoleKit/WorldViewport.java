@@ -0,0 +1,312 @@
+package com.abstrys.consolekit;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Shows part of a large two-dimensional world of cells in a rectangular area
+ * of a TerminalData object.  The world is stored in square chunks that are
+ * loaded on demand through a ChunkLoader and kept in a least-recently-used
+ * cache, so memory use depends on the area that has been visited rather than
+ * the size of the world.  When the viewport is panned, the part of the view
+ * that is still visible is moved with a block copy and only the strips of
+ * cells that come into view are drawn.
+ */
+public class WorldViewport
+{
+    /**
+     * The width and height of a chunk, in cells.
+     */
+    public static final int CHUNK_SIZE = 32;
+
+    private static class Chunk
+    {
+        final char[] cells = new char[CHUNK_SIZE * CHUNK_SIZE];
+        boolean modified = false;
+    }
+
+    private final TerminalData data;
+    private final int x;
+    private final int y;
+    private final int width;
+    private final int height;
+    private final ChunkLoader loader;
+    private final LinkedHashMap<Long, Chunk> chunks;
+    private final int maxChunks;
+    private final char[] rowBuffer;
+    private int originX;
+    private int originY;
+    private boolean drawn;
+
+    /**
+     * Constructs a new WorldViewport.  Nothing is drawn until the origin is
+     * set or redraw is called.
+     * @param td the data to draw the view into.
+     * @param x the cartesian x coordinate of the view area in the data.
+     * @param y the cartesian y coordinate of the view area in the data.
+     * @param w the width of the view area.
+     * @param h the height of the view area.
+     * @param loader the loader used to fetch and store chunks, or null for a
+     * world that starts out blank and is never saved.
+     * @param maxChunks the most chunks to keep in memory.  This is raised if
+     * needed so that the whole view area always fits.
+     */
+    public WorldViewport(TerminalData td, int x, int y, int w, int h,
+            ChunkLoader loader, int maxChunks)
+    {
+        this.data = td;
+        this.x = x;
+        this.y = y;
+        this.width = w;
+        this.height = h;
+        this.loader = loader;
+        this.maxChunks = Math.max(maxChunks,
+                (w / CHUNK_SIZE + 2) * (h / CHUNK_SIZE + 2));
+        this.chunks = new LinkedHashMap<Long, Chunk>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Chunk> e)
+            {
+                if (size() <= WorldViewport.this.maxChunks)
+                {
+                    return false;
+                }
+                saveChunk(e.getKey(), e.getValue());
+                return true;
+            }
+        };
+        this.rowBuffer = new char[w];
+        this.originX = 0;
+        this.originY = 0;
+        this.drawn = false;
+    }
+
+    /**
+     * Moves the view so that the given world position is at its top-left
+     * corner.
+     * @param wx the world x coordinate to show at the left of the view.
+     * @param wy the world y coordinate to show at the top of the view.
+     */
+    public void setOrigin(int wx, int wy)
+    {
+        int dx = wx - originX;
+        int dy = wy - originY;
+        originX = wx;
+        originY = wy;
+
+        if (!drawn || Math.abs(dx) >= width || Math.abs(dy) >= height)
+        {
+            redraw();
+            return;
+        }
+        if (dx == 0 && dy == 0)
+        {
+            return;
+        }
+
+        // move what is still in view, then draw the exposed rows and columns.
+        data.copyRect(x + Math.max(dx, 0), y + Math.max(dy, 0),
+                width - Math.abs(dx), height - Math.abs(dy),
+                x + Math.max(-dx, 0), y + Math.max(-dy, 0));
+        if (dy > 0)
+        {
+            drawRect(0, height - dy, width, dy);
+        }
+        else if (dy < 0)
+        {
+            drawRect(0, 0, width, -dy);
+        }
+
+        // the columns drawn take in one copied column, since a pair cut by
+        // the edge of the view was drawn blank and may now be in view whole.
+        int rowTop = Math.max(-dy, 0);
+        int rowCount = height - Math.abs(dy);
+        if (dx > 0)
+        {
+            drawRect(width - dx - 1, rowTop, dx + 1, rowCount);
+        }
+        else if (dx < 0)
+        {
+            drawRect(0, rowTop, -dx + 1, rowCount);
+        }
+    }
+
+    /**
+     * Moves the view by the given number of cells.
+     * @param dx the number of cells to move right; negative values move left.
+     * @param dy the number of cells to move down; negative values move up.
+     */
+    public void pan(int dx, int dy)
+    {
+        setOrigin(originX + dx, originY + dy);
+    }
+
+    public int getOriginX()
+    {
+        return originX;
+    }
+
+    public int getOriginY()
+    {
+        return originY;
+    }
+
+    /**
+     * Draws the whole view area.
+     */
+    public void redraw()
+    {
+        drawRect(0, 0, width, height);
+        drawn = true;
+    }
+
+    /**
+     * Gets the cell at a world position, loading its chunk if needed.
+     * @param wx the world x coordinate of the cell.
+     * @param wy the world y coordinate of the cell.
+     * @return the character in the cell.
+     */
+    public char getCell(int wx, int wy)
+    {
+        Chunk c = getChunk(Math.floorDiv(wx, CHUNK_SIZE),
+                Math.floorDiv(wy, CHUNK_SIZE));
+        return c.cells[Math.floorMod(wy, CHUNK_SIZE) * CHUNK_SIZE +
+                Math.floorMod(wx, CHUNK_SIZE)];
+    }
+
+    /**
+     * Sets the cell at a world position.  A wide character takes this cell
+     * and the next, as it does in TerminalData, and writing over one half of
+     * a pair blanks the other half.  If the cells are in view, they are drawn
+     * immediately.
+     * @param ch the character to put in the cell.
+     * @param wx the world x coordinate of the cell.
+     * @param wy the world y coordinate of the cell.
+     * @return true if the cell was set, or false if the character is a
+     * surrogate or WIDE_CONTINUATION, which can't be set on its own.
+     */
+    public boolean setCell(char ch, int wx, int wy)
+    {
+        if (Character.isSurrogate(ch) || ch == TerminalData.WIDE_CONTINUATION)
+        {
+            return false;
+        }
+        int cells = CharWidth.isDoubleCell(ch) ? 2 : 1;
+
+        if (isPairEnd(getCell(wx, wy)))
+        {
+            putCell(' ', wx - 1, wy);
+        }
+        if (CharWidth.isDoubleCell(getCell(wx + cells - 1, wy)))
+        {
+            putCell(' ', wx + cells, wy);
+        }
+        putCell(ch, wx, wy);
+        if (cells == 2)
+        {
+            putCell(TerminalData.WIDE_CONTINUATION, wx + 1, wy);
+        }
+
+        // draw every cell that may have changed, from the one before to the
+        // one after.
+        int sx = wx - originX;
+        int sy = wy - originY;
+        int left = Math.max(sx - 1, 0);
+        int right = Math.min(sx + cells + 1, width);
+        if (drawn && sy >= 0 && sy < height && left < right)
+        {
+            drawRect(left, sy, right - left, 1);
+        }
+        return true;
+    }
+
+    /**
+     * Gets the number of chunks currently held in memory.
+     * @return the chunk count.
+     */
+    public int getChunkCount()
+    {
+        return chunks.size();
+    }
+
+    /**
+     * Saves every modified chunk in the cache through the chunk loader.
+     */
+    public void flush()
+    {
+        for (Map.Entry<Long, Chunk> e : chunks.entrySet())
+        {
+            saveChunk(e.getKey(), e.getValue());
+        }
+    }
+
+    private void saveChunk(long key, Chunk c)
+    {
+        if (c.modified && loader != null)
+        {
+            loader.saveChunk((int)(key >> 32), (int)key, c.cells);
+        }
+        c.modified = false;
+    }
+
+    private void putCell(char ch, int wx, int wy)
+    {
+        Chunk c = getChunk(Math.floorDiv(wx, CHUNK_SIZE),
+                Math.floorDiv(wy, CHUNK_SIZE));
+        c.cells[Math.floorMod(wy, CHUNK_SIZE) * CHUNK_SIZE +
+                Math.floorMod(wx, CHUNK_SIZE)] = ch;
+        c.modified = true;
+    }
+
+    private static boolean isPairEnd(char ch)
+    {
+        return ch == TerminalData.WIDE_CONTINUATION ||
+                Character.isLowSurrogate(ch);
+    }
+
+    private Chunk getChunk(int cx, int cy)
+    {
+        long key = ((long)cx << 32) | (cy & 0xffffffffL);
+        Chunk c = chunks.get(key);
+        if (c == null)
+        {
+            c = new Chunk();
+            Arrays.fill(c.cells, ' ');
+            if (loader != null)
+            {
+                loader.loadChunk(cx, cy, c.cells);
+            }
+            chunks.put(key, c);
+        }
+        return c;
+    }
+
+    /**
+     * Draws a rectangle of the view, given relative to the view area.  Each
+     * row is assembled from whole chunk rows with array copies and written to
+     * the data in one call.
+     */
+    private void drawRect(int rx, int ry, int rw, int rh)
+    {
+        for (int row = ry; row < ry + rh; row++)
+        {
+            int wy = originY + row;
+            int cy = Math.floorDiv(wy, CHUNK_SIZE);
+            int offsetY = Math.floorMod(wy, CHUNK_SIZE) * CHUNK_SIZE;
+
+            int col = rx;
+            while (col < rx + rw)
+            {
+                int wx = originX + col;
+                int inChunk = Math.floorMod(wx, CHUNK_SIZE);
+                int n = Math.min(CHUNK_SIZE - inChunk, rx + rw - col);
+                Chunk c = getChunk(Math.floorDiv(wx, CHUNK_SIZE), cy);
+                System.arraycopy(c.cells, offsetY + inChunk, rowBuffer,
+                        col - rx, n);
+                col += n;
+            }
+            data.setChars(rowBuffer, 0, x + rx, y + row, rw);
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package com.abstrys.consolekit;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Tests for WorldViewport: panning, the chunk cache and wide characters.  Run
+ * them with "ant test"; any failure is reported and makes the run exit with
+ * an error.
+ */
+public class WorldViewportTest
+{
+    private static int failures = 0;
+
+    private static final char WIDE = '\u4e2d';
+
+    /**
+     * Fills each chunk with a pattern that depends on the world position, and
+     * keeps what is saved so that it is loaded back the next time.  Every
+     * load and save is recorded.
+     */
+    private static class PatternLoader implements ChunkLoader
+    {
+        final ArrayList<String> events = new ArrayList<String>();
+        final HashMap<String, char[]> saved = new HashMap<String, char[]>();
+
+        public void loadChunk(int cx, int cy, char[] cells)
+        {
+            events.add("load " + cx + "," + cy);
+            char[] s = saved.get(cx + "," + cy);
+            for (int i = 0; i < cells.length; i++)
+            {
+                cells[i] = s != null ? s[i] : pattern(
+                        cx * WorldViewport.CHUNK_SIZE +
+                        i % WorldViewport.CHUNK_SIZE,
+                        cy * WorldViewport.CHUNK_SIZE +
+                        i / WorldViewport.CHUNK_SIZE);
+            }
+        }
+
+        public void saveChunk(int cx, int cy, char[] cells)
+        {
+            events.add("save " + cx + "," + cy);
+            saved.put(cx + "," + cy, cells.clone());
+        }
+    }
+
+    public static void main(String[] args)
+    {
+        testPanning();
+        testEviction();
+        testWideCells();
+
+        if (failures > 0)
+        {
+            System.out.println(failures + " WorldViewport test(s) failed.");
+            System.exit(1);
+        }
+        System.out.println("All WorldViewport tests passed.");
+    }
+
+    private static void check(boolean ok, String what)
+    {
+        if (!ok)
+        {
+            failures++;
+            System.out.println("FAILED: " + what);
+        }
+    }
+
+    private static char pattern(int wx, int wy)
+    {
+        return (char)('a' + Math.floorMod(wx * 3 + wy * 7, 26));
+    }
+
+    /**
+     * Checks that the view shows the pattern at the viewport's origin, except
+     * for one cell that should hold a marker, and that the data around the
+     * view is untouched.
+     */
+    private static void checkView(TerminalData td, WorldViewport vp, int vx,
+            int vy, int w, int h, int markX, int markY, String what)
+    {
+        for (int y = 0; y < td.getHeight(); y++)
+        {
+            for (int x = 0; x < td.getWidth(); x++)
+            {
+                char expected;
+                if (x < vx || x >= vx + w || y < vy || y >= vy + h)
+                {
+                    expected = '#';
+                }
+                else if (x - vx == markX && y - vy == markY)
+                {
+                    expected = '*';
+                }
+                else
+                {
+                    expected = pattern(vp.getOriginX() + x - vx,
+                            vp.getOriginY() + y - vy);
+                }
+                if (td.getChar(x, y) != expected)
+                {
+                    check(false, what + ": cell " + x + "," + y + " is '" +
+                            td.getChar(x, y) + "', expected '" + expected +
+                            "'");
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Each pan moves the part of the view still in sight, which the marker
+     * shows, and draws the strips that come into view.  Pans of the whole
+     * view or more redraw it.
+     */
+    private static void testPanning()
+    {
+        int vx = 2;
+        int vy = 1;
+        int w = 10;
+        int h = 6;
+        TerminalData td = new TerminalData(16, 9);
+        td.fill('#', 0, 0, 16, 9);
+        WorldViewport vp = new WorldViewport(td, vx, vy, w, h,
+                new PatternLoader(), 0);
+        vp.setOrigin(28, -3);
+        checkView(td, vp, vx, vy, w, h, -1, -1, "first draw");
+
+        int[][] pans = {
+            { 1, 0 }, { 0, 1 }, { -2, 0 }, { 0, -3 }, { 3, 2 }, { -4, -1 },
+            { 2, -2 }, { -1, 3 }, { 8, 5 }, { -8, -5 }, { 0, 0 }
+        };
+        for (int[] pan : pans)
+        {
+            int dx = pan[0];
+            int dy = pan[1];
+            // the marker goes where the copy puts it at the far side from
+            // the columns drawn, which take in one copied column.
+            int markX = dx < 0 ? w - 1 : 0;
+            int markY = Math.max(-dy, 0);
+            td.setChar('*', vx + markX + dx, vy + markY + dy);
+            vp.pan(dx, dy);
+            checkView(td, vp, vx, vy, w, h, markX, markY,
+                    "pan by " + dx + "," + dy);
+            vp.redraw();
+        }
+
+        vp.pan(w, 0);
+        checkView(td, vp, vx, vy, w, h, -1, -1, "pan by the view width");
+        td.setChar('*', vx, vy);
+        vp.pan(-3, -h);
+        checkView(td, vp, vx, vy, w, h, -1, -1, "pan by the view height");
+    }
+
+    /**
+     * The cache drops its least recently used chunk when it is full, and
+     * saves a dropped chunk only if it was changed.
+     */
+    private static void testEviction()
+    {
+        int size = WorldViewport.CHUNK_SIZE;
+        PatternLoader loader = new PatternLoader();
+        WorldViewport vp = new WorldViewport(new TerminalData(4, 4), 0, 0, 4,
+                4, loader, 4);
+
+        vp.setCell('A', 0, 0);
+        vp.setCell('B', size + 1, 2);
+        vp.getCell(size * 2, 0);
+        vp.getCell(size * 3, 0);
+        vp.getCell(5, 5);
+        check(vp.getChunkCount() == 4, "holding " + vp.getChunkCount() +
+                " chunks, expected 4");
+
+        // chunk 0,0 was used last, so 1,0 is the oldest.
+        loader.events.clear();
+        vp.getCell(size * 4, 0);
+        check(loader.events.toString().equals("[load 4,0, save 1,0]"),
+                "loading a fifth chunk: " + loader.events);
+        check(vp.getChunkCount() == 4, "holding " + vp.getChunkCount() +
+                " chunks after an eviction, expected 4");
+
+        loader.events.clear();
+        vp.getCell(size * 5, 0);
+        check(loader.events.toString().equals("[load 5,0]"),
+                "dropping an unchanged chunk: " + loader.events);
+
+        loader.events.clear();
+        vp.setCell('C', -1, -size - 1);
+        vp.flush();
+        vp.flush();
+        check(loader.events.contains("save 0,0") &&
+                loader.events.contains("save -1,-2") &&
+                loader.events.size() == 3, "flushing: " + loader.events);
+
+        check(vp.getCell(size + 1, 2) == 'B',
+                "a saved chunk didn't load back with its change");
+    }
+
+    private static void checkCells(TerminalData td, int x, int y,
+            String expected, String what)
+    {
+        String shown = new String(td.getLine(y), x, expected.length());
+        check(shown.equals(expected), what + ": shows " + codes(shown) +
+                ", expected " + codes(expected));
+    }
+
+    private static String codes(String s)
+    {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < s.length(); i++)
+        {
+            sb.append(i == 0 ? "[" : " ");
+            sb.append(Integer.toHexString(s.charAt(i)));
+        }
+        return sb.append(']').toString();
+    }
+
+    /**
+     * Wide characters take two cells in the world and in the view, and
+     * writing over half of one blanks the other half.
+     */
+    private static void testWideCells()
+    {
+        char cont = TerminalData.WIDE_CONTINUATION;
+        TerminalData td = new TerminalData(8, 1);
+        WorldViewport vp = new WorldViewport(td, 1, 0, 6, 1, null, 0);
+        vp.redraw();
+
+        check(vp.setCell(WIDE, 2, 0), "couldn't set a wide character");
+        check(vp.getCell(3, 0) == cont,
+                "a wide character didn't take the next cell");
+        checkCells(td, 1, 0, "  " + WIDE + cont + "  ", "wide character");
+
+        vp.setCell('x', 3, 0);
+        check(vp.getCell(2, 0) == ' ',
+                "writing over the second half left the first");
+        checkCells(td, 1, 0, "   x  ", "second half written over");
+
+        vp.setCell(WIDE, 3, 0);
+        vp.setCell(WIDE, 2, 0);
+        check(vp.getCell(4, 0) == ' ',
+                "writing over the first half left the second");
+        checkCells(td, 1, 0, "  " + WIDE + cont + "  ", "pair written over");
+
+        // a pair cut by the edge of the view is blanked on screen only, and
+        // is drawn whole once a pan brings all of it into view.
+        vp.setCell(WIDE, 5, 0);
+        checkCells(td, 1, 0, "  " + WIDE + cont + " \0", "pair at the edge");
+        check(vp.getCell(5, 0) == WIDE && vp.getCell(6, 0) == cont,
+                "a pair at the edge was changed in the world");
+        vp.pan(1, 0);
+        checkCells(td, 1, 0, " " + WIDE + cont + " " + WIDE + cont,
+                "pair panned into view");
+        vp.pan(2, 0);
+        checkCells(td, 1, 0, "\0 " + WIDE + cont + "  ",
+                "pair panned off the left edge");
+        vp.pan(-1, 0);
+        checkCells(td, 1, 0, "" + WIDE + cont + " " + WIDE + cont + " ",
+                "pairs panned back");
+
+        check(!vp.setCell(cont, 0, 0) && !vp.setCell('\ud83d', 0, 0),
+                "set a character that can't stand alone");
+    }
+}